@@ -0,0 +1,467 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Picks the fastest modular exponentiation engine, Montgomery window size,
+ * CRT mode and Miller-Rabin mode for this machine, by timing the candidates.
+ *
+ * A profile holds one choice per modulus size class (512, 1024, 2048, 4096
+ * bits) plus the CRT and Miller-Rabin modes. RSAUtils and PrimeGenerator call
+ * {@link #modPow(BigInteger, BigInteger, BigInteger)} and read the current
+ * profile; which profile is current is decided once per JVM:
+ * 1. the profile file of this host, if it exists and was made with the same
+ *    number of cores;
+ * 2. otherwise, with -Drsa.autotune=true, a fresh calibration (then saved);
+ * 3. otherwise the built-in defaults, which match the untuned behaviour
+ *    (Utils.modPow everywhere, sequential CRT).
+ *
+ * The file is ~/.rsautils/tuning-<host>.properties, or -Drsa.tuning.file=...
+ * Run {@code java AutoTuner} to calibrate on demand and save the result.
+ */
+public class AutoTuner {
+
+    public enum Engine {
+        // Utils.modPow
+        GENERIC,
+        // Montgomery.modPow with the profile's window size
+        MONTGOMERY,
+        // java.math.BigInteger.modPow
+        BIGINTEGER
+    }
+
+    // Size classes: a modulus uses the class of the first limit it fits under
+    static final int[] SIZE_CLASSES = { 512, 1024, 2048, 4096 };
+
+    // A candidate must win by this much to replace the simpler choice
+    private static final double MIN_GAIN = 0.10;
+
+    private static final int REPETITIONS = 5;
+
+    // Montgomery contexts of public moduli, least recently used evicted first. Secret
+    // primes never go in here: KeyPair holds the contexts of its own p and q.
+    private static final int MAX_CONTEXTS = 256;
+    private static final Map<BigInteger, Montgomery> CONTEXTS = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BigInteger, Montgomery> eldest) {
+            return size() > MAX_CONTEXTS;
+        }
+    };
+
+    private static volatile Profile current;
+    private static ParallelCRT sharedParallelCRT;
+
+    /**
+     * One tuning result. Immutable.
+     */
+    public static final class Profile {
+        private final Engine[] engines;
+        private final int[] windows;
+        private final boolean parallelCRT;
+        private final int parallelMillerRabinMinBits;
+        private final int cores;
+
+        public Profile(Engine[] engines, int[] windows, boolean parallelCRT, int parallelMillerRabinMinBits,
+                int cores) {
+            if (engines.length != SIZE_CLASSES.length || windows.length != SIZE_CLASSES.length) {
+                throw new IllegalArgumentException("One engine and window per size class is required.");
+            }
+            this.engines = engines.clone();
+            this.windows = windows.clone();
+            this.parallelCRT = parallelCRT;
+            this.parallelMillerRabinMinBits = parallelMillerRabinMinBits;
+            this.cores = cores;
+        }
+
+        /**
+         * The untuned behaviour.
+         */
+        public static Profile defaults() {
+            Engine[] engines = new Engine[SIZE_CLASSES.length];
+            Arrays.fill(engines, Engine.GENERIC);
+            int[] windows = new int[SIZE_CLASSES.length];
+            for (int i = 0; i < windows.length; i++) {
+                windows[i] = Montgomery.windowSize(SIZE_CLASSES[i]);
+            }
+            return new Profile(engines, windows, false, MillerRabin.PARALLEL_MIN_BITS,
+                    Runtime.getRuntime().availableProcessors());
+        }
+
+        public Engine engine(int modulusBits) {
+            return engines[sizeClass(modulusBits)];
+        }
+
+        public int window(int modulusBits) {
+            return windows[sizeClass(modulusBits)];
+        }
+
+        public boolean isParallelCRT() {
+            return parallelCRT;
+        }
+
+        /**
+         * Whether Miller-Rabin rounds for a candidate of this size should run in parallel.
+         */
+        public boolean isParallelMillerRabin(int bits) {
+            return bits >= parallelMillerRabinMinBits && Runtime.getRuntime().availableProcessors() > 1;
+        }
+
+        Properties toProperties() {
+            Properties props = new Properties();
+            props.setProperty("cores", Integer.toString(cores));
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                props.setProperty("modpow." + SIZE_CLASSES[i], engines[i] + ":" + windows[i]);
+            }
+            props.setProperty("crt.parallel", Boolean.toString(parallelCRT));
+            props.setProperty("millerrabin.parallelMinBits", Integer.toString(parallelMillerRabinMinBits));
+            return props;
+        }
+
+        static Profile fromProperties(Properties props) {
+            Engine[] engines = new Engine[SIZE_CLASSES.length];
+            int[] windows = new int[SIZE_CLASSES.length];
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                String value = props.getProperty("modpow." + SIZE_CLASSES[i]);
+                if (value == null) {
+                    throw new IllegalArgumentException("Missing modpow." + SIZE_CLASSES[i]);
+                }
+                String[] parts = value.split(":");
+                engines[i] = Engine.valueOf(parts[0]);
+                windows[i] = Integer.parseInt(parts[1]);
+            }
+            return new Profile(engines, windows, Boolean.parseBoolean(props.getProperty("crt.parallel")),
+                    Integer.parseInt(props.getProperty("millerrabin.parallelMinBits")),
+                    Integer.parseInt(props.getProperty("cores")));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                sb.append(String.format("  modPow <= %4d bits: %s%s%n", SIZE_CLASSES[i], engines[i],
+                        engines[i] == Engine.MONTGOMERY ? " (window " + windows[i] + ")" : ""));
+            }
+            sb.append("  CRT halves:        ").append(parallelCRT ? "parallel" : "sequential").append('\n');
+            sb.append("  Miller-Rabin:      ").append(parallelMillerRabinMinBits == Integer.MAX_VALUE
+                    ? "sequential" : "parallel from " + parallelMillerRabinMinBits + " bits");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * base^exp mod m with the engine the current profile picked for m's size.
+     * For public moduli (n of an encryption key): Montgomery contexts are kept in
+     * a bounded cache shared by all callers.
+     */
+    public static BigInteger modPow(BigInteger base, BigInteger exp, BigInteger mod) {
+        return modPow(base, exp, mod, null, true);
+    }
+
+    /**
+     * Same, on a context the caller keeps (e.g. KeyPair's for p and q). A null
+     * context means a one-off modulus: a Montgomery context, if the profile picks
+     * that engine, is built for this call only and not cached.
+     */
+    public static BigInteger modPow(BigInteger base, BigInteger exp, BigInteger mod, Montgomery context) {
+        return modPow(base, exp, mod, context, false);
+    }
+
+    private static BigInteger modPow(BigInteger base, BigInteger exp, BigInteger mod, Montgomery context,
+            boolean cache) {
+        Profile profile = current();
+        int bits = mod.bitLength();
+        Engine engine = profile.engine(bits);
+        // Montgomery needs an odd modulus
+        if (engine == Engine.MONTGOMERY && !mod.testBit(0)) {
+            engine = Engine.GENERIC;
+        }
+        if (engine == Engine.MONTGOMERY && context == null) {
+            context = cache ? publicContext(mod) : new Montgomery(mod);
+        }
+        return modPow(engine, profile.window(bits), base, exp, mod, context);
+    }
+
+    // context is only used (and must be set) for MONTGOMERY
+    static BigInteger modPow(Engine engine, int window, BigInteger base, BigInteger exp, BigInteger mod,
+            Montgomery context) {
+        switch (engine) {
+            case MONTGOMERY:
+                return context.modPow(base, exp, window);
+            case BIGINTEGER:
+                return base.modPow(exp, mod);
+            default:
+                return Utils.modPow(base, exp, mod);
+        }
+    }
+
+    /**
+     * base^exp mod m in constant time (Montgomery.modPowConstantTime) on the
+     * caller's context of m, for secret exponents below 2^m.bitLength(). The
+     * window size is the one the profile uses for m's size class.
+     */
+    public static BigInteger modPowConstantTime(BigInteger base, BigInteger exp, Montgomery context) {
+        int bits = context.getModulus().bitLength();
+        return context.modPowConstantTime(base, exp, bits, current().window(bits));
+    }
+
+    /**
+     * Same, for exponents whose size expBits is public (e.g. products of public
+     * exponents) while the base is secret: the running time depends on expBits only.
+     */
+    static BigInteger modPowConstantTime(BigInteger base, BigInteger exp, int expBits, Montgomery context) {
+        return context.modPowConstantTime(base, exp, expBits, Montgomery.windowSize(expBits));
+    }
+
+    // Cached context of a public modulus
+    static Montgomery publicContext(BigInteger mod) {
+        Montgomery mont;
+        synchronized (CONTEXTS) {
+            mont = CONTEXTS.get(mod);
+        }
+        if (mont == null) {
+            // Built outside the lock; a concurrent miss on the same modulus just builds it twice
+            mont = new Montgomery(mod);
+            synchronized (CONTEXTS) {
+                CONTEXTS.put(mod, mont);
+            }
+        }
+        return mont;
+    }
+
+    /**
+     * The profile in use (loaded, calibrated or default on first call).
+     */
+    public static Profile current() {
+        Profile profile = current;
+        if (profile == null) {
+            synchronized (AutoTuner.class) {
+                profile = current;
+                if (profile == null) {
+                    profile = loadOrDefault();
+                    current = profile;
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Replaces the profile in use (e.g. after {@link #calibrate()}).
+     */
+    public static void install(Profile profile) {
+        current = profile;
+    }
+
+    /**
+     * Shared latency-mode CRT for RSAUtils instances built without an explicit
+     * choice, or null when the current profile runs CRT sequentially.
+     */
+    static synchronized ParallelCRT parallelCRT() {
+        if (!current().isParallelCRT()) {
+            return null;
+        }
+        if (sharedParallelCRT == null) {
+            sharedParallelCRT = new ParallelCRT();
+        }
+        return sharedParallelCRT;
+    }
+
+    private static Profile loadOrDefault() {
+        Path file = profileFile();
+        try {
+            Profile saved = load(file);
+            if (saved != null && saved.cores == Runtime.getRuntime().availableProcessors()) {
+                return saved;
+            }
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("Ignoring unreadable tuning profile " + file + ": " + ex.getMessage());
+        }
+        if (Boolean.getBoolean("rsa.autotune")) {
+            Profile calibrated = calibrate();
+            try {
+                save(calibrated, file);
+            } catch (IOException ex) {
+                System.err.println("Could not save tuning profile " + file + ": " + ex.getMessage());
+            }
+            return calibrated;
+        }
+        return Profile.defaults();
+    }
+
+    public static Path profileFile() {
+        String configured = System.getProperty("rsa.tuning.file");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        return Paths.get(System.getProperty("user.home"), ".rsautils", "tuning-" + hostName() + ".properties");
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException ex) {
+            String env = System.getenv("HOSTNAME");
+            return env != null ? env : "localhost";
+        }
+    }
+
+    /**
+     * Reads a profile, or returns null if the file does not exist.
+     */
+    public static Profile load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        }
+        return Profile.fromProperties(props);
+    }
+
+    public static void save(Profile profile, Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            profile.toProperties().store(out, "RSA tuning profile for " + hostName());
+        }
+    }
+
+    // ===============================================================================================
+    // Calibration
+    // ===============================================================================================
+
+    /**
+     * Times every candidate on this machine and returns the fastest profile.
+     * Takes a few seconds; 4096-bit moduli reuse the 2048-bit choice because the
+     * generic engine alone would take minutes to time there.
+     */
+    public static Profile calibrate() {
+        Random rnd = new Random(42);
+        int cores = Runtime.getRuntime().availableProcessors();
+        Engine[] engines = new Engine[SIZE_CLASSES.length];
+        int[] windows = new int[SIZE_CLASSES.length];
+
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            int bits = SIZE_CLASSES[i];
+            if (bits > 2048) {
+                engines[i] = engines[i - 1];
+                windows[i] = Montgomery.windowSize(bits);
+                continue;
+            }
+            BigInteger mod = new BigInteger(bits, rnd).setBit(bits - 1).setBit(0);
+            BigInteger base = new BigInteger(bits - 1, rnd);
+            BigInteger exp = new BigInteger(bits, rnd).setBit(bits - 1);
+
+            long best = time(() -> Utils.modPow(base, exp, mod));
+            engines[i] = Engine.GENERIC;
+            windows[i] = Montgomery.windowSize(bits);
+
+            long bigInteger = time(() -> base.modPow(exp, mod));
+            if (bigInteger < best * (1 - MIN_GAIN)) {
+                best = bigInteger;
+                engines[i] = Engine.BIGINTEGER;
+            }
+            Montgomery mont = new Montgomery(mod);
+            for (int w = 1; w <= 7; w++) {
+                int window = w;
+                long t = time(() -> mont.modPow(base, exp, window));
+                if (t < best * (1 - MIN_GAIN)) {
+                    best = t;
+                    engines[i] = Engine.MONTGOMERY;
+                    windows[i] = window;
+                }
+            }
+        }
+
+        boolean parallelCRT = cores > 1 && calibrateParallelCRT(engines[1], windows[1]);
+        int parallelMillerRabinMinBits = cores > 1 ? calibrateMillerRabin() : Integer.MAX_VALUE;
+        return new Profile(engines, windows, parallelCRT, parallelMillerRabinMinBits, cores);
+    }
+
+    // Sequential vs parallel halves of a 2048-bit CRT decryption
+    private static boolean calibrateParallelCRT(Engine engine, int window) {
+        SecureRandom rnd = new SecureRandom();
+        BigInteger p = BigInteger.probablePrime(1024, rnd);
+        BigInteger q = BigInteger.probablePrime(1024, rnd);
+        BigInteger c = new BigInteger(2047, rnd);
+        BigInteger dP = new BigInteger(1023, rnd);
+        BigInteger dQ = new BigInteger(1023, rnd);
+        Montgomery montP = new Montgomery(p);
+        Montgomery montQ = new Montgomery(q);
+
+        long sequential = time(() -> {
+            modPow(engine, window, c, dP, p, montP);
+            modPow(engine, window, c, dQ, q, montQ);
+        });
+        ParallelCRT crt = new ParallelCRT(1);
+        try {
+            long parallel = time(() -> crt.both(() -> modPow(engine, window, c, dP, p, montP),
+                    () -> modPow(engine, window, c, dQ, q, montQ)));
+            return parallel < sequential * (1 - MIN_GAIN);
+        } finally {
+            crt.shutdown();
+        }
+    }
+
+    // Smallest candidate size at which parallel Miller-Rabin rounds win
+    private static int calibrateMillerRabin() {
+        SecureRandom rnd = new SecureRandom();
+        for (int bits : new int[] { 512, 1024, 2048 }) {
+            BigInteger prime = BigInteger.probablePrime(bits, rnd);
+            RandomSource source = RandomSources.seeded(bits);
+            long sequential = time(() -> MillerRabin.isProbablePrime(prime, 10, source, false));
+            long parallel = time(() -> MillerRabin.isProbablePrime(prime, 10, source, true));
+            if (parallel < sequential * (1 - MIN_GAIN)) {
+                return bits;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    // Median of REPETITIONS runs after one warm-up run, in nanoseconds
+    private static long time(Runnable task) {
+        task.run();
+        long[] samples = new long[REPETITIONS];
+        for (int i = 0; i < samples.length; i++) {
+            long start = System.nanoTime();
+            task.run();
+            samples[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    private static int sizeClass(int bits) {
+        for (int i = 0; i < SIZE_CLASSES.length - 1; i++) {
+            if (bits <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("Calibrating on " + Runtime.getRuntime().availableProcessors() + " core(s)...");
+        long start = System.nanoTime();
+        Profile profile = calibrate();
+        System.out.printf("Done in %.1f s%n%s%n", (System.nanoTime() - start) / 1e9, profile);
+        Path file = profileFile();
+        save(profile, file);
+        System.out.println("Saved to " + file);
+    }
+}
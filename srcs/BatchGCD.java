@@ -0,0 +1,540 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Batch GCD (Bernstein's product / remainder tree) for auditing a large set of
+ * RSA moduli for shared prime factors.
+ *
+ * For moduli N_1..N_m it computes P = N_1 * ... * N_m with a product tree, then
+ * P mod N_i^2 for every i with a remainder tree, and finally
+ * gcd((P mod N_i^2) / N_i, N_i). A result other than 1 means N_i shares a prime
+ * with some other modulus. Total cost is quasi-linear instead of the quadratic
+ * cost of pairwise Utils.gcd.
+ *
+ * Each tree level is computed in parallel. When a spill directory is given,
+ * every level is written to a file and read back through memory-mapped
+ * buffers, so only a bounded chunk of each level is on the heap at a time.
+ *
+ * The upper levels of a product tree hold a few huge values, and P itself is
+ * as large as the whole corpus, so spilling alone does not bound the heap. The
+ * moduli are therefore cut into groups of at most groupSize, each with its own
+ * product tree. Since P mod N^2 = prod_h (P_h mod N^2) mod N^2 over the group
+ * products P_h, every group runs its remainder tree once per group product and
+ * multiplies the leaf results together. The largest value on the heap is then
+ * about the square of one group product, at the price of k times the remainder
+ * tree work for k groups.
+ */
+public class BatchGCD implements AutoCloseable {
+
+    // Maximum entries computed per parallel chunk, and rough heap budget per chunk
+    private static final int CHUNK_ENTRIES = 4096;
+    private static final long CHUNK_BYTES = 64L << 20;
+    // Maximum size of one memory mapping
+    private static final long SEGMENT_BYTES = 1L << 30;
+    // Moduli per group when spilling (a 16 MiB product for 4096-bit moduli)
+    private static final int DEFAULT_SPILL_GROUP_SIZE = 1 << 15;
+
+    /**
+     * A modulus that shares a factor with at least one other modulus.
+     */
+    public static final class Finding {
+        private final int index;
+        private final BigInteger modulus;
+        private final BigInteger sharedFactor;
+
+        private Finding(int index, BigInteger modulus, BigInteger sharedFactor) {
+            this.index = index;
+            this.modulus = modulus;
+            this.sharedFactor = sharedFactor;
+        }
+
+        // Position of the modulus in the input (0-based)
+        public int getIndex() {
+            return index;
+        }
+
+        public BigInteger getModulus() {
+            return modulus;
+        }
+
+        // A non-trivial factor of the modulus, or the modulus itself for exact duplicates
+        public BigInteger getSharedFactor() {
+            return sharedFactor;
+        }
+
+        public boolean isDuplicate() {
+            return sharedFactor.equals(modulus);
+        }
+    }
+
+    private final Path spillDirectory;
+    private final int groupSize;
+    private final ForkJoinPool pool;
+    private int fileCounter;
+
+    /**
+     * In-memory audit using all cores.
+     */
+    public BatchGCD() {
+        this(null, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param spillDirectory Directory for level files, or null to keep everything in memory.
+     * @param parallelism    Number of threads used per tree level.
+     */
+    public BatchGCD(Path spillDirectory, int parallelism) {
+        this(spillDirectory, parallelism, spillDirectory == null ? Integer.MAX_VALUE : DEFAULT_SPILL_GROUP_SIZE);
+    }
+
+    /**
+     * @param spillDirectory Directory for level files, or null to keep everything in memory.
+     * @param parallelism    Number of threads used per tree level.
+     * @param groupSize      Maximum moduli per product tree (see the class comment).
+     */
+    public BatchGCD(Path spillDirectory, int parallelism, int groupSize) {
+        if (parallelism < 1 || groupSize < 1) {
+            throw new IllegalArgumentException("parallelism and groupSize must be positive.");
+        }
+        this.spillDirectory = spillDirectory;
+        this.groupSize = groupSize;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Audits the moduli and returns every modulus that shares a factor with another one.
+     *
+     * @param moduli Moduli to audit (read once, in order; may be a lazy stream).
+     * @return Findings sorted by input index.
+     */
+    public List<Finding> audit(Iterable<BigInteger> moduli) throws IOException {
+        LevelWriter leafWriter = newWriter();
+        for (BigInteger n : moduli) {
+            if (n.signum() <= 0) {
+                throw new IllegalArgumentException("Moduli must be positive.");
+            }
+            leafWriter.add(n);
+        }
+        Level leaves = leafWriter.finish();
+        if (leaves.size() < 2) {
+            leaves.close();
+            return new ArrayList<>();
+        }
+
+        int groups = (leaves.size() - 1) / groupSize + 1;
+        List<List<Level>> trees = new ArrayList<>();
+        List<Finding> findings = new ArrayList<>();
+        try {
+            // 1. Product tree of every group: tree[0] = its leaves, tree[top] = { P_h }
+            for (int g = 0; g < groups; g++) {
+                int from = g * groupSize;
+                trees.add(productTree(slice(leaves, from, Math.min(leaves.size(), from + groupSize))));
+            }
+
+            for (int g = 0; g < groups; g++) {
+                List<Level> tree = trees.get(g);
+                Level groupLeaves = tree.get(0);
+
+                // 2. Remainder tree once per group product, leaf results multiplied mod N^2
+                Level accumulated = null;
+                for (int h = 0; h < groups; h++) {
+                    List<Level> other = trees.get(h);
+                    Level remainders = remainderTree(tree, other.get(other.size() - 1).get(0));
+                    if (accumulated == null) {
+                        accumulated = remainders;
+                        continue;
+                    }
+                    Level previous = accumulated;
+                    accumulated = buildLevel(groupLeaves.size(), 2 * approxBytes(groupLeaves), t -> {
+                        BigInteger n = groupLeaves.get(t);
+                        return previous.get(t).multiply(remainders.get(t)).mod(n.multiply(n));
+                    });
+                    previous.close();
+                    remainders.close();
+                }
+
+                // 3. Leaves: g_i = gcd((P mod N_i^2) / N_i, N_i)
+                collectFindings(groupLeaves, accumulated, g * groupSize, findings);
+                accumulated.close();
+
+                // Only the top of this tree is still needed, by the later groups
+                for (int level = 1; level < tree.size() - 1; level++) {
+                    tree.get(level).close();
+                }
+            }
+        } finally {
+            // Closing a level twice is harmless
+            for (List<Level> tree : trees) {
+                for (int level = 1; level < tree.size(); level++) {
+                    tree.get(level).close();
+                }
+            }
+            leaves.close();
+        }
+        return resolveFullyShared(findings);
+    }
+
+    /**
+     * Shuts down the worker threads.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    private List<Level> productTree(Level leaves) throws IOException {
+        List<Level> tree = new ArrayList<>();
+        tree.add(leaves);
+        while (tree.get(tree.size() - 1).size() > 1) {
+            Level child = tree.get(tree.size() - 1);
+            tree.add(buildLevel((child.size() + 1) / 2, 2 * approxBytes(child), j -> {
+                BigInteger left = child.get(2 * j);
+                return 2 * j + 1 < child.size() ? left.multiply(child.get(2 * j + 1)) : left;
+            }));
+        }
+        return tree;
+    }
+
+    // rem[L][j] = rem[L+1][j/2] mod tree[L][j]^2, starting from product above the top
+    private Level remainderTree(List<Level> tree, BigInteger product) throws IOException {
+        Level remainders = memoryLevel(new BigInteger[] { product });
+        for (int level = tree.size() - 1; level >= 0; level--) {
+            Level parent = remainders;
+            Level nodes = tree.get(level);
+            remainders = buildLevel(nodes.size(), 2 * approxBytes(nodes), j -> {
+                BigInteger node = nodes.get(j);
+                return parent.get(j / 2).mod(node.multiply(node));
+            });
+            parent.close();
+        }
+        return remainders;
+    }
+
+    private void collectFindings(Level leaves, Level remainders, int indexOffset, List<Finding> findings)
+            throws IOException {
+        forEachChunk(leaves.size(), approxBytes(leaves), (start, end) -> {
+            Finding[] chunk = new Finding[end - start];
+            IntStream.range(start, end).parallel().forEach(i -> {
+                BigInteger n = leaves.get(i);
+                BigInteger g = remainders.get(i).divide(n).gcd(n);
+                if (!g.equals(BigInteger.ONE)) {
+                    chunk[i - start] = new Finding(indexOffset + i, n, g);
+                }
+            });
+            for (Finding f : chunk) {
+                if (f != null) {
+                    findings.add(f);
+                }
+            }
+        });
+    }
+
+    // g_i = N_i means both primes of N_i are shared (or N_i is duplicated).
+    // The flagged set is small, so a pairwise pass among it recovers a real factor.
+    private static List<Finding> resolveFullyShared(List<Finding> findings) {
+        List<Finding> resolved = new ArrayList<>(findings.size());
+        for (Finding f : findings) {
+            if (!f.sharedFactor.equals(f.modulus)) {
+                resolved.add(f);
+                continue;
+            }
+            BigInteger factor = f.modulus;
+            for (Finding other : findings) {
+                if (other == f || other.modulus.equals(f.modulus)) {
+                    continue;
+                }
+                BigInteger g = f.modulus.gcd(other.modulus);
+                if (!g.equals(BigInteger.ONE) && !g.equals(f.modulus)) {
+                    factor = g;
+                    break;
+                }
+            }
+            resolved.add(new Finding(f.index, f.modulus, factor));
+        }
+        return resolved;
+    }
+
+    // ============================================================
+    // LEVEL CONSTRUCTION
+    // ============================================================
+
+    private interface ChunkAction {
+        void run(int start, int end) throws IOException;
+    }
+
+    // Split [0, size) into chunks that fit the heap budget
+    private void forEachChunk(int size, long bytesPerEntry, ChunkAction action) throws IOException {
+        int entries = (int) Math.max(pool.getParallelism(),
+                Math.min(CHUNK_ENTRIES, CHUNK_BYTES / Math.max(1, bytesPerEntry)));
+        for (int from = 0; from < size; from += entries) {
+            int start = from;
+            int end = Math.min(size, start + entries);
+            try {
+                pool.submit(() -> {
+                    try {
+                        action.run(start, end);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Batch GCD interrupted", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) ex.getCause()).getCause();
+                }
+                throw new IllegalStateException("Batch GCD failed", ex.getCause());
+            }
+        }
+    }
+
+    private Level buildLevel(int size, long bytesPerEntry, IntFunction<BigInteger> compute) throws IOException {
+        LevelWriter writer = newWriter();
+        forEachChunk(size, bytesPerEntry, (start, end) -> {
+            BigInteger[] chunk = new BigInteger[end - start];
+            IntStream.range(start, end).parallel().forEach(j -> chunk[j - start] = compute.apply(j));
+            // Written sequentially so the file stays in index order
+            for (BigInteger value : chunk) {
+                writer.add(value);
+            }
+        });
+        return writer.finish();
+    }
+
+    private static long approxBytes(Level level) {
+        return level.get(0).bitLength() / 8 + 1;
+    }
+
+    private LevelWriter newWriter() throws IOException {
+        if (spillDirectory == null) {
+            return new MemoryLevelWriter();
+        }
+        Path file;
+        synchronized (this) {
+            file = spillDirectory.resolve("batchgcd-" + ProcessHandle.current().pid() + "-" + (fileCounter++)
+                    + ".level");
+        }
+        return new MappedLevelWriter(file);
+    }
+
+    // ============================================================
+    // LEVEL STORAGE
+    // ============================================================
+
+    private interface Level {
+        int size();
+
+        // Must be safe to call from several threads at once
+        BigInteger get(int index);
+
+        void close() throws IOException;
+    }
+
+    private interface LevelWriter {
+        void add(BigInteger value) throws IOException;
+
+        Level finish() throws IOException;
+    }
+
+    private static final class MemoryLevelWriter implements LevelWriter {
+        private final List<BigInteger> values = new ArrayList<>();
+
+        @Override
+        public void add(BigInteger value) {
+            values.add(value);
+        }
+
+        @Override
+        public Level finish() {
+            return memoryLevel(values.toArray(new BigInteger[0]));
+        }
+    }
+
+    private static Level memoryLevel(BigInteger[] array) {
+        return new Level() {
+            @Override
+            public int size() {
+                return array.length;
+            }
+
+            @Override
+            public BigInteger get(int index) {
+                return array[index];
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // Entries [from, to) of level; closing the slice leaves the level open
+    private static Level slice(Level level, int from, int to) {
+        return new Level() {
+            @Override
+            public int size() {
+                return to - from;
+            }
+
+            @Override
+            public BigInteger get(int index) {
+                return level.get(from + index);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // File layout: for each entry, a 4-byte length followed by the two's-complement bytes
+    private static final class MappedLevelWriter implements LevelWriter {
+        private final Path file;
+        private final FileChannel channel;
+        private long[] offsets = new long[1024];
+        private int count;
+        private long position;
+
+        private MappedLevelWriter(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void add(BigInteger value) throws IOException {
+            byte[] bytes = value.toByteArray();
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+
+            ByteBuffer buf = ByteBuffer.allocate(4 + bytes.length);
+            buf.putInt(bytes.length).put(bytes).flip();
+            while (buf.hasRemaining()) {
+                position += channel.write(buf, position);
+            }
+        }
+
+        @Override
+        public Level finish() throws IOException {
+            return new MappedLevel(file, channel, Arrays.copyOf(offsets, count), position);
+        }
+    }
+
+    private static final class MappedLevel implements Level {
+        private final Path file;
+        private final FileChannel channel;
+        private final long[] offsets;
+        private final long[] segmentStarts;
+        private final MappedByteBuffer[] segments;
+
+        private MappedLevel(Path file, FileChannel channel, long[] offsets, long fileSize) throws IOException {
+            this.file = file;
+            this.channel = channel;
+            this.offsets = offsets;
+
+            // Cut the file into mappings of at most SEGMENT_BYTES at entry boundaries
+            // (an entry larger than that gets a mapping of its own)
+            List<Long> starts = new ArrayList<>();
+            List<MappedByteBuffer> maps = new ArrayList<>();
+            int i = 0;
+            while (i < offsets.length) {
+                long start = offsets[i];
+                int j = i + 1;
+                while (j < offsets.length && entryEnd(offsets, j, fileSize) - start <= SEGMENT_BYTES) {
+                    j++;
+                }
+                long end = entryEnd(offsets, j - 1, fileSize);
+                if (end - start > Integer.MAX_VALUE) {
+                    throw new IOException("Level entry of " + (end - start) + " bytes is too large to map.");
+                }
+                starts.add(start);
+                maps.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                i = j;
+            }
+            this.segmentStarts = starts.stream().mapToLong(Long::longValue).toArray();
+            this.segments = maps.toArray(new MappedByteBuffer[0]);
+        }
+
+        private static long entryEnd(long[] offsets, int index, long fileSize) {
+            return index + 1 < offsets.length ? offsets[index + 1] : fileSize;
+        }
+
+        @Override
+        public int size() {
+            return offsets.length;
+        }
+
+        @Override
+        public BigInteger get(int index) {
+            long offset = offsets[index];
+            int segment = Arrays.binarySearch(segmentStarts, offset);
+            if (segment < 0) {
+                segment = -segment - 2;
+            }
+            // duplicate() gives each caller its own position
+            ByteBuffer buf = segments[segment].duplicate();
+            // Segments are at most Integer.MAX_VALUE bytes (checked when mapping)
+            buf.position(Math.toIntExact(offset - segmentStarts[segment]));
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            return new BigInteger(bytes);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Usage: java BatchGCD moduli.txt [spillDirectory [groupSize]]
+     * moduli.txt holds one hex modulus per line; prints every weak modulus found.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java BatchGCD moduli.txt [spillDirectory [groupSize]]");
+            System.exit(1);
+        }
+        Path input = Paths.get(args[0]);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        List<Finding> findings;
+        try (BatchGCD batchGCD = args.length > 2
+                ? new BatchGCD(Paths.get(args[1]), parallelism, Integer.parseInt(args[2]))
+                : args.length > 1 ? new BatchGCD(Paths.get(args[1]), parallelism) : new BatchGCD();
+                Stream<String> lines = Files.lines(input)) {
+            Iterator<BigInteger> it = lines.map(String::trim).filter(line -> !line.isEmpty())
+                    .map(line -> new BigInteger(line, 16)).iterator();
+            findings = batchGCD.audit(() -> it);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (Finding f : findings) {
+            System.out.println("Line " + (f.getIndex() + 1) + (f.isDuplicate() ? ": duplicate modulus"
+                    : ": shares factor " + f.getSharedFactor().toString(16)));
+        }
+        System.out.printf("%d weak moduli found in %.2f s%n", findings.size(), elapsed / 1e9);
+    }
+}
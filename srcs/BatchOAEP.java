@@ -0,0 +1,209 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * OAEP (SHA-256, MGF1-SHA256, empty label) encoding and decoding of many
+ * messages at once, with the same format as RSAUtils.
+ *
+ * Each step runs across the whole batch before the next one starts:
+ * <pre>
+ * encode: build DB for all -> maskedDB = DB ^ MGF1(seed) for all -> maskedSeed = seed ^ MGF1(maskedDB) for all
+ * decode: seed = maskedSeed ^ MGF1(maskedDB) for all -> DB = maskedDB ^ MGF1(seed) for all -> check padding
+ * </pre>
+ * so every MGF1 step is one batch of independent hashes, each computed by one
+ * MessageDigest (which the JIT runs on the CPU's SHA instructions where present).
+ *
+ * All messages of a batch use the same modulus.
+ */
+public class BatchOAEP {
+
+    private static final int HASH_LEN = 32; // SHA-256 output length in bytes
+
+    private final RandomSource random;
+    private final RSAUtils rsa;
+
+    public BatchOAEP() {
+        this(null);
+    }
+
+    /**
+     * @param random Source of OAEP seeds, or null for RandomSources.getDefault().
+     */
+    public BatchOAEP(RandomSource random) {
+        this.random = random;
+        this.rsa = new RSAUtils(random);
+    }
+
+    /**
+     * OAEP-encodes every message into a k-byte block EM.
+     */
+    public byte[][] encode(byte[][] messages, int k) {
+        int maxLen = k - 2 * HASH_LEN - 2;
+        int dbStart = 1 + HASH_LEN;
+        int dbLen = k - HASH_LEN - 1;
+        RandomSource seeds = random != null ? random : RandomSources.getDefault();
+
+        byte[][] ems = new byte[messages.length][k];
+        for (int i = 0; i < messages.length; i++) {
+            byte[] m = messages[i];
+            if (m.length > maxLen) {
+                throw new IllegalArgumentException(String.format(
+                        "Message %d too long for OAEP. Max allowed: %d bytes, Actual: %d bytes.", i, maxLen,
+                        m.length));
+            }
+            byte[] em = ems[i];
+            // DB = lHash || PS (zeros) || 0x01 || M
+            System.arraycopy(RSAUtils.EMPTY_LABEL_HASH, 0, em, dbStart, HASH_LEN);
+            em[k - m.length - 1] = 0x01;
+            System.arraycopy(m, 0, em, k - m.length, m.length);
+            // Random seed at em[1 .. 1 + hLen)
+            byte[] seed = new byte[HASH_LEN];
+            seeds.nextBytes(seed);
+            System.arraycopy(seed, 0, em, 1, HASH_LEN);
+            Arrays.fill(seed, (byte) 0);
+        }
+
+        // maskedDB = DB XOR MGF(seed, dbLen)
+        mask(ems, 1, HASH_LEN, ems, dbStart, dbLen);
+        // maskedSeed = seed XOR MGF(maskedDB, hLen)
+        mask(ems, dbStart, dbLen, ems, 1, HASH_LEN);
+        return ems;
+    }
+
+    /**
+     * Decodes k-byte blocks in place. Entry i of the result is the message, or
+     * null if block i does not have valid OAEP padding (the others still decode).
+     */
+    public byte[][] decode(byte[][] ems) {
+        if (ems.length == 0) {
+            return new byte[0][];
+        }
+        int k = ems[0].length;
+        int dbStart = 1 + HASH_LEN;
+        int dbLen = k - HASH_LEN - 1;
+
+        // seed = maskedSeed XOR MGF(maskedDB, hLen)
+        mask(ems, dbStart, dbLen, ems, 1, HASH_LEN);
+        // DB = maskedDB XOR MGF(seed, dbLen)
+        mask(ems, 1, HASH_LEN, ems, dbStart, dbLen);
+
+        byte[][] messages = new byte[ems.length][];
+        for (int i = 0; i < ems.length; i++) {
+            int offset = checkPadding(ems[i], dbStart);
+            messages[i] = offset < 0 ? null : Arrays.copyOfRange(ems[i], offset, k);
+        }
+        return messages;
+    }
+
+    /**
+     * Encodes the batch, then encrypts each block with (e, n).
+     */
+    public BigInteger[] encryptOAEP(byte[][] messages, BigInteger e, BigInteger n) {
+        byte[][] ems = encode(messages, OctetString.length(n));
+        BigInteger[] ciphertexts = new BigInteger[ems.length];
+        for (int i = 0; i < ems.length; i++) {
+            ciphertexts[i] = rsa.encrypt(new BigInteger(1, ems[i]), e, n);
+        }
+        return ciphertexts;
+    }
+
+    /**
+     * CRT-decrypts each ciphertext, then decodes the batch. Entries with invalid
+     * padding (or a ciphertext out of range) are null.
+     */
+    public byte[][] decryptOAEP_CRT(BigInteger[] ciphertexts, KeyPair keyPair) {
+        BigInteger n = keyPair.getModulus();
+        int k = OctetString.length(n);
+        byte[][] ems = new byte[ciphertexts.length][];
+        boolean[] failed = new boolean[ciphertexts.length];
+        for (int i = 0; i < ciphertexts.length; i++) {
+            BigInteger c = ciphertexts[i];
+            if (c.signum() < 0 || c.compareTo(n) >= 0) {
+                failed[i] = true;
+                ems[i] = new byte[k];
+                continue;
+            }
+            ems[i] = OctetString.toBytes(rsa.decryptCRT(c, keyPair), k);
+        }
+        byte[][] messages = decode(ems);
+        for (int i = 0; i < messages.length; i++) {
+            if (failed[i]) {
+                messages[i] = null;
+            }
+        }
+        return messages;
+    }
+
+    // Offset of M in a decoded block, or -1 if the padding is invalid
+    private static int checkPadding(byte[] em, int dbStart) {
+        int k = em.length;
+        if (em[0] != 0x00 || !MessageDigest.isEqual(Arrays.copyOfRange(em, dbStart, dbStart + HASH_LEN),
+                RSAUtils.EMPTY_LABEL_HASH)) {
+            return -1;
+        }
+        int index = dbStart + HASH_LEN;
+        while (index < k && em[index] == 0) {
+            index++;
+        }
+        return index < k && em[index] == 0x01 ? index + 1 : -1;
+    }
+
+    /**
+     * XORs MGF1(src_i[srcOff .. srcOff + srcLen), length) into
+     * dst_i[dstOff .. dstOff + length) for every i.
+     */
+    static void mask(byte[][] src, int srcOff, int srcLen, byte[][] dst, int dstOff, int length) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        for (int i = 0; i < src.length; i++) {
+            RSAUtils.mgf1Xor(md, src[i], srcOff, srcLen, dst[i], dstOff, length);
+        }
+    }
+
+    /**
+     * Usage: java BatchOAEP [messages] [bits]
+     * Times batch encode + decode and checks that the batch format matches
+     * RSAUtils.
+     */
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int bits = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int k = bits / 8;
+        BatchOAEP batch = new BatchOAEP(RandomSources.seeded(7));
+
+        // Leading 'm' so the messages survive RSAUtils' BigInteger round trip unchanged
+        byte[][] messages = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            messages[i] = ByteBuffer.allocate(17).put((byte) 'm').putLong(i).putLong(~i).array();
+        }
+
+        // Twice, so the second run is JIT-compiled
+        for (int run = 0; run < 2; run++) {
+            long start = System.nanoTime();
+            byte[][] decoded = batch.decode(batch.encode(messages, k));
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%d x %d-bit encode+decode in %.1f ms (%s)%n", count, bits, elapsed / 1e6,
+                    Arrays.deepEquals(messages, decoded) ? "round-trip ok" : "MISMATCH");
+        }
+
+        // Interoperability with RSAUtils in both directions, on a small key
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+        RSAUtils single = new RSAUtils();
+        byte[][] sample = Arrays.copyOf(messages, 8);
+        BigInteger[] ciphertexts = batch.encryptOAEP(sample, keyPair.getEncryptKey(), keyPair.getModulus());
+        boolean interop = true;
+        for (int i = 0; i < sample.length; i++) {
+            interop &= Arrays.equals(single.decryptOAEP_CRTToBytes(ciphertexts[i], keyPair), sample[i]);
+            ciphertexts[i] = single.encryptOAEP(sample[i], keyPair.getEncryptKey(), keyPair.getModulus());
+        }
+        interop &= Arrays.deepEquals(batch.decryptOAEP_CRT(ciphertexts, keyPair), sample);
+        System.out.println("Interoperable with RSAUtils: " + interop);
+    }
+}
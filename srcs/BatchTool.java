@@ -0,0 +1,445 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-interactive batch encryption / decryption of newline-delimited records.
+ *
+ * Pipeline: one reader thread splits the input channel into lines, a pool of
+ * workers runs encryptOAEP / decryptOAEP_CRT on each record, and one writer
+ * thread puts the results back into input order and writes them through a
+ * buffered channel. At most `window` records are in flight, so memory stays
+ * bounded however large the input is.
+ *
+ * Each input line is one record, hex or base64 encoded. Each output line is the
+ * result in the same encoding, or "!" followed by an error message when that
+ * record failed. Progress is reported on stderr once per second.
+ *
+ * A failure of a stage itself (an unreadable input, an output that cannot be
+ * written, an Error in a worker) stops the whole pipeline: the first one is
+ * recorded, every other stage is interrupted, and all queue waits are timed and
+ * give up once a failure is recorded, so run() returns with that failure.
+ *
+ * Usage:
+ * <pre>
+ * java BatchTool --op encrypt|decrypt --key key.key [--in file|-] [--out file|-]
+ *                [--format hex|base64] [--threads N] [--window 4096]
+ * </pre>
+ */
+public class BatchTool {
+
+    private static final int IO_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_LINE_BYTES = 1024 * 1024;
+    // How often blocked stages check for a failure elsewhere
+    private static final long POLL_MILLIS = 100;
+    // How long run() waits, after a failure, for a reader stuck in a read that ignores interrupts
+    private static final long READER_GRACE_MILLIS = 1000;
+
+    public enum Operation {
+        ENCRYPT,
+        DECRYPT
+    }
+
+    public static final class Options {
+        public Operation operation;
+        public String keyFile;
+        public String in = "-";
+        public String out = "-";
+        public String format = "hex";
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int window = 4096;
+    }
+
+    // One input line; result is set by a worker
+    private static final class Record {
+        private final long seq;
+        private final byte[] line;
+        private byte[] result;
+
+        private Record(long seq, byte[] line) {
+            this.seq = seq;
+            this.line = line;
+        }
+    }
+
+    private static final Record END = new Record(-1, null);
+
+    private final Options options;
+    private final KeyPair keyPair;
+    private final RSAByteCipher cipher = new RSAByteBufferCipher();
+
+    private final BlockingQueue<Record> work;
+    private final BlockingQueue<Record> done;
+    private final Semaphore inFlight;
+
+    private final AtomicLong read = new AtomicLong();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    // Reader, workers and writer, interrupted on the first failure
+    private volatile Thread[] stages = new Thread[0];
+
+    public BatchTool(Options options, KeyPair keyPair) {
+        this.options = options;
+        this.keyPair = keyPair;
+        this.work = new ArrayBlockingQueue<>(options.window);
+        this.done = new ArrayBlockingQueue<>(options.window + options.threads);
+        this.inFlight = new Semaphore(options.window);
+    }
+
+    /**
+     * Runs the whole pipeline and returns the number of records written.
+     */
+    public long run(ReadableByteChannel in, WritableByteChannel out) throws IOException, InterruptedException {
+        Thread reader = new Thread(() -> guard(() -> readLines(in), () -> signalEnd(work, options.threads)),
+                "batch-reader");
+        Thread[] workers = new Thread[options.threads];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> guard(this::processRecords, () -> signalEnd(done, 1)),
+                    "batch-worker-" + i);
+        }
+        Thread writer = new Thread(() -> guard(() -> writeInOrder(out), null), "batch-writer");
+        Thread progress = new Thread(this::reportProgress, "batch-progress");
+        progress.setDaemon(true);
+
+        Thread[] all = Arrays.copyOf(workers, workers.length + 2);
+        all[workers.length] = reader;
+        all[workers.length + 1] = writer;
+        for (Thread stage : all) {
+            // A reader blocked on a stream that ignores interrupts must not keep the JVM alive
+            stage.setDaemon(true);
+        }
+        stages = all;
+
+        long start = System.nanoTime();
+        reader.start();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        writer.start();
+        progress.start();
+
+        writer.join();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() == null) {
+            reader.join();
+        } else {
+            reader.join(READER_GRACE_MILLIS);
+        }
+        progress.interrupt();
+
+        if (failure.get() != null) {
+            throw new IOException("Batch failed", failure.get());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("Done: %d records (%d errors) in %.2f s, %.1f records/s%n", written.sum(), errors.sum(),
+                seconds, written.sum() / seconds);
+        return written.sum();
+    }
+
+    // Reader: split the channel into lines without loading it whole
+    private void readLines(ReadableByteChannel in) throws IOException, InterruptedException {
+        ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_BYTES);
+        byte[] line = new byte[256];
+        int lineLength = 0;
+        long seq = 0;
+        while (failure.get() == null && in.read(buf) >= 0) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                byte b = buf.get();
+                if (b == '\n') {
+                    seq = submit(seq, line, lineLength);
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    if (lineLength == line.length) {
+                        if (line.length >= MAX_LINE_BYTES) {
+                            throw new IOException("Line " + (seq + 1) + " is longer than " + MAX_LINE_BYTES);
+                        }
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            buf.clear();
+        }
+        submit(seq, line, lineLength);
+    }
+
+    // Queues one line; does nothing once the batch has failed
+    private long submit(long seq, byte[] line, int length) throws InterruptedException {
+        if (length == 0) {
+            return seq;
+        }
+        if (!acquireWindow() || !put(work, new Record(seq, Arrays.copyOf(line, length)))) {
+            return seq;
+        }
+        read.incrementAndGet();
+        return seq + 1;
+    }
+
+    // Worker: decode, run the RSA operation, encode
+    private void processRecords() throws InterruptedException {
+        Record record;
+        while ((record = take(work)) != null && record != END) {
+            try {
+                byte[] input = decode(record.line);
+                byte[] output = options.operation == Operation.ENCRYPT ? encrypt(input) : decrypt(input);
+                record.result = encode(output);
+            } catch (RuntimeException ex) {
+                errors.increment();
+                record.result = ("!" + ex.getMessage()).getBytes(StandardCharsets.UTF_8);
+            }
+            if (!put(done, record)) {
+                return;
+            }
+        }
+    }
+
+    private byte[] encrypt(byte[] message) {
+        ByteBuffer out = ByteBuffer.allocate(cipher.modulusLength(keyPair.getModulus()));
+        cipher.encryptOAEP(ByteBuffer.wrap(message), out, keyPair.getEncryptKey(), keyPair.getModulus());
+        return out.array();
+    }
+
+    private byte[] decrypt(byte[] ciphertext) {
+        int k = cipher.modulusLength(keyPair.getModulus());
+        if (ciphertext.length != k) {
+            throw new IllegalArgumentException("Ciphertext must be " + k + " bytes, got " + ciphertext.length);
+        }
+        ByteBuffer out = ByteBuffer.allocate(k);
+        int length = cipher.decryptOAEP_CRT(ByteBuffer.wrap(ciphertext), out, keyPair);
+        return Arrays.copyOf(out.array(), length);
+    }
+
+    private byte[] decode(byte[] line) {
+        String text = new String(line, StandardCharsets.US_ASCII).trim();
+        return options.format.equals("base64") ? Base64.getDecoder().decode(text) : HexFormat.of().parseHex(text);
+    }
+
+    private byte[] encode(byte[] bytes) {
+        String text = options.format.equals("base64") ? Base64.getEncoder().encodeToString(bytes)
+                : HexFormat.of().formatHex(bytes);
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Writer: restore input order, then write through one buffer
+    private void writeInOrder(WritableByteChannel out) throws IOException, InterruptedException {
+        Map<Long, Record> pending = new HashMap<>();
+        ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_BYTES);
+        long next = 0;
+        int finishedWorkers = 0;
+
+        while (finishedWorkers < options.threads) {
+            Record record = take(done);
+            if (record == null) {
+                // Another stage failed; run() reports it
+                return;
+            }
+            if (record == END) {
+                finishedWorkers++;
+                continue;
+            }
+            pending.put(record.seq, record);
+            Record ready;
+            while ((ready = pending.remove(next)) != null) {
+                writeLine(out, buf, ready.result);
+                next++;
+                written.increment();
+                inFlight.release();
+            }
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        if (!pending.isEmpty() && failure.get() == null) {
+            throw new IllegalStateException(pending.size() + " records were never written.");
+        }
+    }
+
+    private static void writeLine(WritableByteChannel out, ByteBuffer buf, byte[] line) throws IOException {
+        if (buf.remaining() < line.length + 1) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            buf.clear();
+        }
+        if (buf.remaining() < line.length + 1) {
+            // Longer than the buffer: write it directly
+            ByteBuffer big = ByteBuffer.allocate(line.length + 1).put(line).put((byte) '\n').flip();
+            while (big.hasRemaining()) {
+                out.write(big);
+            }
+            return;
+        }
+        buf.put(line).put((byte) '\n');
+    }
+
+    private void reportProgress() {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Thread.sleep(1000);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.err.printf("Progress: %d read, %d written (%d errors), %.1f records/s%n", read.get(),
+                        written.sum(), errors.sum(), written.sum() / seconds);
+            }
+        } catch (InterruptedException ex) {
+            // Finished
+        }
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    // Runs one stage; the first failure of any stage stops all the others. last runs either way.
+    private void guard(Step step, Runnable last) {
+        try {
+            step.run();
+        } catch (Throwable ex) {
+            if (failure.compareAndSet(null, ex)) {
+                for (Thread stage : stages) {
+                    if (stage != Thread.currentThread()) {
+                        stage.interrupt();
+                    }
+                }
+            }
+        } finally {
+            if (last != null) {
+                last.run();
+            }
+        }
+    }
+
+    // Tells count consumers of queue that no more records follow
+    private void signalEnd(BlockingQueue<Record> queue, int count) {
+        try {
+            for (int i = 0; i < count && put(queue, END); i++) {
+                // Queued
+            }
+        } catch (InterruptedException ex) {
+            // Only a failure interrupts a stage, and the consumers stop on that by themselves
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Timed waits that give up once any stage has failed
+
+    private boolean put(BlockingQueue<Record> queue, Record record) throws InterruptedException {
+        while (failure.get() == null) {
+            if (queue.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Record take(BlockingQueue<Record> queue) throws InterruptedException {
+        while (failure.get() == null) {
+            Record record = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (record != null) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    private boolean acquireWindow() throws InterruptedException {
+        while (failure.get() == null) {
+            if (inFlight.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--op":
+                    options.operation = Operation.valueOf(value.toUpperCase());
+                    break;
+                case "--key":
+                    options.keyFile = value;
+                    break;
+                case "--in":
+                    options.in = value;
+                    break;
+                case "--out":
+                    options.out = value;
+                    break;
+                case "--format":
+                    if (!value.equals("hex") && !value.equals("base64")) {
+                        throw new IllegalArgumentException("Format must be hex or base64.");
+                    }
+                    options.format = value;
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "--window":
+                    options.window = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.operation == null || options.keyFile == null) {
+            throw new IllegalArgumentException("--op and --key are required.");
+        }
+        if (options.threads < 1 || options.window < 1) {
+            throw new IllegalArgumentException("threads and window must be positive.");
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("Usage: java BatchTool --op encrypt|decrypt --key key.key [--in file|-] [--out file|-]"
+                    + " [--format hex|base64] [--threads N] [--window 4096]");
+            System.exit(1);
+            return;
+        }
+
+        KeyPair keyPair = KeyFile.load(Paths.get(options.keyFile));
+        try (ReadableByteChannel in = options.in.equals("-") ? Channels.newChannel(System.in)
+                : FileChannel.open(Paths.get(options.in), StandardOpenOption.READ);
+                WritableByteChannel out = options.out.equals("-") ? Channels.newChannel(System.out)
+                        : FileChannel.open(Paths.get(options.out), StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            new BatchTool(options, keyPair).run(in, out);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hashing of key IDs onto node IDs, with virtual nodes.
+ *
+ * Each node is placed on a 64-bit ring at `virtualNodes` points (the first 8
+ * bytes of SHA-256("node#i")), and a key belongs to the first point at or after
+ * its own hash. When a node joins it takes over about 1/N of the keys, all from
+ * the other nodes; when it leaves only its own keys move. The virtual nodes keep
+ * the shares even (within a few percent at 128 points per node).
+ *
+ * The ring is copy-on-write: lookups read an immutable snapshot without
+ * locking, and adding or removing a node builds a new one.
+ */
+public class ConsistentHashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final int virtualNodes;
+    private volatile NavigableMap<Long, String> ring = new TreeMap<>();
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("At least one virtual node per node is required.");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Adds a node. Returns false if it was already on the ring.
+     */
+    public synchronized boolean addNode(String nodeId) {
+        if (ring.containsValue(nodeId)) {
+            return false;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(ring);
+        for (int i = 0; i < virtualNodes; i++) {
+            next.put(hash(nodeId + "#" + i), nodeId);
+        }
+        ring = next;
+        return true;
+    }
+
+    /**
+     * Removes a node. Returns false if it was not on the ring.
+     */
+    public synchronized boolean removeNode(String nodeId) {
+        if (!ring.containsValue(nodeId)) {
+            return false;
+        }
+        TreeMap<Long, String> next = new TreeMap<>(ring);
+        next.values().removeIf(nodeId::equals);
+        ring = next;
+        return true;
+    }
+
+    /**
+     * Node that owns the key, or null if the ring is empty.
+     */
+    public String nodeFor(String keyId) {
+        NavigableMap<Long, String> snapshot = ring;
+        if (snapshot.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = snapshot.ceilingEntry(hash(keyId));
+        return entry != null ? entry.getValue() : snapshot.firstEntry().getValue();
+    }
+
+    public Set<String> nodes() {
+        return new TreeSet<>(ring.values());
+    }
+
+    public int size() {
+        return nodes().size();
+    }
+
+    /**
+     * Fraction of the ring each node owns (sums to 1).
+     */
+    public Map<String, Double> shares() {
+        NavigableMap<Long, String> snapshot = ring;
+        Map<String, Double> shares = new HashMap<>();
+        if (snapshot.isEmpty()) {
+            return shares;
+        }
+        // A point owns the arc from the previous point (exclusive) up to itself
+        long previous = snapshot.lastKey();
+        for (Map.Entry<Long, String> entry : snapshot.entrySet()) {
+            // Unsigned arc length; wraps correctly for the first point
+            double arc = unsigned(entry.getKey() - previous);
+            shares.merge(entry.getValue(), arc / 0x1p64, Double::sum);
+            previous = entry.getKey();
+        }
+        if (snapshot.size() == 1) {
+            shares.put(snapshot.firstEntry().getValue(), 1.0);
+        }
+        return shares;
+    }
+
+    private static double unsigned(long x) {
+        return x >= 0 ? x : x + 0x1p64;
+    }
+
+    static long hash(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            // Signed order on the TreeMap; the ring is the same either way
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of OAEP-CRT decryption results, for envelopes (e.g. a wrapped
+ * session key) that are delivered to the same key many times.
+ *
+ * Entries are keyed by key ID plus SHA-256 of the ciphertext (as a k-byte
+ * octet string), and remember the modulus they were computed with, so a key ID
+ * that is re-registered with a different key never returns a stale result.
+ *
+ * The cache is split into independently locked stripes, each an access-ordered
+ * LinkedHashMap holding at most maxEntries / stripes entries (least recently
+ * used evicted first). Entries also expire ttlMillis after they were stored.
+ * Plaintexts are kept as byte arrays and zeroed when they are evicted, expire,
+ * or are invalidated; callers always receive a fresh copy.
+ *
+ * Caching trades the constant cost of a private-key operation for keeping
+ * plaintexts in memory for up to ttlMillis; only enable it where that is
+ * acceptable.
+ */
+public class DecryptCache {
+
+    private static final int DEFAULT_STRIPES = 16;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    });
+
+    private static final class CacheKey {
+        private final String keyId;
+        private final byte[] digest;
+        private final int hash;
+
+        private CacheKey(String keyId, byte[] digest) {
+            this.keyId = keyId;
+            this.digest = digest;
+            this.hash = 31 * keyId.hashCode() + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && keyId.equals(other.keyId) && Arrays.equals(digest, other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final BigInteger modulus;
+        private final byte[] plaintext;
+        private final long expiresAt;
+
+        private Entry(BigInteger modulus, byte[] plaintext, long expiresAt) {
+            this.modulus = modulus;
+            this.plaintext = plaintext;
+            this.expiresAt = expiresAt;
+        }
+
+        private void wipe() {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    // One lock-protected LRU map
+    private final class Stripe extends LinkedHashMap<CacheKey, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private Stripe() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+            if (size() > entriesPerStripe) {
+                eldest.getValue().wipe();
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final RSACipher cipher;
+    private final Stripe[] stripes;
+    private final int entriesPerStripe;
+    private final long ttlNanos;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public DecryptCache(int maxEntries, long ttlMillis) {
+        this(new RSAUtils(), maxEntries, ttlMillis, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param cipher     Cipher used on a miss.
+     * @param maxEntries Upper bound on cached plaintexts (spread over the stripes).
+     * @param ttlMillis  Time after which an entry is no longer served.
+     * @param stripes    Number of independently locked segments.
+     */
+    public DecryptCache(RSACipher cipher, int maxEntries, long ttlMillis, int stripes) {
+        if (maxEntries < 1 || ttlMillis <= 0 || stripes < 1) {
+            throw new IllegalArgumentException("maxEntries, ttlMillis and stripes must be positive.");
+        }
+        this.cipher = cipher;
+        this.stripes = new Stripe[Math.min(stripes, maxEntries)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.entriesPerStripe = (maxEntries + this.stripes.length - 1) / this.stripes.length;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * decryptOAEP_CRT through the cache.
+     *
+     * @param keyId   Identifier of the key (the cache is shared across keys).
+     * @param c       OAEP ciphertext.
+     * @param keyPair The key registered under keyId.
+     * @return The decrypted message.
+     */
+    public BigInteger decryptOAEP_CRT(String keyId, BigInteger c, KeyPair keyPair) {
+        BigInteger cached = get(keyId, c, keyPair);
+        if (cached != null) {
+            return cached;
+        }
+        BigInteger message = cipher.decryptOAEP_CRT(c, keyPair);
+        put(keyId, c, keyPair, message);
+        return message;
+    }
+
+    /**
+     * Cached result for (keyId, c) under keyPair, or null on a miss.
+     */
+    public BigInteger get(String keyId, BigInteger c, KeyPair keyPair) {
+        CacheKey key = key(keyId, c, keyPair.getModulus());
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Entry entry = stripe.get(key);
+            if (entry != null) {
+                if (System.nanoTime() - entry.expiresAt >= 0) {
+                    stripe.remove(key);
+                    entry.wipe();
+                    expirations.increment();
+                } else if (entry.modulus.equals(keyPair.getModulus())) {
+                    hits.increment();
+                    return new BigInteger(1, entry.plaintext);
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Stores the decryption of c under (keyId, keyPair).
+     */
+    public void put(String keyId, BigInteger c, KeyPair keyPair, BigInteger message) {
+        CacheKey key = key(keyId, c, keyPair.getModulus());
+        Entry entry = new Entry(keyPair.getModulus(), message.toByteArray(), System.nanoTime() + ttlNanos);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Entry previous = stripe.put(key, entry);
+            if (previous != null) {
+                previous.wipe();
+            }
+        }
+    }
+
+    /**
+     * Drops (and wipes) every entry of one key, e.g. when the key is removed or replaced.
+     */
+    public void invalidate(String keyId) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Map.Entry<CacheKey, Entry>> it = stripe.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<CacheKey, Entry> e = it.next();
+                    if (e.getKey().keyId.equals(keyId)) {
+                        e.getValue().wipe();
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes expired entries. get() already skips them; this only frees their
+     * memory (and wipes them) early.
+     */
+    public void purgeExpired() {
+        long now = System.nanoTime();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Entry> it = stripe.values().iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    if (now - entry.expiresAt >= 0) {
+                        entry.wipe();
+                        it.remove();
+                        expirations.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (Entry entry : stripe.values()) {
+                    entry.wipe();
+                }
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * @return Counters as a JSON object.
+     */
+    public String statsJson() {
+        return String.format("{\"size\":%d,\"hits\":%d,\"misses\":%d,\"hitRate\":%.4f,\"evictions\":%d,"
+                + "\"expirations\":%d}", size(), getHits(), getMisses(), getHitRate(), getEvictions(),
+                getExpirations());
+    }
+
+    private Stripe stripeFor(CacheKey key) {
+        // Spread the hash so stripes are used evenly for any stripe count
+        int h = key.hash ^ (key.hash >>> 16);
+        return stripes[Math.floorMod(h, stripes.length)];
+    }
+
+    private static CacheKey key(String keyId, BigInteger c, BigInteger n) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        byte[] digest = md.digest(OctetString.toBytes(c, OctetString.length(n)));
+        return new CacheKey(keyId, digest);
+    }
+}
@@ -0,0 +1,543 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seekable encrypted container: a random AES-256 content key wrapped with
+ * RSA-OAEP, followed by fixed-size blocks that are each encrypted on their own
+ * with AES-GCM, and an encrypted block index at the end.
+ *
+ * Layout (all integers big-endian):
+ * <pre>
+ * header:  magic "RSAC" | version (1) | blockSize (4) | wrappedKeyLength (4) | wrappedKey (k)
+ * blocks:  GCM(block 0) | GCM(block 1) | ...        each blockSize + 16 bytes, the last one shorter
+ * index:   GCM(totalLength (8) | blockCount (4) | { offset (8) | plainLength (4) } per block)
+ * footer:  indexOffset (8) | indexLength (4) | magic "RSAC"
+ * </pre>
+ *
+ * Block i uses nonce (0, i) and the index uses nonce (1, 0); the content key is
+ * fresh for every container, so nonces never repeat under a key. Each block's
+ * additional data marks whether it is the last one, so the container cannot be
+ * silently truncated at a block boundary. The index's additional data is the
+ * whole header, so blockSize and the wrapped key are authenticated too, and the
+ * Reader checks that the index describes full blocks laid out back to back.
+ *
+ * A Reader only decrypts the blocks that overlap the requested range, so a point
+ * read costs one block regardless of the container size. Ranges that span
+ * several blocks are decrypted in parallel.
+ */
+public class EncryptedContainer {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x52534143; // "RSAC"
+    // Version 1 did not authenticate the header
+    private static final byte VERSION = 2;
+    private static final int FIXED_HEADER_BYTES = 13;
+    private static final int KEY_BYTES = 32;
+    private static final int TAG_BYTES = 16;
+    private static final int NONCE_BYTES = 12;
+    private static final int FOOTER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 12;
+
+    private static final int DATA_DOMAIN = 0;
+    private static final int INDEX_DOMAIN = 1;
+
+    /**
+     * Creates a container at path, encrypting the content key to the public key (e, n).
+     */
+    public static Writer create(Path path, BigInteger e, BigInteger n, int blockSize) throws IOException {
+        return new Writer(path, e, n, blockSize, RandomSources.getDefault());
+    }
+
+    /**
+     * Opens a container, unwrapping its content key with keyPair.
+     *
+     * @param parallelism Threads used to decrypt multi-block ranges (1 = sequential).
+     */
+    public static Reader open(Path path, KeyPair keyPair, int parallelism) throws IOException {
+        return new Reader(path, keyPair, parallelism);
+    }
+
+    public static Reader open(Path path, KeyPair keyPair) throws IOException {
+        return open(path, keyPair, Runtime.getRuntime().availableProcessors());
+    }
+
+    // ============================================================
+    // WRITER
+    // ============================================================
+
+    /**
+     * Streams plaintext into a new container. Blocks are encrypted as they fill;
+     * close() writes the last block, the index and the footer.
+     */
+    public static final class Writer extends OutputStream {
+        private final FileChannel channel;
+        private final SecretKeySpec key;
+        private final Cipher cipher;
+        private final int blockSize;
+        // Additional data of the index
+        private final byte[] header;
+        private final byte[] buffer;
+        private int buffered;
+
+        private final List<long[]> index = new ArrayList<>();
+        private long position;
+        private long totalLength;
+        private boolean closed;
+
+        private Writer(Path path, BigInteger e, BigInteger n, int blockSize, RandomSource random) throws IOException {
+            if (blockSize < 1) {
+                throw new IllegalArgumentException("Block size must be positive.");
+            }
+            this.blockSize = blockSize;
+            this.buffer = new byte[blockSize];
+
+            byte[] contentKey = new byte[KEY_BYTES];
+            random.nextBytes(contentKey);
+            this.key = new SecretKeySpec(contentKey, "AES");
+            this.cipher = newCipher();
+
+            RSAByteCipher rsa = new RSAByteBufferCipher(random);
+            int k = rsa.modulusLength(n);
+            ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES + k);
+            header.putInt(MAGIC).put(VERSION).putInt(blockSize).putInt(k);
+            rsa.encryptOAEP(ByteBuffer.wrap(contentKey), header, e, n);
+            Arrays.fill(contentKey, (byte) 0);
+            this.header = header.array();
+
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            writeFully(header.flip());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Container is closed.");
+            }
+            while (len > 0) {
+                // A full block is only written once more data arrives, so close() knows which block is last
+                if (buffered == blockSize) {
+                    writeBlock(false);
+                }
+                int n = Math.min(len, blockSize - buffered);
+                System.arraycopy(b, off, buffer, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+                totalLength += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (buffered > 0) {
+                    writeBlock(true);
+                }
+
+                ByteBuffer plainIndex = ByteBuffer.allocate(12 + INDEX_ENTRY_BYTES * index.size());
+                plainIndex.putLong(totalLength).putInt(index.size());
+                for (long[] entry : index) {
+                    plainIndex.putLong(entry[0]).putInt((int) entry[1]);
+                }
+                byte[] encryptedIndex = seal(cipher, key, nonce(INDEX_DOMAIN, 0), header, plainIndex.array(), 0,
+                        plainIndex.capacity());
+                long indexOffset = position;
+                writeFully(ByteBuffer.wrap(encryptedIndex));
+
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+                footer.putLong(indexOffset).putInt(encryptedIndex.length).putInt(MAGIC).flip();
+                writeFully(footer);
+            } finally {
+                Arrays.fill(buffer, (byte) 0);
+                channel.close();
+            }
+        }
+
+        private void writeBlock(boolean last) throws IOException {
+            byte[] sealed = seal(cipher, key, nonce(DATA_DOMAIN, index.size()), finalFlag(last), buffer, 0, buffered);
+            index.add(new long[] { position, buffered });
+            writeFully(ByteBuffer.wrap(sealed));
+            buffered = 0;
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                position += channel.write(src);
+            }
+        }
+    }
+
+    // ============================================================
+    // READER
+    // ============================================================
+
+    /**
+     * Random-access reader. Thread-safe: reads use positional channel I/O and a
+     * cipher per thread.
+     */
+    public static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final SecretKeySpec key;
+        private final int blockSize;
+        private final long length;
+        private final long[] offsets;
+        private final int[] plainLengths;
+        private final ExecutorService executor;
+        private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(EncryptedContainer::newCipher);
+
+        private Reader(Path path, KeyPair keyPair, int parallelism) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer fixed = readAt(0, FIXED_HEADER_BYTES);
+                if (fixed.getInt() != MAGIC) {
+                    throw new IOException(path + " is not an encrypted container.");
+                }
+                if (fixed.get() != VERSION) {
+                    throw new IOException(path + " has an unsupported container version.");
+                }
+                this.blockSize = fixed.getInt();
+                int k = fixed.getInt();
+                if (blockSize < 1) {
+                    throw new IOException("Invalid block size " + blockSize + ".");
+                }
+
+                RSAByteCipher rsa = new RSAByteBufferCipher();
+                if (k != rsa.modulusLength(keyPair.getModulus())) {
+                    throw new IOException("Container was not encrypted for this key.");
+                }
+                byte[] header = new byte[FIXED_HEADER_BYTES + k];
+                readAt(0, header.length).get(header);
+                byte[] contentKey = new byte[KEY_BYTES];
+                ByteBuffer keyOut = ByteBuffer.wrap(contentKey);
+                try {
+                    if (rsa.decryptOAEP_CRT(ByteBuffer.wrap(header, FIXED_HEADER_BYTES, k), keyOut,
+                            keyPair) != KEY_BYTES) {
+                        throw new IOException("Wrapped content key has the wrong length.");
+                    }
+                } catch (RuntimeException ex) {
+                    throw new IOException("Cannot unwrap content key (wrong key?)", ex);
+                }
+                this.key = new SecretKeySpec(contentKey, "AES");
+                Arrays.fill(contentKey, (byte) 0);
+
+                long footerOffset = channel.size() - FOOTER_BYTES;
+                if (footerOffset < header.length) {
+                    throw new IOException("Container footer is missing (truncated file?)");
+                }
+                ByteBuffer footer = readAt(footerOffset, FOOTER_BYTES);
+                long indexOffset = footer.getLong();
+                int indexLength = footer.getInt();
+                if (footer.getInt() != MAGIC) {
+                    throw new IOException("Container footer is missing (truncated file?)");
+                }
+                // The index sits right in front of the footer and holds at least its two counts
+                if (indexLength < TAG_BYTES + 12 || indexOffset != footerOffset - indexLength) {
+                    throw new IOException("Invalid index location.");
+                }
+                byte[] sealedIndex = new byte[indexLength];
+                readAt(indexOffset, indexLength).get(sealedIndex);
+                ByteBuffer plainIndex = ByteBuffer.wrap(open(ciphers.get(), key, nonce(INDEX_DOMAIN, 0), header,
+                        sealedIndex, 0, indexLength));
+
+                this.length = plainIndex.getLong();
+                int blockCount = plainIndex.getInt();
+                if (blockCount < 0 || plainIndex.remaining() != (long) INDEX_ENTRY_BYTES * blockCount) {
+                    throw new IOException("Invalid index length.");
+                }
+                this.offsets = new long[blockCount];
+                this.plainLengths = new int[blockCount];
+                long expectedOffset = header.length;
+                long total = 0;
+                for (int i = 0; i < blockCount; i++) {
+                    offsets[i] = plainIndex.getLong();
+                    plainLengths[i] = plainIndex.getInt();
+                    // Blocks are back to back, and all but the last one are full
+                    boolean last = i == blockCount - 1;
+                    if (offsets[i] != expectedOffset || plainLengths[i] > blockSize
+                            || (last ? plainLengths[i] < 1 : plainLengths[i] != blockSize)) {
+                        throw new IOException("Invalid index entry for block " + i + ".");
+                    }
+                    expectedOffset += plainLengths[i] + TAG_BYTES;
+                    total += plainLengths[i];
+                }
+                if (expectedOffset != indexOffset || total != length) {
+                    throw new IOException("Index does not match the container length.");
+                }
+            } catch (IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+            this.executor = parallelism > 1
+                    ? Executors.newFixedThreadPool(parallelism, VirtualThreads.daemonThreads("container-reader"))
+                    : null;
+        }
+
+        /**
+         * Plaintext length in bytes.
+         */
+        public long size() {
+            return length;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        public int getBlockCount() {
+            return offsets.length;
+        }
+
+        /**
+         * Reads up to len plaintext bytes starting at position, decrypting only
+         * the blocks that overlap the range.
+         *
+         * @return Number of bytes read, or -1 if position is at or past the end.
+         */
+        public int read(long position, byte[] dst, int off, int len) throws IOException {
+            if (position < 0 || off < 0 || len < 0 || off + len > dst.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            if (n == 0) {
+                return 0;
+            }
+            int first = (int) (position / blockSize);
+            int last = (int) ((position + n - 1) / blockSize);
+
+            if (executor == null || first == last) {
+                for (int b = first; b <= last; b++) {
+                    copyBlock(b, position, dst, off, n);
+                }
+                return n;
+            }
+
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int b = first; b <= last; b++) {
+                int block = b;
+                tasks.add(executor.submit(() -> {
+                    copyBlock(block, position, dst, off, n);
+                    return null;
+                }));
+            }
+            try {
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading", ex);
+            } catch (ExecutionException ex) {
+                for (Future<?> task : tasks) {
+                    task.cancel(true);
+                }
+                Throwable cause = ex.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+            return n;
+        }
+
+        /**
+         * Decrypts one whole block.
+         */
+        public byte[] readBlock(int block) throws IOException {
+            if (block < 0 || block >= offsets.length) {
+                throw new IndexOutOfBoundsException("Block " + block + " of " + offsets.length);
+            }
+            int sealedLength = plainLengths[block] + TAG_BYTES;
+            byte[] sealed = new byte[sealedLength];
+            readAt(offsets[block], sealedLength).get(sealed);
+            return open(ciphers.get(), key, nonce(DATA_DOMAIN, block), finalFlag(block == offsets.length - 1),
+                    sealed, 0, sealedLength);
+        }
+
+        /**
+         * Stream of the plaintext from position to the end.
+         */
+        public InputStream openStream(long position) {
+            return new InputStream() {
+                private long next = position;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    // Stay within one block per call so sequential streaming decrypts each block once
+                    long blockEnd = (next / blockSize + 1) * blockSize;
+                    int n = Reader.this.read(next, b, off, (int) Math.min(len, blockEnd - next));
+                    if (n > 0) {
+                        next += n;
+                    }
+                    return n;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            channel.close();
+        }
+
+        // Copies the part of block b inside [position, position + n) into dst
+        private void copyBlock(int b, long position, byte[] dst, int off, int n) throws IOException {
+            byte[] plain = readBlock(b);
+            long blockStart = (long) b * blockSize;
+            long from = Math.max(position, blockStart);
+            long to = Math.min(position + n, blockStart + plain.length);
+            System.arraycopy(plain, (int) (from - blockStart), dst, off + (int) (from - position), (int) (to - from));
+        }
+
+        private ByteBuffer readAt(long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                int read = channel.read(buf, position + buf.position());
+                if (read < 0) {
+                    throw new EOFException("Container is truncated.");
+                }
+            }
+            return buf.flip();
+        }
+    }
+
+    // ============================================================
+    // AES-GCM HELPERS
+    // ============================================================
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES/GCM is not available", ex);
+        }
+    }
+
+    private static byte[] nonce(int domain, long counter) {
+        return ByteBuffer.allocate(NONCE_BYTES).putInt(domain).putLong(counter).array();
+    }
+
+    private static byte[] finalFlag(boolean last) {
+        return new byte[] { (byte) (last ? 1 : 0) };
+    }
+
+    private static byte[] seal(Cipher cipher, SecretKeySpec key, byte[] nonce, byte[] aad, byte[] in, int off,
+            int len) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            return cipher.doFinal(in, off, len);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES-GCM encryption failed", ex);
+        }
+    }
+
+    private static byte[] open(Cipher cipher, SecretKeySpec key, byte[] nonce, byte[] aad, byte[] in, int off,
+            int len) throws IOException {
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            return cipher.doFinal(in, off, len);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Container block failed authentication", ex);
+        }
+    }
+
+    /**
+     * Usage:
+     * <pre>
+     * java EncryptedContainer encrypt &lt;input&gt; &lt;container&gt; &lt;key file&gt; [blockSize]
+     * java EncryptedContainer decrypt &lt;container&gt; &lt;output&gt; &lt;key file&gt;
+     * java EncryptedContainer read    &lt;container&gt; &lt;key file&gt; &lt;offset&gt; &lt;length&gt;
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: java EncryptedContainer encrypt <input> <container> <key file> [blockSize]");
+            System.err.println("       java EncryptedContainer decrypt <container> <output> <key file>");
+            System.err.println("       java EncryptedContainer read <container> <key file> <offset> <length>");
+            System.exit(1);
+        }
+
+        switch (args[0]) {
+            case "encrypt": {
+                KeyPair keyPair = KeyFile.load(Paths.get(args[3]));
+                int blockSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_BLOCK_SIZE;
+                try (InputStream in = Files.newInputStream(Paths.get(args[1]));
+                        Writer out = create(Paths.get(args[2]), keyPair.getEncryptKey(), keyPair.getModulus(),
+                                blockSize)) {
+                    in.transferTo(out);
+                }
+                break;
+            }
+            case "decrypt": {
+                KeyPair keyPair = KeyFile.load(Paths.get(args[3]));
+                try (Reader reader = open(Paths.get(args[1]), keyPair, 1);
+                        InputStream in = reader.openStream(0)) {
+                    Files.copy(in, Paths.get(args[2]), StandardCopyOption.REPLACE_EXISTING);
+                }
+                break;
+            }
+            case "read": {
+                if (args.length < 5) {
+                    throw new IllegalArgumentException("read needs <offset> and <length>.");
+                }
+                KeyPair keyPair = KeyFile.load(Paths.get(args[2]));
+                try (Reader reader = open(Paths.get(args[1]), keyPair)) {
+                    byte[] out = new byte[Integer.parseInt(args[4])];
+                    int n = reader.read(Long.parseLong(args[3]), out, 0, out.length);
+                    System.out.write(out, 0, Math.max(n, 0));
+                    System.out.flush();
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HMAC_DRBG with SHA-256 as specified in NIST SP 800-90A (section 10.1.2).
+ *
+ * An instance is not thread-safe; RandomSources gives every thread its own.
+ * When an entropy supplier is given, the generator reseeds itself after
+ * {@code reseedInterval} generate calls. Without one it is fully deterministic
+ * (used for reproducible benchmarks) and never reseeds.
+ */
+public class HmacDrbg implements RandomSource {
+
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final int OUT_LEN = 32;
+    // SP 800-90A limit on bytes returned by one generate call (2^19 bits)
+    private static final int MAX_BYTES_PER_REQUEST = 1 << 16;
+
+    private final Mac mac;
+    private final Supplier<byte[]> entropy;
+    private final long reseedInterval;
+    private byte[] key = new byte[OUT_LEN];
+    private byte[] value = new byte[OUT_LEN];
+    private long reseedCounter;
+
+    /**
+     * Instantiate_function: seed_material = entropy || nonce || personalization.
+     *
+     * @param entropyInput    Initial entropy (at least 32 bytes for full security).
+     * @param nonce           Nonce (may be empty).
+     * @param personalization Personalization string (may be empty).
+     * @param entropy         Source of fresh entropy for reseeding, or null for a deterministic generator.
+     * @param reseedInterval  Generate calls allowed between reseeds.
+     */
+    public HmacDrbg(byte[] entropyInput, byte[] nonce, byte[] personalization, Supplier<byte[]> entropy,
+            long reseedInterval) {
+        try {
+            this.mac = Mac.getInstance(HMAC_ALGORITHM);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("HmacSHA256 is not available", ex);
+        }
+        this.entropy = entropy;
+        this.reseedInterval = reseedInterval;
+
+        Arrays.fill(key, (byte) 0x00);
+        Arrays.fill(value, (byte) 0x01);
+        update(concat(entropyInput, nonce, personalization));
+        reseedCounter = 1;
+    }
+
+    /**
+     * Reseed_function: seed_material = entropy || additional.
+     */
+    public void reseed(byte[] entropyInput, byte[] additional) {
+        update(concat(entropyInput, additional));
+        reseedCounter = 1;
+    }
+
+    /**
+     * Generate_function without additional input.
+     */
+    @Override
+    public void nextBytes(byte[] bytes) {
+        for (int offset = 0; offset < bytes.length; offset += MAX_BYTES_PER_REQUEST) {
+            generate(bytes, offset, Math.min(MAX_BYTES_PER_REQUEST, bytes.length - offset), null);
+        }
+    }
+
+    /**
+     * Generate_function.
+     *
+     * @param out        Destination array.
+     * @param offset     Start position in out.
+     * @param length     Number of bytes (at most 2^16).
+     * @param additional Additional input, or null.
+     */
+    public void generate(byte[] out, int offset, int length, byte[] additional) {
+        if (length > MAX_BYTES_PER_REQUEST) {
+            throw new IllegalArgumentException("At most " + MAX_BYTES_PER_REQUEST + " bytes per request.");
+        }
+        if (reseedCounter > reseedInterval && entropy != null) {
+            reseed(entropy.get(), additional);
+            additional = null;
+        }
+        if (additional != null && additional.length > 0) {
+            update(additional);
+        }
+
+        int produced = 0;
+        while (produced < length) {
+            value = hmac(key, value);
+            int n = Math.min(OUT_LEN, length - produced);
+            System.arraycopy(value, 0, out, offset + produced, n);
+            produced += n;
+        }
+
+        update(additional);
+        reseedCounter++;
+    }
+
+    // HMAC_DRBG_Update
+    private void update(byte[] provided) {
+        boolean hasData = provided != null && provided.length > 0;
+        key = hmac(key, value, (byte) 0x00, provided);
+        value = hmac(key, value);
+        if (!hasData) {
+            return;
+        }
+        key = hmac(key, value, (byte) 0x01, provided);
+        value = hmac(key, value);
+    }
+
+    private byte[] hmac(byte[] k, byte[] data) {
+        return hmac(k, data, null, null);
+    }
+
+    private byte[] hmac(byte[] k, byte[] v, Byte separator, byte[] provided) {
+        try {
+            mac.init(new SecretKeySpec(k, HMAC_ALGORITHM));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("HMAC key rejected", ex);
+        }
+        mac.update(v);
+        if (separator != null) {
+            mac.update(separator);
+        }
+        if (provided != null) {
+            mac.update(provided);
+        }
+        return mac.doFinal();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part == null ? 0 : part.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            if (part != null) {
+                System.arraycopy(part, 0, result, offset, part.length);
+                offset += part.length;
+            }
+        }
+        return result;
+    }
+}
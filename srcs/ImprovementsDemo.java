@@ -100,37 +100,34 @@ class ImprovementsDemo {
         System.out.println("\n[3] CRT Decryption Speed Test");
         System.out.println("Using a standard encrypted message for comparison...");
 
-        // Create a standard encrypted message for speed testing
-        BigInteger testCipher = rsaUtils.encrypt(message, strongKeyPair.getEncryptKey(),
-                strongKeyPair.getModulus());
-
-        int iterations = 1000;
-        System.out.println("Running " + iterations + " decryptions...");
-
-        // Standard
-        long startStd = System.currentTimeMillis();
-        for (int i = 0; i < iterations; i++) {
-            rsaUtils.decrypt(testCipher, strongKeyPair.getDecryptKey(), strongKeyPair.getModulus());
+        // Warmed-up, percentile-based comparison (see LoadGenerator)
+        LoadGenerator.Options options = new LoadGenerator.Options();
+        options.bits = modulusBitLength;
+        options.warmupSeconds = 2;
+        options.durationSeconds = 5;
+
+        options.operation = LoadGenerator.Operation.DECRYPT;
+        System.out.println("Running standard decryption (2 s warmup, 5 s measured)...");
+        LoadGenerator.Report stdReport;
+        LoadGenerator.Report crtReport;
+        try {
+            stdReport = LoadGenerator.run(options, strongKeyPair);
+            System.out.print(stdReport.toText());
+
+            options.operation = LoadGenerator.Operation.DECRYPT_CRT;
+            System.out.println("Running CRT decryption (2 s warmup, 5 s measured)...");
+            crtReport = LoadGenerator.run(options, strongKeyPair);
+            System.out.print(crtReport.toText());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            scanner.close();
+            return;
         }
-        long endStd = System.currentTimeMillis();
-        long timeStd = endStd - startStd;
 
-        // CRT
-        long startCRT = System.currentTimeMillis();
-        for (int i = 0; i < iterations; i++) {
-            rsaUtils.decryptCRT(testCipher, strongKeyPair);
-        }
-        long endCRT = System.currentTimeMillis();
-        long timeCRT = endCRT - startCRT;
-
-        System.out.println("Standard Decryption Time: " + timeStd + " ms");
-        System.out.println("CRT Decryption Time:      " + timeCRT + " ms");
-        if (timeCRT < timeStd) {
-            System.out.printf("Speedup: %.2fx faster\n", (double) timeStd / timeCRT);
-        } else {
-            System.out.println(
-                    "Note: CRT might be slower for small keys or due to overhead in this Java implementation.");
-        }
+        double p50Std = stdReport.getHistogram().getValueAtPercentile(50);
+        double p50CRT = crtReport.getHistogram().getValueAtPercentile(50);
+        System.out.printf("Speedup (p50 latency): %.2fx%n", p50Std / p50CRT);
+        System.out.printf("Speedup (throughput):  %.2fx%n", crtReport.getThroughput() / stdReport.getThroughput());
 
         scanner.close();
     }
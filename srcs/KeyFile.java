@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Reads and writes KeyPairs as small text files (one hex value per line):
+ *
+ * <pre>
+ * p=...
+ * q=...
+ * e=...
+ * batch=...,...   (BATCH keys only: all public exponents, e first)
+ * </pre>
+ *
+ * d, n and the CRT parameters are recomputed on load, and a key saved with
+ * batch= loads back as a BATCH key with the same exponents. A directory of
+ * {@code <keyId>.key} files is used as a simple key store by the service tools.
+ */
+public class KeyFile {
+
+    public static final String EXTENSION = ".key";
+
+    // The file holds p and q
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    /**
+     * Writes the key to path, readable and writable by the owner only (on POSIX
+     * file systems): a new file is created with those permissions, an existing
+     * one is restricted before it is truncated and rewritten.
+     */
+    public static void save(KeyPair keyPair, Path path) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("p", keyPair.getP().toString(16));
+        props.setProperty("q", keyPair.getQ().toString(16));
+        props.setProperty("e", keyPair.getEncryptKey().toString(16));
+        BigInteger[] batch = keyPair.getBatchExponents();
+        if (batch != null) {
+            StringBuilder sb = new StringBuilder();
+            for (BigInteger e : batch) {
+                sb.append(sb.length() == 0 ? "" : ",").append(e.toString(16));
+            }
+            props.setProperty("batch", sb.toString());
+        }
+
+        if (Files.getFileAttributeView(path.toAbsolutePath().getParent(), PosixFileAttributeView.class) != null) {
+            try {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (FileAlreadyExistsException ex) {
+                Files.setPosixFilePermissions(path, OWNER_ONLY);
+            }
+        }
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            props.store(writer, "RSA private key - keep secret");
+        }
+    }
+
+    public static KeyPair load(Path path) throws IOException {
+        Properties props = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+            props.load(reader);
+        }
+        String p = props.getProperty("p");
+        String q = props.getProperty("q");
+        String e = props.getProperty("e");
+        if (p == null || q == null || e == null) {
+            throw new IOException("Key file " + path + " must contain p, q and e.");
+        }
+        String batch = props.getProperty("batch");
+        try {
+            BigInteger prime1 = new BigInteger(p, 16);
+            BigInteger prime2 = new BigInteger(q, 16);
+            BigInteger exponent = new BigInteger(e, 16);
+            if (batch == null) {
+                return KeyPair.fromPrimes(prime1, prime2, exponent);
+            }
+            String[] parts = batch.split(",");
+            BigInteger[] exponents = new BigInteger[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                exponents[i] = new BigInteger(parts[i].trim(), 16);
+            }
+            if (!exponents[0].equals(exponent)) {
+                throw new IOException("Key file " + path + ": e must be the first batch exponent.");
+            }
+            return KeyPair.fromPrimes(prime1, prime2, exponents);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Key file " + path + " is not a valid key: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Loads every {@code *.key} file in a directory.
+     *
+     * @param dir Directory to scan.
+     * @return Map from key ID (file name without extension) to KeyPair.
+     */
+    public static Map<String, KeyPair> loadDirectory(Path dir) throws IOException {
+        Map<String, KeyPair> keys = new LinkedHashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                keys.put(name.substring(0, name.length() - EXTENSION.length()), load(file));
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,307 @@
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Key pair generation as a pipeline of stages, each with its own queue:
+ * <pre>
+ * CANDIDATE -> SIEVE -> PRIMALITY -> PRIME_QUALIFICATION -> PAIR_QUALIFICATION
+ * random odd   small     Miller-    p-1 not smooth,          p != q,
+ * numbers      factors   Rabin      gcd(e, p-1) = 1          |p - q| large enough
+ * </pre>
+ * A prime that fails a check is dropped on its own; whatever already passed
+ * stays queued. In particular a pair that fails only replaces q and keeps p,
+ * where the old do/while loops in KeyPair regenerated both primes. Since e is
+ * checked against p-1 and q-1 separately, gcd(e, phi) = 1 needs no pair check.
+ *
+ * Strong primes come out of Gordon's construction (PrimeGenerator), which does
+ * its own candidate search, sieving and Miller-Rabin; in that mode the pipeline
+ * starts at PRIME_QUALIFICATION and skips the smoothness scan, since p-1 has a
+ * large factor by construction.
+ *
+ * Every stage counts what it was offered and what it rejected, per pipeline
+ * and in process-wide totals. A strong pipeline counts nothing for CANDIDATE,
+ * SIEVE and PRIMALITY (see {@link #applies(Stage)}): those stages do not run,
+ * and Gordon's search is not split into comparable steps.
+ */
+public class KeyGenPipeline {
+
+    public enum Stage {
+        CANDIDATE,
+        SIEVE,
+        PRIMALITY,
+        PRIME_QUALIFICATION,
+        PAIR_QUALIFICATION
+    }
+
+    // Candidates drawn at once when the sieve and primality queues run dry
+    private static final int CANDIDATE_BATCH = 64;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private static final LongAdder[] TOTAL_OFFERED = adders();
+    private static final LongAdder[] TOTAL_REJECTED = adders();
+
+    private final int primeBits;
+    private final BigInteger e;
+    private final boolean strong;
+    private final int certainty;
+    private final int minDistanceBits;
+    private final RandomSource random;
+
+    private final ArrayDeque<BigInteger> sieveQueue = new ArrayDeque<>();
+    private final ArrayDeque<BigInteger> primalityQueue = new ArrayDeque<>();
+    private final ArrayDeque<BigInteger> qualificationQueue = new ArrayDeque<>();
+
+    private final long[] offered = new long[STAGES.length];
+    private final long[] rejected = new long[STAGES.length];
+
+    /**
+     * @param primeBits       Size of each prime.
+     * @param e               Public exponent; each p-1 must be coprime with it.
+     * @param strong          Use Gordon strong primes instead of random primes.
+     * @param certainty       Miller-Rabin rounds per candidate.
+     * @param minDistanceBits Minimum bit length of |p - q|.
+     * @param random          Randomness source.
+     */
+    public KeyGenPipeline(int primeBits, BigInteger e, boolean strong, int certainty, int minDistanceBits,
+            RandomSource random) {
+        if (primeBits < 16) {
+            throw new IllegalArgumentException("Primes need at least 16 bits.");
+        }
+        this.primeBits = primeBits;
+        this.e = e;
+        this.strong = strong;
+        this.certainty = certainty;
+        this.minDistanceBits = minDistanceBits;
+        this.random = random;
+    }
+
+    /**
+     * Runs the pipeline until it has a qualified pair and builds the key from it.
+     */
+    public KeyPair generate() {
+        BigInteger p = nextQualifiedPrime();
+        while (true) {
+            BigInteger q = nextQualifiedPrime();
+            boolean farApart = !p.equals(q) && p.subtract(q).abs().bitLength() >= minDistanceBits;
+            if (accept(Stage.PAIR_QUALIFICATION, farApart)) {
+                return KeyPair.fromPrimes(p, q, e);
+            }
+            // Only q is replaced; p already passed every single-prime check
+        }
+    }
+
+    // Pulls items through the stages until one prime leaves PRIME_QUALIFICATION
+    private BigInteger nextQualifiedPrime() {
+        while (true) {
+            if (qualificationQueue.isEmpty()) {
+                fillQualificationQueue();
+            }
+            BigInteger prime = qualificationQueue.poll();
+            BigInteger pMinus1 = prime.subtract(BigInteger.ONE);
+            boolean ok = Utils.gcd(e, pMinus1).equals(BigInteger.ONE)
+                    && (strong || RSAPrimeVerifier.verifyPrimeSmoothness(prime));
+            if (accept(Stage.PRIME_QUALIFICATION, ok)) {
+                return prime;
+            }
+        }
+    }
+
+    private void fillQualificationQueue() {
+        if (strong) {
+            // Gordon's search only returns primes; its internal work is not counted as pipeline stages
+            qualificationQueue.add(PrimeGenerator.generateStrongPrime(primeBits, certainty, random));
+            return;
+        }
+        while (qualificationQueue.isEmpty()) {
+            if (primalityQueue.isEmpty()) {
+                fillPrimalityQueue();
+            }
+            BigInteger candidate = primalityQueue.poll();
+            if (accept(Stage.PRIMALITY, PrimeGenerator.isProbablePrime(candidate, certainty, random))) {
+                qualificationQueue.add(candidate);
+            }
+        }
+    }
+
+    private void fillPrimalityQueue() {
+        while (primalityQueue.isEmpty()) {
+            if (sieveQueue.isEmpty()) {
+                for (int i = 0; i < CANDIDATE_BATCH; i++) {
+                    // Every drawn candidate moves on; the stage only counts them
+                    accept(Stage.CANDIDATE, true);
+                    sieveQueue.add(PrimeGenerator.randomOdd(primeBits, random));
+                }
+            }
+            while (!sieveQueue.isEmpty()) {
+                BigInteger candidate = sieveQueue.poll();
+                if (accept(Stage.SIEVE, !PrimeGenerator.hasSmallFactor(candidate))) {
+                    primalityQueue.add(candidate);
+                }
+            }
+        }
+    }
+
+    // Counts one item through a stage and passes the verdict on
+    private boolean accept(Stage stage, boolean passed) {
+        int i = stage.ordinal();
+        offered[i]++;
+        TOTAL_OFFERED[i].increment();
+        if (!passed) {
+            rejected[i]++;
+            TOTAL_REJECTED[i].increment();
+        }
+        return passed;
+    }
+
+    /**
+     * Whether this pipeline runs the stage; a strong pipeline starts at
+     * PRIME_QUALIFICATION.
+     */
+    public boolean applies(Stage stage) {
+        return !strong || stage.compareTo(Stage.PRIME_QUALIFICATION) >= 0;
+    }
+
+    public long offered(Stage stage) {
+        return offered[stage.ordinal()];
+    }
+
+    public long rejected(Stage stage) {
+        return rejected[stage.ordinal()];
+    }
+
+    /**
+     * Rejected / offered, or NaN for a stage this pipeline does not run.
+     */
+    public double rejectionRate(Stage stage) {
+        return applies(stage) ? rate(offered(stage), rejected(stage)) : Double.NaN;
+    }
+
+    public static long totalOffered(Stage stage) {
+        return TOTAL_OFFERED[stage.ordinal()].sum();
+    }
+
+    public static long totalRejected(Stage stage) {
+        return TOTAL_REJECTED[stage.ordinal()].sum();
+    }
+
+    public static double totalRejectionRate(Stage stage) {
+        return rate(totalOffered(stage), totalRejected(stage));
+    }
+
+    /**
+     * Process-wide counters of every stage, one line each. CANDIDATE, SIEVE and
+     * PRIMALITY only include pipelines of random (non-strong) primes.
+     */
+    public static String totalsReport() {
+        long[] totalOffered = new long[STAGES.length];
+        long[] totalRejected = new long[STAGES.length];
+        for (Stage stage : STAGES) {
+            totalOffered[stage.ordinal()] = totalOffered(stage);
+            totalRejected[stage.ordinal()] = totalRejected(stage);
+        }
+        return report(totalOffered, totalRejected, false);
+    }
+
+    @Override
+    public String toString() {
+        return report(offered, rejected, strong);
+    }
+
+    private static String report(long[] offered, long[] rejected, boolean strong) {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : STAGES) {
+            int i = stage.ordinal();
+            if (strong && stage.compareTo(Stage.PRIME_QUALIFICATION) < 0) {
+                sb.append(String.format("  %-20s not applicable (inside Gordon's search)%n", stage));
+                continue;
+            }
+            sb.append(String.format("  %-20s offered %9d  rejected %9d  (%5.1f%%)%n", stage, offered[i], rejected[i],
+                    100 * rate(offered[i], rejected[i])));
+        }
+        return sb.toString();
+    }
+
+    private static double rate(long offered, long rejected) {
+        return offered == 0 ? 0 : (double) rejected / offered;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] adders = new LongAdder[STAGES.length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Usage: java KeyGenPipeline [bits] [keys]
+     * Generates keys the old way (regenerate both primes on any failure) and with
+     * the pipeline from the same seeds, and prints mean and spread of the time
+     * per key plus the pipeline's stage counters.
+     */
+    public static void main(String[] args) {
+        int bits = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        BigInteger e = BigInteger.valueOf(65537);
+
+        // Warm-up so both paths are compiled
+        for (int i = 0; i < 3; i++) {
+            regenerateBoth(bits, e, RandomSources.seeded(-1 - i));
+            KeyPair.generateRandomKeyPair(bits, RandomSources.seeded(-1 - i));
+        }
+
+        long[] oldTimes = new long[keys];
+        long[] newTimes = new long[keys];
+        long[] before = new long[STAGES.length];
+        for (Stage stage : STAGES) {
+            before[stage.ordinal()] = totalOffered(stage);
+        }
+        for (int i = 0; i < keys; i++) {
+            long start = System.nanoTime();
+            regenerateBoth(bits, e, RandomSources.seeded(i));
+            oldTimes[i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            KeyPair.generateRandomKeyPair(bits, RandomSources.seeded(i));
+            newTimes[i] = System.nanoTime() - start;
+        }
+        System.out.printf("%d-bit keys, %d each%n", bits, keys);
+        printTimes("regenerate both", oldTimes);
+        printTimes("pipeline       ", newTimes);
+        System.out.printf("Miller-Rabin candidates per key: %.1f%n",
+                (double) (totalOffered(Stage.PRIMALITY) - before[Stage.PRIMALITY.ordinal()]) / keys);
+        System.out.print(totalsReport());
+    }
+
+    // The loop KeyPair.generateRandomKeyPair used before the pipeline
+    private static KeyPair regenerateBoth(int bits, BigInteger e, RandomSource random) {
+        BigInteger p;
+        BigInteger q;
+        BigInteger phi;
+        do {
+            p = PrimeGenerator.generatePrime(bits / 2, random);
+            q = PrimeGenerator.generatePrime(bits / 2, random);
+            while (p.equals(q)) {
+                q = PrimeGenerator.generatePrime(bits / 2, random);
+            }
+            phi = p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE));
+        } while (!RSAPrimeVerifier.verifyPrimeForRSA(p, q) || !Utils.gcd(e, phi).equals(BigInteger.ONE));
+        return KeyPair.fromPrimes(p, q, e);
+    }
+
+    private static void printTimes(String label, long[] times) {
+        double mean = 0;
+        for (long t : times) {
+            mean += t;
+        }
+        mean /= times.length;
+        double variance = 0;
+        for (long t : times) {
+            variance += (t - mean) * (t - mean);
+        }
+        double stdDev = Math.sqrt(variance / times.length);
+        System.out.printf("  %s: mean %.1f ms, std dev %.1f ms (%.0f%%)%n", label, mean / 1e6, stdDev / 1e6,
+                100 * stdDev / mean);
+    }
+}
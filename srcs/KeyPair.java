@@ -1,6 +1,34 @@
 import java.math.BigInteger;
 
 public class KeyPair {
+
+    /**
+     * How the private exponent was chosen.
+     *
+     * STANDARD:   e = 65537, d = e^-1 mod phi (dP, dQ about as long as p and q).
+     * REBALANCED: Wiener's rebalanced RSA. dP and dQ are short (at least
+     *             MIN_REBALANCED_CRT_BITS), d is derived from them by CRT and e is
+     *             about as long as n. CRT decryption gets several times faster,
+     *             encryption and verification get much slower (full-size e).
+     * BATCH:      Fiat's batch RSA. One modulus, several small pairwise-coprime
+     *             public exponents (one per sender class), all coprime with phi.
+     *             RSAUtils.decryptBatch decrypts one ciphertext per exponent
+     *             with a single full-size exponentiation.
+     */
+    public enum Mode {
+        STANDARD,
+        REBALANCED,
+        BATCH
+    }
+
+    // Shortest CRT exponents accepted for rebalanced keys. The best known attacks on
+    // short dP, dQ run in about 2^(bits / 2), so 160 bits keeps them at 2^80.
+    public static final int MIN_REBALANCED_CRT_BITS = 160;
+    public static final int DEFAULT_REBALANCED_CRT_BITS = 256;
+
+    // Public exponents of a batch key: the first odd primes, pairwise coprime
+    public static final int[] DEFAULT_BATCH_EXPONENTS = { 3, 5, 7, 11, 13, 17, 19, 23 };
+
     // p and q are 2 generated primes, together with e to calculate d
     private BigInteger p;
     private BigInteger q;
@@ -10,6 +38,15 @@ public class KeyPair {
     private BigInteger decryptKey;
     // n (modulus)
     private BigInteger modulus;
+    // CRT parameters, computed once per key so repeated decryptions reuse them
+    private BigInteger dP;
+    private BigInteger dQ;
+    private BigInteger qInv;
+    // Public exponents of a BATCH key (encryptKey is the first); null otherwise
+    private BigInteger[] batchExponents;
+    // Montgomery contexts of p and q, built on first use and dropped with the key
+    private volatile Montgomery montgomeryP;
+    private volatile Montgomery montgomeryQ;
 
     private KeyPair(BigInteger p, BigInteger q, BigInteger e, BigInteger d, BigInteger n) {
         this.p = p;
@@ -17,6 +54,11 @@ public class KeyPair {
         this.encryptKey = e;
         this.decryptKey = d;
         this.modulus = n;
+
+        // dP = d mod (p-1), dQ = d mod (q-1), qInv = q^-1 mod p
+        this.dP = d.mod(p.subtract(BigInteger.ONE));
+        this.dQ = d.mod(q.subtract(BigInteger.ONE));
+        this.qInv = Utils.modMulInverse(q, p);
     }
 
     // // Find public key e such that gcd(e, phi) = 1
@@ -53,38 +95,79 @@ public class KeyPair {
         return Utils.modMulInverse(e, phi);
     }
 
-    // Generate random RSA key pair using two random primes p, q
-    public static KeyPair generateRandomKeyPair(int bitLength) {
-        BigInteger p;
-        BigInteger q;
-        BigInteger e;
-        BigInteger phi;
-        BigInteger n;
-        do {
-            // Generate two large primes p and q
-            p = PrimeGenerator.generatePrime(bitLength / 2);
-            q = PrimeGenerator.generatePrime(bitLength / 2);
+    /**
+     * Rebuilds a KeyPair from its primes and public exponent (e.g. when loading a
+     * stored key). The private exponent and CRT parameters are recomputed.
+     *
+     * @param p First prime.
+     * @param q Second prime.
+     * @param e Public exponent, must be coprime with (p-1)(q-1).
+     * @return The KeyPair for n = p * q.
+     */
+    public static KeyPair fromPrimes(BigInteger p, BigInteger q, BigInteger e) {
+        if (p.equals(q)) {
+            throw new IllegalArgumentException("p and q must be distinct.");
+        }
+        BigInteger phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
+        if (!Utils.gcd(e, phi).equals(BigInteger.ONE)) {
+            throw new IllegalArgumentException("Public exponent e is not coprime with phi.");
+        }
+        return new KeyPair(p, q, e, generateDecryptKey(e, phi), p.multiply(q));
+    }
 
-            // Ensure p != q
-            while (p.equals(q)) {
-                q = PrimeGenerator.generatePrime(bitLength / 2);
+    /**
+     * Rebuilds a BATCH KeyPair from its primes and public exponents (e.g. when
+     * loading a stored batch key). encryptKey, d and the CRT parameters belong to
+     * exponents[0].
+     *
+     * @param p         First prime.
+     * @param q         Second prime.
+     * @param exponents Public exponents (at least 3), pairwise coprime and coprime with (p-1)(q-1).
+     * @return The batch KeyPair for n = p * q.
+     */
+    public static KeyPair fromPrimes(BigInteger p, BigInteger q, BigInteger[] exponents) {
+        BigInteger[] es = checkBatchExponents(exponents);
+        KeyPair batch = fromPrimes(p, q, es[0]);
+        BigInteger phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
+        for (int i = 1; i < es.length; i++) {
+            if (!Utils.gcd(es[i], phi).equals(BigInteger.ONE)) {
+                throw new IllegalArgumentException("Batch exponent " + es[i] + " is not coprime with phi.");
             }
+        }
+        batch.batchExponents = es;
+        return batch;
+    }
 
-            // Compute n = p * q
-            n = p.multiply(q);
-
-            // Compute φ(n) = (p - 1)(q - 1)
-            phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
-
-            // Generate e
-            e = BigInteger.valueOf(65537);
-
-        } while (!RSAPrimeVerifier.verifyPrimeForRSA(p, q) || !Utils.gcd(e, phi).equals(BigInteger.ONE));
+    // Copy of exponents, checked to be non-empty, at least 3 and pairwise coprime
+    private static BigInteger[] checkBatchExponents(BigInteger[] exponents) {
+        if (exponents.length == 0) {
+            throw new IllegalArgumentException("A batch key needs at least one exponent.");
+        }
+        BigInteger[] es = exponents.clone();
+        BigInteger product = BigInteger.ONE;
+        for (BigInteger e : es) {
+            if (e.compareTo(BigInteger.valueOf(3)) < 0) {
+                throw new IllegalArgumentException("Batch exponents must be at least 3.");
+            }
+            if (!Utils.gcd(product, e).equals(BigInteger.ONE)) {
+                throw new IllegalArgumentException("Batch exponents must be pairwise coprime.");
+            }
+            product = product.multiply(e);
+        }
+        return es;
+    }
 
-        // Generate d
-        BigInteger d = generateDecryptKey(e, phi);
+    // Generate random RSA key pair using two random primes p, q
+    public static KeyPair generateRandomKeyPair(int bitLength) {
+        return generateRandomKeyPair(bitLength, RandomSources.getDefault());
+    }
 
-        return new KeyPair(p, q, e, d, n);
+    // Same as generateRandomKeyPair(int), drawing all randomness from the given source
+    public static KeyPair generateRandomKeyPair(int bitLength, RandomSource random) {
+        // Each prime is sieved, tested and checked (p-1 smoothness, gcd(e, p-1)) on its
+        // own, so a failed check replaces one prime instead of both
+        return new KeyGenPipeline(bitLength / 2, BigInteger.valueOf(65537), false, PrimeGenerator.CERTAINTY,
+                RSAPrimeVerifier.MIN_BIT_DIFF_VALUE, random).generate();
     }
 
     // Getters
@@ -108,6 +191,58 @@ public class KeyPair {
         return q;
     }
 
+    public BigInteger getDP() {
+        return dP;
+    }
+
+    public BigInteger getDQ() {
+        return dQ;
+    }
+
+    public BigInteger getQInv() {
+        return qInv;
+    }
+
+    // Montgomery context of p for the private-key exponentiations (RSAUtils)
+    Montgomery getMontgomeryP() {
+        Montgomery mont = montgomeryP;
+        if (mont == null) {
+            // Immutable, so a racing second build is harmless
+            mont = new Montgomery(p);
+            montgomeryP = mont;
+        }
+        return mont;
+    }
+
+    Montgomery getMontgomeryQ() {
+        Montgomery mont = montgomeryQ;
+        if (mont == null) {
+            mont = new Montgomery(q);
+            montgomeryQ = mont;
+        }
+        return mont;
+    }
+
+    /**
+     * The public exponents of a BATCH key, or null for other keys.
+     */
+    public BigInteger[] getBatchExponents() {
+        return batchExponents == null ? null : batchExponents.clone();
+    }
+
+    /**
+     * REBALANCED when both CRT exponents are at most half as long as their prime.
+     * Derived from dP and dQ, so it is also right for keys loaded from a KeyFile;
+     * for a standard key this happens with negligible probability.
+     */
+    public Mode getMode() {
+        if (batchExponents != null) {
+            return Mode.BATCH;
+        }
+        int half = Math.min(p.bitLength(), q.bitLength()) / 2;
+        return dP.bitLength() <= half && dQ.bitLength() <= half ? Mode.REBALANCED : Mode.STANDARD;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -131,45 +266,116 @@ public class KeyPair {
      * @return A new KeyPair instance meeting strong security criteria.
      */
     public static KeyPair generateStrongKeyPair(int bitLength) {
-        BigInteger p;
-        BigInteger q;
-        BigInteger e;
-        BigInteger phi;
-        BigInteger n;
+        return generateStrongKeyPair(bitLength, RandomSources.getDefault());
+    }
 
+    /**
+     * Same as {@link #generateStrongKeyPair(int)}, drawing all randomness from the given source.
+     */
+    public static KeyPair generateStrongKeyPair(int bitLength, RandomSource random) {
         int strongCertainty = 40;
 
-        do {
-            System.out.println("Generating strong key pair...");
-            // 1. Generate two large primes p and q with higher certainty
-
-            p = PrimeGenerator.generatePrime(bitLength / 2, strongCertainty);
-            q = PrimeGenerator.generatePrime(bitLength / 2, strongCertainty);
-
-            // 2. Ensure p != q and difference is large enough
-            // |p - q| should be large to prevent Fermat factorization
-            BigInteger diff = p.subtract(q).abs();
-            BigInteger minDiff = BigInteger.ONE.shiftLeft((bitLength / 2) - 100); // Heuristic: diff > 2^(len/2 - 100)
-
-            while (p.equals(q) || diff.compareTo(minDiff) < 0) {
-                q = PrimeGenerator.generatePrime(bitLength / 2, strongCertainty);
-                diff = p.subtract(q).abs();
-            }
-
-            // 3. Compute n = p * q
-            n = p.multiply(q);
+        // Strong primes (Gordon's algorithm) with higher certainty. |p - q| should be
+        // large to prevent Fermat factorization: diff > 2^(len/2 - 100). p-1 and q-1
+        // have large prime factors by construction, so there is no isWeakSmooth scan.
+        int minDistanceBits = Math.max(RSAPrimeVerifier.MIN_BIT_DIFF_VALUE, bitLength / 2 - 99);
+        return new KeyGenPipeline(bitLength / 2, BigInteger.valueOf(65537), true, strongCertainty, minDistanceBits,
+                random).generate();
+    }
 
-            // 4. Compute φ(n) = (p - 1)(q - 1)
-            phi = (p.subtract(BigInteger.ONE)).multiply(q.subtract(BigInteger.ONE));
+    // Rebalanced key pair with DEFAULT_REBALANCED_CRT_BITS-bit CRT exponents
+    public static KeyPair generateRebalancedKeyPair(int bitLength) {
+        return generateRebalancedKeyPair(bitLength, DEFAULT_REBALANCED_CRT_BITS, RandomSources.getDefault());
+    }
 
-            // 5. Generate/Verify e
-            e = BigInteger.valueOf(65537);
+    /**
+     * Generates a rebalanced RSA key pair (Mode.REBALANCED, Wiener 1990) for
+     * decrypt-heavy workloads.
+     *
+     * 1. Pick primes p, q with gcd(p - 1, q - 1) = 2.
+     * 2. Pick random odd dP, dQ of crtExponentBits bits, coprime with p - 1 and q - 1.
+     * 3. d = CRT(dP mod p - 1, dQ mod q - 1), a full-size exponent mod lcm(p - 1, q - 1).
+     * 4. e = d^-1 mod lcm(p - 1, q - 1), which is about as long as n.
+     *
+     * d itself stays large, so small-d attacks (Wiener, Boneh-Durfee) do not apply;
+     * the short dP, dQ are only exposed to the ~2^(crtExponentBits / 2) attacks
+     * that MIN_REBALANCED_CRT_BITS bounds.
+     *
+     * @param bitLength       Modulus size in bits.
+     * @param crtExponentBits Size of dP and dQ in bits (MIN_REBALANCED_CRT_BITS up to bitLength / 4).
+     * @param random          Randomness source.
+     */
+    public static KeyPair generateRebalancedKeyPair(int bitLength, int crtExponentBits, RandomSource random) {
+        if (crtExponentBits < MIN_REBALANCED_CRT_BITS || crtExponentBits > bitLength / 4) {
+            throw new IllegalArgumentException("CRT exponent size must be between " + MIN_REBALANCED_CRT_BITS
+                    + " and " + bitLength / 4 + " bits.");
+        }
+        BigInteger two = BigInteger.TWO;
+        BigInteger p;
+        BigInteger q;
+        BigInteger pMinus1;
+        BigInteger qMinus1;
+        do {
+            p = PrimeGenerator.generatePrime(bitLength / 2, random);
+            q = PrimeGenerator.generatePrime(bitLength / 2, random);
+            pMinus1 = p.subtract(BigInteger.ONE);
+            qMinus1 = q.subtract(BigInteger.ONE);
+        } while (p.equals(q) || !RSAPrimeVerifier.verifyPrimeForRSA(p, q) || !Utils.gcd(pMinus1, qMinus1).equals(two));
+
+        BigInteger dP = randomCrtExponent(crtExponentBits, pMinus1, random);
+        BigInteger dQ = randomCrtExponent(crtExponentBits, qMinus1, random);
+
+        // d = dP + (p - 1) * t with d = dQ mod (q - 1). Both moduli are even and dP, dQ
+        // odd, so with a = (p - 1) / 2, b = (q - 1) / 2: t = ((dQ - dP) / 2) * a^-1 mod b
+        BigInteger a = pMinus1.shiftRight(1);
+        BigInteger b = qMinus1.shiftRight(1);
+        BigInteger t = dQ.subtract(dP).shiftRight(1).mod(b).multiply(Utils.modMulInverse(a.mod(b), b)).mod(b);
+        BigInteger d = dP.add(pMinus1.multiply(t));
+
+        // lcm(p - 1, q - 1) = 2ab
+        BigInteger lambda = a.multiply(b).shiftLeft(1);
+        BigInteger e = Utils.modMulInverse(d, lambda);
+
+        return new KeyPair(p, q, e, d, p.multiply(q));
+    }
 
-        } while (!RSAPrimeVerifier.verifyPrimeForRSA(p, q) || !Utils.gcd(e, phi).equals(BigInteger.ONE));
+    // Random odd exponent of exactly `bits` bits that is invertible mod pMinus1
+    private static BigInteger randomCrtExponent(int bits, BigInteger pMinus1, RandomSource random) {
+        BigInteger x;
+        do {
+            x = random.nextBigInteger(bits).setBit(bits - 1).setBit(0);
+        } while (!Utils.gcd(pMinus1, x).equals(BigInteger.ONE));
+        return x;
+    }
 
-        // Generate d
-        BigInteger d = generateDecryptKey(e, phi);
+    // Batch key pair with DEFAULT_BATCH_EXPONENTS
+    public static KeyPair generateBatchKeyPair(int bitLength) {
+        return generateBatchKeyPair(bitLength, DEFAULT_BATCH_EXPONENTS, RandomSources.getDefault());
+    }
 
-        return new KeyPair(p, q, e, d, n);
+    /**
+     * Generates a batch RSA key pair (Mode.BATCH, Fiat 1989): one modulus that
+     * accepts every exponent in {@code exponents} as public exponent.
+     *
+     * The primes go through KeyGenPipeline with e = product of the exponents, so
+     * gcd(e_i, p - 1) = gcd(e_i, q - 1) = 1 for every i. The KeyPair's own
+     * encryptKey, d and CRT parameters belong to exponents[0].
+     *
+     * @param bitLength Modulus size in bits.
+     * @param exponents Small public exponents (at least 3), pairwise coprime.
+     * @param random    Randomness source.
+     */
+    public static KeyPair generateBatchKeyPair(int bitLength, int[] exponents, RandomSource random) {
+        BigInteger[] es = new BigInteger[exponents.length];
+        for (int i = 0; i < exponents.length; i++) {
+            es[i] = BigInteger.valueOf(exponents[i]);
+        }
+        BigInteger product = BigInteger.ONE;
+        for (BigInteger e : checkBatchExponents(es)) {
+            product = product.multiply(e);
+        }
+        KeyPair keys = new KeyGenPipeline(bitLength / 2, product, false, PrimeGenerator.CERTAINTY,
+                RSAPrimeVerifier.MIN_BIT_DIFF_VALUE, random).generate();
+        return fromPrimes(keys.getP(), keys.getQ(), es);
     }
 }
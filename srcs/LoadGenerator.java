@@ -0,0 +1,369 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator and latency harness for RSACipher operations.
+ *
+ * Runs one operation from N threads (or virtual threads) either closed-loop
+ * (each thread starts the next call as soon as the previous one returns) or at
+ * a fixed total rate. In fixed-rate mode every latency is measured from the
+ * call's scheduled start time, not its actual start, so a stall is charged to
+ * every call that should have run during it (no coordinated omission).
+ *
+ * A warmup phase runs the same workload first and is discarded.
+ *
+ * Usage:
+ * <pre>
+ * java LoadGenerator --op oaep-crt --bits 2048 --threads 8 [--virtual]
+ *                    [--rate 500] [--warmup 5] [--duration 20] [--format text|json|both]
+ *                    [--seed 42] [--key-mode standard|rebalanced|batch] [--parallel-crt]
+ *                    [--constant-time]
+ * </pre>
+ */
+public class LoadGenerator {
+
+    public enum Operation {
+        ENCRYPT("encrypt"),
+        DECRYPT("decrypt"),
+        ENCRYPT_OAEP("oaep"),
+        DECRYPT_OAEP("oaep-decrypt"),
+        DECRYPT_CRT("crt"),
+        DECRYPT_OAEP_CRT("oaep-crt"),
+        KEYGEN("keygen");
+
+        private final String cliName;
+
+        Operation(String cliName) {
+            this.cliName = cliName;
+        }
+
+        public String getCliName() {
+            return cliName;
+        }
+
+        public static Operation fromCliName(String name) {
+            for (Operation op : values()) {
+                if (op.cliName.equalsIgnoreCase(name)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    /**
+     * Run settings. Defaults give a short single-threaded closed-loop run.
+     */
+    public static final class Options {
+        public Operation operation = Operation.DECRYPT_OAEP_CRT;
+        public int bits = 2048;
+        public int threads = 1;
+        public boolean virtualThreads = false;
+        // Total operations per second across all threads, 0 = closed loop
+        public double rate = 0;
+        public double warmupSeconds = 5;
+        public double durationSeconds = 10;
+        public String format = "text";
+        // When set, all randomness (keygen, OAEP seeds) comes from a deterministic DRBG
+        public Long seed = null;
+        // Key generation mode (REBALANCED: short dP, dQ and a full-size e)
+        public KeyPair.Mode keyMode = KeyPair.Mode.STANDARD;
+        // Split each CRT decryption over two cores (ParallelCRT latency mode)
+        public boolean parallelCRT = false;
+        // Private-key exponentiations in constant time (Montgomery fixed window)
+        public boolean constantTime = false;
+    }
+
+    /**
+     * Result of one measured run.
+     */
+    public static final class Report {
+        private final Options options;
+        private final LatencyHistogram histogram;
+        private final long elapsedNanos;
+        private final long errors;
+
+        private Report(Options options, LatencyHistogram histogram, long elapsedNanos, long errors) {
+            this.options = options;
+            this.histogram = histogram;
+            this.elapsedNanos = elapsedNanos;
+            this.errors = errors;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        public double getThroughput() {
+            return histogram.getCount() / (elapsedNanos / 1e9);
+        }
+
+        public String toText() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Operation:   %s (%d-bit %s key)%n", options.operation.getCliName(), options.bits,
+                    options.keyMode.name().toLowerCase()));
+            sb.append(String.format("Load:        %d %s thread(s)%s%s, %s%n", options.threads,
+                    options.virtualThreads ? "virtual" : "platform", options.parallelCRT ? " + parallel CRT" : "",
+                    options.constantTime ? " + constant time" : "",
+                    options.rate > 0 ? String.format("fixed rate %.1f ops/s", options.rate) : "closed loop"));
+            sb.append(String.format("Operations:  %d in %.2f s (%d errors)%n", histogram.getCount(),
+                    elapsedNanos / 1e9, errors));
+            sb.append(String.format("Throughput:  %.1f ops/s%n", getThroughput()));
+            sb.append(String.format("Latency:     mean %s, p50 %s, p99 %s, p99.9 %s, max %s%n",
+                    millis(histogram.getMean()), millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMax())));
+            return sb.toString();
+        }
+
+        public String toJson() {
+            return String.format("{\"operation\":\"%s\",\"bits\":%d,\"keyMode\":\"%s\",\"threads\":%d,\"virtualThreads\":%b,"
+                    + "\"rate\":%.1f,\"count\":%d,\"errors\":%d,\"elapsedSeconds\":%.3f,\"throughput\":%.2f,"
+                    + "\"latencyMs\":{\"mean\":%.4f,\"p50\":%.4f,\"p99\":%.4f,\"p99.9\":%.4f,\"max\":%.4f}}",
+                    options.operation.getCliName(), options.bits, options.keyMode.name().toLowerCase(), options.threads,
+                    options.virtualThreads,
+                    options.rate, histogram.getCount(), errors, elapsedNanos / 1e9, getThroughput(),
+                    histogram.getMean() / 1e6, histogram.getValueAtPercentile(50) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                    histogram.getMax() / 1e6);
+        }
+
+        private static String millis(double nanos) {
+            return String.format("%.3f ms", nanos / 1e6);
+        }
+    }
+
+    /**
+     * Generates a key for {@code options.bits} and runs the load against it.
+     */
+    public static Report run(Options options) throws InterruptedException {
+        if (options.seed != null) {
+            RandomSources.setDefault(RandomSources.seeded(options.seed));
+        }
+        KeyPair keyPair = options.operation == Operation.KEYGEN ? null : generateKey(options);
+        return run(options, keyPair);
+    }
+
+    private static KeyPair generateKey(Options options) {
+        switch (options.keyMode) {
+            case REBALANCED:
+                return KeyPair.generateRebalancedKeyPair(options.bits);
+            case BATCH:
+                // Load runs against the first exponent only
+                return KeyPair.generateBatchKeyPair(options.bits);
+            default:
+                return KeyPair.generateRandomKeyPair(options.bits);
+        }
+    }
+
+    /**
+     * Runs warmup, then the measured phase, against an existing key.
+     *
+     * @param options Run settings.
+     * @param keyPair Key to use (ignored for KEYGEN).
+     * @return Report of the measured phase only.
+     */
+    public static Report run(Options options, KeyPair keyPair) throws InterruptedException {
+        Runnable task = createTask(options, keyPair);
+
+        if (options.warmupSeconds > 0) {
+            runPhase(options, task, seconds(options.warmupSeconds), new LatencyHistogram(), new LongAdder());
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        LongAdder errors = new LongAdder();
+        long elapsed = runPhase(options, task, seconds(options.durationSeconds), histogram, errors);
+        return new Report(options, histogram, elapsed, errors.sum());
+    }
+
+    // Builds the operation to run, with its input prepared up front
+    private static Runnable createTask(Options options, KeyPair keyPair) {
+        if (options.operation == Operation.KEYGEN) {
+            return () -> generateKey(options);
+        }
+
+        RSACipher rsa = new RSAUtils(null, options.parallelCRT ? new ParallelCRT() : null, options.constantTime);
+        BigInteger e = keyPair.getEncryptKey();
+        BigInteger d = keyPair.getDecryptKey();
+        BigInteger n = keyPair.getModulus();
+
+        // Short message so it also fits the OAEP limit
+        BigInteger message = RandomSources.getDefault().nextBigInteger(128).setBit(127);
+        BigInteger cipher = rsa.encrypt(message, e, n);
+        BigInteger oaepCipher = rsa.encryptOAEP(message, e, n);
+
+        switch (options.operation) {
+            case ENCRYPT:
+                return () -> rsa.encrypt(message, e, n);
+            case DECRYPT:
+                return () -> rsa.decrypt(cipher, d, n);
+            case ENCRYPT_OAEP:
+                return () -> rsa.encryptOAEP(message, e, n);
+            case DECRYPT_OAEP:
+                return () -> rsa.decryptOAEP(oaepCipher, d, n);
+            case DECRYPT_CRT:
+                return () -> rsa.decryptCRT(cipher, keyPair);
+            case DECRYPT_OAEP_CRT:
+                return () -> rsa.decryptOAEP_CRT(oaepCipher, keyPair);
+            default:
+                throw new IllegalArgumentException("Unsupported operation: " + options.operation);
+        }
+    }
+
+    // Runs the task on all threads for the given time and returns the elapsed nanos
+    private static long runPhase(Options options, Runnable task, long durationNanos, LatencyHistogram histogram,
+            LongAdder errors) throws InterruptedException {
+        ExecutorService executor = options.virtualThreads
+                ? VirtualThreads.newPerTaskExecutor("loadgen")
+                : Executors.newFixedThreadPool(options.threads, VirtualThreads.daemonThreads("loadgen"));
+
+        // Each thread issues every threads-th call of the global schedule
+        long intervalNanos = options.rate > 0 ? (long) (options.threads * 1e9 / options.rate) : 0;
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < options.threads; t++) {
+            long firstStart = start + (intervalNanos * t) / options.threads;
+            workers.add(executor.submit(() -> runWorker(task, intervalNanos, firstStart, end, histogram, errors)));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Load worker failed", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void runWorker(Runnable task, long intervalNanos, long firstStart, long end,
+            LatencyHistogram histogram, LongAdder errors) {
+        long scheduled = firstStart;
+        while (true) {
+            long intendedStart;
+            if (intervalNanos > 0) {
+                // Fixed rate: wait for the slot, but never skip one when running late
+                intendedStart = scheduled;
+                scheduled += intervalNanos;
+                if (intendedStart >= end) {
+                    return;
+                }
+                long wait;
+                while ((wait = intendedStart - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                intendedStart = System.nanoTime();
+                if (intendedStart >= end) {
+                    return;
+                }
+            }
+
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                errors.increment();
+            }
+            histogram.record(System.nanoTime() - intendedStart);
+
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    private static long seconds(double s) {
+        return (long) (s * 1e9);
+    }
+
+    public static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--virtual")) {
+                options.virtualThreads = true;
+                continue;
+            }
+            if (arg.equals("--parallel-crt")) {
+                options.parallelCRT = true;
+                continue;
+            }
+            if (arg.equals("--constant-time")) {
+                options.constantTime = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--op":
+                    options.operation = Operation.fromCliName(value);
+                    break;
+                case "--bits":
+                    options.bits = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    options.threads = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    options.rate = Double.parseDouble(value);
+                    break;
+                case "--warmup":
+                    options.warmupSeconds = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    options.durationSeconds = Double.parseDouble(value);
+                    break;
+                case "--format":
+                    options.format = value;
+                    break;
+                case "--seed":
+                    options.seed = Long.parseLong(value);
+                    break;
+                case "--key-mode":
+                    options.keyMode = KeyPair.Mode.valueOf(value.toUpperCase());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (options.threads < 1 || options.durationSeconds <= 0 || options.rate < 0) {
+            throw new IllegalArgumentException("threads and duration must be positive, rate non-negative.");
+        }
+        return options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.err.println("Usage: java LoadGenerator --op encrypt|decrypt|oaep|oaep-decrypt|crt|oaep-crt|keygen"
+                    + " [--bits 2048] [--threads 1] [--virtual] [--rate 0] [--warmup 5] [--duration 10]"
+                    + " [--format text|json|both] [--seed N] [--key-mode standard|rebalanced|batch] [--parallel-crt]"
+                    + " [--constant-time]");
+            System.exit(1);
+            return;
+        }
+
+        Report report = run(options);
+        if (!options.format.equals("json")) {
+            System.out.print(report.toText());
+        }
+        if (!options.format.equals("text")) {
+            System.out.println(report.toJson());
+        }
+    }
+}
@@ -60,7 +60,7 @@ class Main {
         }
 
         // Done collecting inputs
-        System.out.println("\nGenerating RSA Key Pair...");
+        System.out.println("\nGenerating strong RSA Key Pair...");
         long startTime = System.currentTimeMillis();
 
         System.out.println("\n--- Generated RSA Key Pair ---");
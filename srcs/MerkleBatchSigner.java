@@ -0,0 +1,413 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch signing: messages are collected for a short time (or up to a count),
+ * hashed into a SHA-256 Merkle tree, and only the root is signed, with one
+ * SHA256withRSA (CRT) private-key operation for the whole batch. Each message
+ * gets the shared root signature plus its inclusion proof (the sibling hashes
+ * on its path to the root), so signing cost per message is a few hashes.
+ *
+ * Tree (hashes domain-separated as in RFC 6962, so a leaf can never be passed
+ * off as an inner node):
+ * - leaf = SHA-256(0x00 || message)
+ * - node = SHA-256(0x01 || left || right)
+ * - an odd node at the end of a level is carried up unchanged (not duplicated).
+ *
+ * The signed value is "merkle-batch-v1" || treeSize (4 bytes) || root, so a
+ * proof cannot be replayed against a tree of a different size. The proof only
+ * stores the leaf index, the tree size and the sibling hashes; which side each
+ * sibling is on follows from the index and size.
+ */
+public class MerkleBatchSigner implements AutoCloseable {
+
+    public static final int HASH_LEN = 32;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final byte[] ROOT_DOMAIN = "merkle-batch-v1".getBytes(StandardCharsets.US_ASCII);
+
+    // Our provider's SHA256withRSA runs the private operation through RSAUtils.decryptCRT
+    private static final RSAProvider PROVIDER = new RSAProvider();
+
+    /**
+     * Signature of one message: its position in the batch, the sibling hashes
+     * from leaf to root, and the batch's root signature (shared, not copied).
+     */
+    public static final class BatchSignature {
+        private final int leafIndex;
+        private final int treeSize;
+        private final byte[][] path;
+        private final byte[] rootSignature;
+
+        public BatchSignature(int leafIndex, int treeSize, byte[][] path, byte[] rootSignature) {
+            if (treeSize < 1 || leafIndex < 0 || leafIndex >= treeSize) {
+                throw new IllegalArgumentException("Leaf index out of range.");
+            }
+            this.leafIndex = leafIndex;
+            this.treeSize = treeSize;
+            this.path = path;
+            this.rootSignature = rootSignature;
+        }
+
+        public int getLeafIndex() {
+            return leafIndex;
+        }
+
+        public int getTreeSize() {
+            return treeSize;
+        }
+
+        public byte[] getRootSignature() {
+            return rootSignature.clone();
+        }
+
+        /**
+         * index (4) || size (4) || pathLength (1) || path hashes || signature.
+         */
+        public byte[] encode() {
+            ByteBuffer out = ByteBuffer.allocate(9 + path.length * HASH_LEN + rootSignature.length);
+            out.putInt(leafIndex).putInt(treeSize).put((byte) path.length);
+            for (byte[] hash : path) {
+                out.put(hash);
+            }
+            return out.put(rootSignature).array();
+        }
+
+        public static BatchSignature decode(byte[] encoded) {
+            ByteBuffer in = ByteBuffer.wrap(encoded);
+            if (in.remaining() < 9) {
+                throw new IllegalArgumentException("Batch signature too short.");
+            }
+            int index = in.getInt();
+            int size = in.getInt();
+            int pathLength = in.get() & 0xff;
+            if (in.remaining() < pathLength * HASH_LEN) {
+                throw new IllegalArgumentException("Batch signature too short.");
+            }
+            byte[][] path = new byte[pathLength][HASH_LEN];
+            for (byte[] hash : path) {
+                in.get(hash);
+            }
+            byte[] signature = new byte[in.remaining()];
+            in.get(signature);
+            return new BatchSignature(index, size, path, signature);
+        }
+    }
+
+    // A message waiting for the next batch
+    private static final class Pending {
+        private final byte[] message;
+        private final CompletableFuture<BatchSignature> result = new CompletableFuture<>();
+
+        private Pending(byte[] message) {
+            this.message = message;
+        }
+    }
+
+    private final KeyPair keyPair;
+    private final int maxBatch;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService flusher;
+
+    private List<Pending> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+
+    /**
+     * @param keyPair        Signing key (CRT parameters are used).
+     * @param maxBatch       A batch is signed as soon as it has this many messages.
+     * @param maxDelayMillis ... or this long after its first message arrived.
+     */
+    public MerkleBatchSigner(KeyPair keyPair, int maxBatch, long maxDelayMillis) {
+        if (maxBatch < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxBatch must be positive and maxDelayMillis non-negative.");
+        }
+        this.keyPair = keyPair;
+        this.maxBatch = maxBatch;
+        this.maxDelayMillis = maxDelayMillis;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(VirtualThreads.daemonThreads("merkle-signer"));
+    }
+
+    /**
+     * Queues a message for the next batch; the future completes when the batch
+     * root has been signed.
+     */
+    public CompletableFuture<BatchSignature> sign(byte[] message) {
+        Pending p = new Pending(message.clone());
+        List<Pending> full = null;
+        synchronized (this) {
+            pending.add(p);
+            if (pending.size() >= maxBatch) {
+                full = takePending();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = flusher.schedule(this::flush, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            List<Pending> batch = full;
+            flusher.execute(() -> signBatch(batch));
+        }
+        return p.result;
+    }
+
+    /**
+     * Signs everything queued so far without waiting for the delay.
+     */
+    public void flush() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        signBatch(batch);
+    }
+
+    // Caller holds the lock
+    private List<Pending> takePending() {
+        List<Pending> batch = pending;
+        pending = new ArrayList<>();
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        return batch;
+    }
+
+    private void signBatch(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            byte[][] messageArray = new byte[batch.size()][];
+            for (int i = 0; i < messageArray.length; i++) {
+                messageArray[i] = batch.get(i).message;
+            }
+            BatchSignature[] signatures = signAll(messageArray);
+            for (int i = 0; i < signatures.length; i++) {
+                batch.get(i).result.complete(signatures[i]);
+            }
+        } catch (RuntimeException ex) {
+            for (Pending p : batch) {
+                p.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Signs a whole batch at once on the calling thread (one private-key operation).
+     */
+    public BatchSignature[] signAll(byte[][] batch) {
+        if (batch.length == 0) {
+            return new BatchSignature[0];
+        }
+        byte[][][] levels = buildTree(batch);
+        byte[] root = levels[levels.length - 1][0];
+        byte[] rootSignature;
+        try {
+            Signature signer = Signature.getInstance("SHA256withRSA", PROVIDER);
+            signer.initSign(new RSAProvider.PrivateCrtKeyImpl(keyPair));
+            signer.update(rootMessage(batch.length, root));
+            rootSignature = signer.sign();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Root signing failed", ex);
+        }
+
+        BatchSignature[] signatures = new BatchSignature[batch.length];
+        for (int i = 0; i < batch.length; i++) {
+            signatures[i] = new BatchSignature(i, batch.length, proof(levels, i), rootSignature);
+        }
+        batches.increment();
+        messages.add(batch.length);
+        return signatures;
+    }
+
+    /**
+     * Checks the inclusion proof, then the root signature with public key (n, e).
+     */
+    public static boolean verify(byte[] message, BatchSignature signature, BigInteger n, BigInteger e) {
+        MessageDigest md = sha256();
+        byte[] hash = leafHash(md, message);
+        int index = signature.leafIndex;
+        int size = signature.treeSize;
+        int used = 0;
+        while (size > 1) {
+            if ((index & 1) == 0 && index == size - 1) {
+                // Carried up without a sibling
+            } else {
+                if (used == signature.path.length) {
+                    return false;
+                }
+                byte[] sibling = signature.path[used++];
+                hash = (index & 1) == 0 ? nodeHash(md, hash, sibling) : nodeHash(md, sibling, hash);
+            }
+            index >>>= 1;
+            size = (size + 1) >>> 1;
+        }
+        if (used != signature.path.length) {
+            return false;
+        }
+        try {
+            Signature verifier = Signature.getInstance("SHA256withRSA", PROVIDER);
+            verifier.initVerify(new RSAProvider.PublicKeyImpl(n, e));
+            verifier.update(rootMessage(signature.treeSize, hash));
+            return verifier.verify(signature.rootSignature);
+        } catch (GeneralSecurityException ex) {
+            return false;
+        }
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    public long getMessageCount() {
+        return messages.sum();
+    }
+
+    /**
+     * Signs what is still queued and stops the flusher thread.
+     */
+    @Override
+    public void close() {
+        flusher.execute(this::flush);
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // levels[0] = leaf hashes, levels[last] = { root }
+    private static byte[][][] buildTree(byte[][] messages) {
+        MessageDigest md = sha256();
+        List<byte[][]> levels = new ArrayList<>();
+        byte[][] level = new byte[messages.length][];
+        for (int i = 0; i < messages.length; i++) {
+            level[i] = leafHash(md, messages[i]);
+        }
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length / 2; i++) {
+                next[i] = nodeHash(md, level[2 * i], level[2 * i + 1]);
+            }
+            if (level.length % 2 == 1) {
+                next[next.length - 1] = level[level.length - 1];
+            }
+            levels.add(next);
+            level = next;
+        }
+        return levels.toArray(new byte[0][][]);
+    }
+
+    private static byte[][] proof(byte[][][] levels, int index) {
+        List<byte[]> path = new ArrayList<>();
+        for (int depth = 0; depth < levels.length - 1; depth++) {
+            byte[][] level = levels[depth];
+            int sibling = index ^ 1;
+            if (sibling < level.length) {
+                path.add(level[sibling]);
+            }
+            index >>>= 1;
+        }
+        return path.toArray(new byte[0][]);
+    }
+
+    private static byte[] rootMessage(int treeSize, byte[] root) {
+        return ByteBuffer.allocate(ROOT_DOMAIN.length + 4 + HASH_LEN).put(ROOT_DOMAIN).putInt(treeSize).put(root)
+                .array();
+    }
+
+    private static byte[] leafHash(MessageDigest md, byte[] message) {
+        md.update(LEAF_PREFIX);
+        return md.digest(message);
+    }
+
+    private static byte[] nodeHash(MessageDigest md, byte[] left, byte[] right) {
+        md.update(NODE_PREFIX);
+        md.update(left);
+        return md.digest(right);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * Usage: java MerkleBatchSigner [messages] [batchSize] [bits]
+     * Compares one signature per message with batch signing, and verifies all
+     * batch signatures.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int bits = args.length > 2 ? Integer.parseInt(args[2]) : 2048;
+
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(bits);
+        byte[][] events = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            events[i] = ("audit-event-" + i + " user=alice action=login").getBytes(StandardCharsets.UTF_8);
+        }
+
+        // Baseline: one private-key operation per message (on a sample)
+        int sample = Math.min(count, 200);
+        Signature single = Signature.getInstance("SHA256withRSA", PROVIDER);
+        single.initSign(new RSAProvider.PrivateCrtKeyImpl(keyPair));
+        long start = System.nanoTime();
+        for (int i = 0; i < sample; i++) {
+            single.update(events[i]);
+            single.sign();
+        }
+        double singleRate = sample / ((System.nanoTime() - start) / 1e9);
+
+        // Batch signing through the collecting front end
+        List<CompletableFuture<BatchSignature>> futures = new ArrayList<>(count);
+        start = System.nanoTime();
+        try (MerkleBatchSigner signer = new MerkleBatchSigner(keyPair, batchSize, 5)) {
+            for (byte[] event : events) {
+                futures.add(signer.sign(event));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+            double batchRate = count / ((System.nanoTime() - start) / 1e9);
+            System.out.printf("Single signatures: %,.0f msg/s%n", singleRate);
+            System.out.printf("Batch signatures:  %,.0f msg/s (%d batches, %.1fx)%n", batchRate,
+                    signer.getBatchCount(), batchRate / singleRate);
+        }
+
+        int valid = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            BatchSignature sig = BatchSignature.decode(futures.get(i).get().encode());
+            if (verify(events[i], sig, keyPair.getModulus(), keyPair.getEncryptKey())) {
+                valid++;
+            }
+        }
+        System.out.printf("Verified %d/%d in %.0f ms, proof size %d bytes%n", valid, count,
+                (System.nanoTime() - start) / 1e6, futures.get(0).get().encode().length);
+        BatchSignature first = futures.get(0).get();
+        System.out.println("Tampered message rejected: "
+                + !verify(Arrays.copyOf(events[0], events[0].length + 1), first, keyPair.getModulus(),
+                        keyPair.getEncryptKey()));
+    }
+}
@@ -0,0 +1,167 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Miller-Rabin engine used by PrimeGenerator.
+ *
+ * One Montgomery context is built per candidate and shared by all witness
+ * rounds; a^q and the following squarings all stay in the Montgomery domain
+ * and are compared against the Montgomery forms of 1 and n - 1, so nothing is
+ * converted back per step.
+ *
+ * The first round always runs on the calling thread, because almost every
+ * composite candidate fails it. For candidates of PARALLEL_MIN_BITS or more the
+ * remaining rounds are then spread over a shared pool of worker threads; as
+ * soon as one round finds a witness of compositeness the other rounds stop at
+ * their next window.
+ *
+ * All witnesses are drawn from the RandomSource up front on the calling
+ * thread, so a seeded source yields the same witnesses however the rounds are
+ * scheduled.
+ */
+public class MillerRabin {
+
+    // Candidate size from which rounds after the first run in parallel
+    public static final int PARALLEL_MIN_BITS = 2048;
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(PARALLELISM,
+            VirtualThreads.daemonThreads("miller-rabin"));
+
+    /**
+     * Runs {@code rounds} Miller-Rabin rounds on an odd n > 3 (trial division is
+     * left to the caller).
+     */
+    public static boolean isProbablePrime(BigInteger n, int rounds, RandomSource random) {
+        return isProbablePrime(n, rounds, random, n.bitLength() >= PARALLEL_MIN_BITS && PARALLELISM > 1);
+    }
+
+    /**
+     * Same as {@link #isProbablePrime(BigInteger, int, RandomSource)}, choosing
+     * sequential or parallel rounds explicitly.
+     */
+    public static boolean isProbablePrime(BigInteger n, int rounds, RandomSource random, boolean parallel) {
+        if (!n.testBit(0) || n.compareTo(BigInteger.valueOf(3)) <= 0) {
+            throw new IllegalArgumentException("Candidate must be odd and greater than 3.");
+        }
+        if (rounds <= 0) {
+            return true;
+        }
+
+        Candidate candidate = new Candidate(n);
+        BigInteger[] witnesses = new BigInteger[rounds];
+        for (int i = 0; i < rounds; i++) {
+            witnesses[i] = uniformRandom(BigInteger.TWO, n.subtract(BigInteger.TWO), random);
+        }
+
+        AtomicBoolean composite = new AtomicBoolean();
+        if (!candidate.passes(witnesses[0], composite)) {
+            return false;
+        }
+        if (!parallel || rounds == 1) {
+            for (int i = 1; i < rounds; i++) {
+                if (!candidate.passes(witnesses[i], composite)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return runParallel(candidate, witnesses, composite);
+    }
+
+    private static boolean runParallel(Candidate candidate, BigInteger[] witnesses, AtomicBoolean composite) {
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(POOL);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 1; i < witnesses.length; i++) {
+            BigInteger a = witnesses[i];
+            futures.add(completion.submit(() -> candidate.passes(a, composite)));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                if (!completion.take().get()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted during primality test", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Miller-Rabin round failed", ex.getCause());
+        } finally {
+            // Stops rounds still running and drops those not started yet
+            composite.set(true);
+            for (Future<Boolean> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    // Per-candidate state shared by all rounds
+    private static final class Candidate {
+        private final Montgomery mont;
+        private final int k;
+        private final BigInteger q;
+        private final int[] one;
+        private final int[] minusOne;
+
+        private Candidate(BigInteger n) {
+            BigInteger nMinus1 = n.subtract(BigInteger.ONE);
+            this.mont = new Montgomery(n);
+            this.k = nMinus1.getLowestSetBit();
+            this.q = nMinus1.shiftRight(k);
+            this.one = mont.one();
+            this.minusOne = mont.toMontgomery(nMinus1);
+        }
+
+        // One round with witness a; false (and the flag set) if a proves n composite.
+        // A round cut short because another one already failed also returns false.
+        private boolean passes(BigInteger a, AtomicBoolean composite) {
+            int[] x = mont.pow(mont.toMontgomery(a), q, composite::get);
+            if (x == null) {
+                return false;
+            }
+            if (Arrays.equals(x, one) || Arrays.equals(x, minusOne)) {
+                return true;
+            }
+
+            int[] scratch = mont.newScratch();
+            for (int j = 0; j < k - 1; j++) {
+                if (composite.get()) {
+                    return false;
+                }
+                mont.square(x, x, scratch);
+                if (Arrays.equals(x, minusOne)) {
+                    return true;
+                }
+                if (Arrays.equals(x, one)) {
+                    break;
+                }
+            }
+            composite.set(true);
+            return false;
+        }
+    }
+
+    // Uniform random BigInteger in [min, max]
+    private static BigInteger uniformRandom(BigInteger min, BigInteger max, RandomSource random) {
+        BigInteger range = max.subtract(min).add(BigInteger.ONE);
+        int bitLength = range.bitLength();
+        BigInteger result;
+        do {
+            result = random.nextBigInteger(bitLength);
+        } while (result.compareTo(range) >= 0);
+        return result.add(min);
+    }
+}
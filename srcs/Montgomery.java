@@ -0,0 +1,444 @@
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Montgomery arithmetic modulo a fixed odd n, on little-endian int[] limbs.
+ *
+ * A context is built once per modulus (R = 2^(32 * limbs), n' = -n^-1 mod 2^32,
+ * R mod n and R^2 mod n) and is immutable, so any number of threads can share
+ * it. Values in the Montgomery domain are int[] of {@link #limbs()} words; each
+ * thread passes its own scratch array from {@link #newScratch()}.
+ *
+ * Squaring has its own path that computes each cross product a[i]*a[j] once and
+ * doubles the sum, which is nearly half the word multiplications of a general
+ * multiply. This is what Miller-Rabin and modular exponentiation spend most of
+ * their time in.
+ */
+public class Montgomery {
+
+    private static final long LONG_MASK = 0xffffffffL;
+
+    private final BigInteger modulus;
+    private final int[] n;
+    private final int len;
+    private final int nPrime;
+    private final int[] one;
+    private final int[] r2;
+
+    /**
+     * @param modulus Odd modulus greater than 1.
+     */
+    public Montgomery(BigInteger modulus) {
+        if (modulus.signum() <= 0 || !modulus.testBit(0) || modulus.equals(BigInteger.ONE)) {
+            throw new IllegalArgumentException("Montgomery modulus must be odd and greater than 1.");
+        }
+        this.modulus = modulus;
+        this.len = (modulus.bitLength() + 31) >>> 5;
+        this.n = toLimbs(modulus, len);
+
+        // Newton iteration for n[0]^-1 mod 2^32 (each step doubles the correct bits)
+        int inv = n[0];
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - n[0] * inv;
+        }
+        this.nPrime = -inv;
+
+        this.one = toLimbs(BigInteger.ONE.shiftLeft(32 * len).mod(modulus), len);
+        this.r2 = toLimbs(BigInteger.ONE.shiftLeft(64 * len).mod(modulus), len);
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     * Number of 32-bit words in a Montgomery-domain value.
+     */
+    public int limbs() {
+        return len;
+    }
+
+    public int[] newElement() {
+        return new int[len];
+    }
+
+    public int[] newScratch() {
+        return new int[2 * len + 1];
+    }
+
+    /**
+     * x*R mod n. x is reduced mod n first if needed.
+     */
+    public int[] toMontgomery(BigInteger x) {
+        if (x.signum() < 0 || x.compareTo(modulus) >= 0) {
+            x = x.mod(modulus);
+        }
+        int[] out = newElement();
+        multiply(toLimbs(x, len), r2, out, newScratch());
+        return out;
+    }
+
+    /**
+     * a*R^-1 mod n, i.e. the ordinary value of a Montgomery-domain element.
+     */
+    public BigInteger fromMontgomery(int[] a) {
+        int[] t = newScratch();
+        System.arraycopy(a, 0, t, 0, len);
+        int[] out = newElement();
+        reduce(t, out);
+        return toBigInteger(out);
+    }
+
+    /**
+     * Montgomery form of 1 (R mod n).
+     */
+    public int[] one() {
+        return one.clone();
+    }
+
+    /**
+     * out = a*b*R^-1 mod n. out may alias a or b.
+     */
+    public void multiply(int[] a, int[] b, int[] out, int[] scratch) {
+        product(a, b, scratch);
+        reduce(scratch, out);
+    }
+
+    // t = a*b (2 * len + 1 words)
+    private void product(int[] a, int[] b, int[] t) {
+        Arrays.fill(t, 0);
+        for (int i = 0; i < len; i++) {
+            long ai = a[i] & LONG_MASK;
+            long carry = 0;
+            for (int j = 0; j < len; j++) {
+                long p = ai * (b[j] & LONG_MASK) + (t[i + j] & LONG_MASK) + carry;
+                t[i + j] = (int) p;
+                carry = p >>> 32;
+            }
+            t[i + len] = (int) carry;
+        }
+    }
+
+    /**
+     * out = a^2*R^-1 mod n. out may alias a.
+     */
+    public void square(int[] a, int[] out, int[] scratch) {
+        squareProduct(a, scratch);
+        reduce(scratch, out);
+    }
+
+    // t = a^2 (2 * len + 1 words)
+    private void squareProduct(int[] a, int[] t) {
+        Arrays.fill(t, 0);
+
+        // Cross products a[i]*a[j] for i < j, each computed once
+        for (int i = 0; i < len - 1; i++) {
+            long ai = a[i] & LONG_MASK;
+            long carry = 0;
+            for (int j = i + 1; j < len; j++) {
+                long p = ai * (a[j] & LONG_MASK) + (t[i + j] & LONG_MASK) + carry;
+                t[i + j] = (int) p;
+                carry = p >>> 32;
+            }
+            t[i + len] = (int) carry;
+        }
+
+        // Double them
+        int high = 0;
+        for (int i = 0; i < 2 * len; i++) {
+            int w = t[i];
+            t[i] = (w << 1) | high;
+            high = w >>> 31;
+        }
+
+        // Add the squares a[i]^2 on the diagonal
+        long carry = 0;
+        for (int i = 0; i < len; i++) {
+            long ai = a[i] & LONG_MASK;
+            long p = ai * ai;
+            long lo = (t[2 * i] & LONG_MASK) + (p & LONG_MASK) + carry;
+            t[2 * i] = (int) lo;
+            long hi = (t[2 * i + 1] & LONG_MASK) + (p >>> 32) + (lo >>> 32);
+            t[2 * i + 1] = (int) hi;
+            carry = hi >>> 32;
+        }
+    }
+
+    /**
+     * base^exp in the Montgomery domain (base and result both in Montgomery form),
+     * left-to-right sliding window.
+     *
+     * @param abort Checked between windows; when it returns true the computation
+     *              stops and null is returned. May be null.
+     */
+    public int[] pow(int[] base, BigInteger exp, BooleanSupplier abort) {
+        return pow(base, exp, abort, windowSize(exp.bitLength()));
+    }
+
+    /**
+     * Same as {@link #pow(int[], BigInteger, BooleanSupplier)} with an explicit
+     * window size (1 to 8 bits) instead of the one chosen from the exponent size.
+     */
+    public int[] pow(int[] base, BigInteger exp, BooleanSupplier abort, int window) {
+        if (window < 1 || window > 8) {
+            throw new IllegalArgumentException("Window size must be between 1 and 8 bits.");
+        }
+        int bits = exp.bitLength();
+        if (bits == 0) {
+            return one();
+        }
+        int[] scratch = newScratch();
+
+        // Odd powers base^1, base^3, ..., base^(2^window - 1)
+        int[][] table = new int[1 << (window - 1)][];
+        table[0] = base.clone();
+        int[] base2 = newElement();
+        square(base, base2, scratch);
+        for (int i = 1; i < table.length; i++) {
+            table[i] = newElement();
+            multiply(table[i - 1], base2, table[i], scratch);
+        }
+
+        int[] x = one();
+        int i = bits - 1;
+        while (i >= 0) {
+            if (abort != null && abort.getAsBoolean()) {
+                return null;
+            }
+            if (!exp.testBit(i)) {
+                square(x, x, scratch);
+                i--;
+                continue;
+            }
+            // Longest window [i..low] of at most `window` bits that ends in a 1
+            int low = Math.max(i - window + 1, 0);
+            while (!exp.testBit(low)) {
+                low++;
+            }
+            int value = 0;
+            for (int b = i; b >= low; b--) {
+                square(x, x, scratch);
+                value = (value << 1) | (exp.testBit(b) ? 1 : 0);
+            }
+            multiply(x, table[value >>> 1], x, scratch);
+            i = low - 1;
+        }
+        return x;
+    }
+
+    /**
+     * base^exp mod n for ordinary (non-Montgomery) values.
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exp) {
+        if (exp.signum() < 0) {
+            throw new IllegalArgumentException("Exponent must be non-negative.");
+        }
+        return fromMontgomery(pow(toMontgomery(base), exp, null));
+    }
+
+    /**
+     * base^exp mod n with an explicit window size.
+     */
+    public BigInteger modPow(BigInteger base, BigInteger exp, int window) {
+        if (exp.signum() < 0) {
+            throw new IllegalArgumentException("Exponent must be non-negative.");
+        }
+        return fromMontgomery(pow(toMontgomery(base), exp, null, window));
+    }
+
+    /**
+     * base^exp mod n in constant time, for secret exponents.
+     *
+     * Fixed window: the exponent is read as ceil(expBits / window) digits whatever
+     * its value, and every digit costs `window` squarings plus one multiplication
+     * (digit 0 multiplies by the Montgomery one). Every lookup in the table of
+     * base^0 .. base^(2^window - 1) reads all entries and keeps the wanted one
+     * with a mask, so the memory access pattern (cache lines and banks alike)
+     * does not depend on the digit; the masked copy is a plain AND/OR loop the
+     * JIT vectorizes.
+     * Reductions always compute the final subtraction and select the result
+     * with a mask. The JIT gives no guarantees about the machine code, but
+     * nothing in these loops branches on or indexes by secret data.
+     *
+     * @param expBits Public upper bound on the exponent size (e.g. the bit length
+     *                of the modulus or of p - 1); only it decides the running time.
+     * @param window  Window size, 1 to 8 bits.
+     */
+    public BigInteger modPowConstantTime(BigInteger base, BigInteger exp, int expBits, int window) {
+        if (exp.signum() < 0 || exp.bitLength() > expBits) {
+            throw new IllegalArgumentException("Exponent must be non-negative and at most " + expBits + " bits.");
+        }
+        if (window < 1 || window > 8) {
+            throw new IllegalArgumentException("Window size must be between 1 and 8 bits.");
+        }
+        int[] scratch = newScratch();
+        int entries = 1 << window;
+
+        // Table base^0 .. base^(entries - 1), one entry after the other
+        int[] table = new int[len * entries];
+        int[] power = one();
+        int[] b = toMontgomery(base);
+        for (int k = 0; k < entries; k++) {
+            System.arraycopy(power, 0, table, k * len, len);
+            product(power, b, scratch);
+            reduceConstantTime(scratch, power);
+        }
+
+        int[] e = toLimbs(exp, (expBits + 31) >>> 5);
+        int digits = (expBits + window - 1) / window;
+        int[] x = one();
+        int[] entry = newElement();
+        for (int d = digits - 1; d >= 0; d--) {
+            for (int s = 0; s < window; s++) {
+                squareProduct(x, scratch);
+                reduceConstantTime(scratch, x);
+            }
+            gather(table, entries, digit(e, d * window, window), entry);
+            product(x, entry, scratch);
+            reduceConstantTime(scratch, x);
+        }
+
+        int[] t = newScratch();
+        System.arraycopy(x, 0, t, 0, len);
+        reduceConstantTime(t, x);
+        return toBigInteger(x);
+    }
+
+    // Bits [from, from + window) of little-endian limbs e; positions past the end are 0
+    private static int digit(int[] e, int from, int window) {
+        int value = 0;
+        for (int b = window - 1; b >= 0; b--) {
+            int bit = from + b;
+            int word = bit >>> 5;
+            value = (value << 1) | (word < e.length ? (e[word] >>> (bit & 31)) & 1 : 0);
+        }
+        return value;
+    }
+
+    // out = entry `index` of the table, reading every entry in full
+    private void gather(int[] table, int entries, int index, int[] out) {
+        Arrays.fill(out, 0);
+        for (int k = 0; k < entries; k++) {
+            int diff = k ^ index;
+            // -1 when k == index, else 0
+            int mask = ~((diff | -diff) >> 31);
+            int base = k * len;
+            for (int j = 0; j < len; j++) {
+                out[j] |= table[base + j] & mask;
+            }
+        }
+    }
+
+    // Montgomery reduction of t (top word zero) into out with no data-dependent branches
+    private void reduceConstantTime(int[] t, int[] out) {
+        int[] n = this.n;
+        int len = this.len;
+        int nPrime = this.nPrime;
+        // carry out of t[i + len], added one word higher in the next round
+        long high = 0;
+        for (int i = 0; i < len; i++) {
+            long m = (t[i] * nPrime) & LONG_MASK;
+            long carry = 0;
+            for (int j = 0; j < len; j++) {
+                long p = m * (n[j] & LONG_MASK) + (t[i + j] & LONG_MASK) + carry;
+                t[i + j] = (int) p;
+                carry = p >>> 32;
+            }
+            long s = (t[i + len] & LONG_MASK) + carry + high;
+            t[i + len] = (int) s;
+            high = s >>> 32;
+        }
+
+        // Subtract n anyway; keep the difference if t / R >= n, i.e. if there was
+        // a carry word or the subtraction did not borrow
+        long borrow = 0;
+        for (int j = 0; j < len; j++) {
+            long d = (t[len + j] & LONG_MASK) - (n[j] & LONG_MASK) - borrow;
+            out[j] = (int) d;
+            borrow = d >>> 63;
+        }
+        int keep = -(int) (high | (borrow ^ 1));
+        for (int j = 0; j < len; j++) {
+            out[j] = (out[j] & keep) | (t[len + j] & ~keep);
+        }
+    }
+
+    // Montgomery reduction of t (2 * len + 1 words, top word zero) into out
+    private void reduce(int[] t, int[] out) {
+        int[] n = this.n;
+        int len = this.len;
+        int nPrime = this.nPrime;
+        for (int i = 0; i < len; i++) {
+            long m = (t[i] * nPrime) & LONG_MASK;
+            long carry = 0;
+            for (int j = 0; j < len; j++) {
+                long p = m * (n[j] & LONG_MASK) + (t[i + j] & LONG_MASK) + carry;
+                t[i + j] = (int) p;
+                carry = p >>> 32;
+            }
+            for (int k = i + len; carry != 0 && k <= 2 * len; k++) {
+                long s = (t[k] & LONG_MASK) + carry;
+                t[k] = (int) s;
+                carry = s >>> 32;
+            }
+        }
+
+        // t / R < 2n, so at most one subtraction
+        if (t[2 * len] != 0 || compareUpper(t) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < len; j++) {
+                long d = (t[len + j] & LONG_MASK) - (n[j] & LONG_MASK) - borrow;
+                out[j] = (int) d;
+                borrow = (d >>> 63);
+            }
+        } else {
+            System.arraycopy(t, len, out, 0, len);
+        }
+    }
+
+    // Compares t[len .. 2 * len - 1] with n
+    private int compareUpper(int[] t) {
+        for (int j = len - 1; j >= 0; j--) {
+            int c = Integer.compareUnsigned(t[len + j], n[j]);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    static int windowSize(int bits) {
+        if (bits > 1536) {
+            return 6;
+        }
+        if (bits > 512) {
+            return 5;
+        }
+        if (bits > 128) {
+            return 4;
+        }
+        return bits > 16 ? 3 : 1;
+    }
+
+    static int[] toLimbs(BigInteger x, int len) {
+        byte[] bytes = x.toByteArray();
+        int[] limbs = new int[len];
+        for (int i = 0; i < bytes.length && i < 4 * len; i++) {
+            limbs[i >>> 2] |= (bytes[bytes.length - 1 - i] & 0xff) << (8 * (i & 3));
+        }
+        return limbs;
+    }
+
+    static BigInteger toBigInteger(int[] limbs) {
+        byte[] bytes = new byte[4 * limbs.length];
+        for (int i = 0; i < limbs.length; i++) {
+            int w = limbs[limbs.length - 1 - i];
+            bytes[4 * i] = (byte) (w >>> 24);
+            bytes[4 * i + 1] = (byte) (w >>> 16);
+            bytes[4 * i + 2] = (byte) (w >>> 8);
+            bytes[4 * i + 3] = (byte) w;
+        }
+        return new BigInteger(1, bytes);
+    }
+}
@@ -0,0 +1,123 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.math.BigInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latency mode for CRT decryption: the two half-size exponentiations
+ * m1 = c^dP mod p and m2 = c^dQ mod q run on two cores at once, m1 on the
+ * calling thread and m2 on a helper thread.
+ *
+ * Helpers sit in a pool with a SynchronousQueue, so a task is only handed off
+ * when a helper is idle and waiting; otherwise the call runs sequentially. The
+ * split is also skipped when it could only cost throughput:
+ * - more calls are in flight than half the cores (each split call uses two), or
+ * - the system load average is at or above the number of cores.
+ *
+ * Used by RSAUtils.decryptCRT when an instance is passed to its constructor.
+ */
+public class ParallelCRT {
+
+    // How often the load average is re-read
+    private static final long LOAD_SAMPLE_NANOS = 100_000_000L;
+
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final ThreadPoolExecutor helpers;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile boolean loadSaturated;
+    private volatile long loadSampledAt = System.nanoTime() - LOAD_SAMPLE_NANOS;
+
+    private final LongAdder parallelRuns = new LongAdder();
+    private final LongAdder sequentialRuns = new LongAdder();
+
+    public ParallelCRT() {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * @param helperThreads Number of helper threads (at most this many calls are split at once).
+     */
+    public ParallelCRT(int helperThreads) {
+        if (helperThreads < 1) {
+            throw new IllegalArgumentException("At least one helper thread is required.");
+        }
+        this.helpers = new ThreadPoolExecutor(helperThreads, helperThreads, 0, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), VirtualThreads.daemonThreads("crt-helper"));
+        // Start the helpers now so the first request does not pay for thread creation
+        helpers.prestartAllCoreThreads();
+    }
+
+    /**
+     * Computes first and second, in parallel when a helper is free and the system
+     * is not saturated, and returns { first, second }.
+     */
+    public BigInteger[] both(Supplier<BigInteger> first, Supplier<BigInteger> second) {
+        int running = inFlight.incrementAndGet();
+        try {
+            FutureTask<BigInteger> forked = null;
+            if (cores > 1 && running <= cores / 2 && !isLoadSaturated()) {
+                forked = new FutureTask<>(second::get);
+                try {
+                    helpers.execute(forked);
+                } catch (RejectedExecutionException ex) {
+                    // No idle helper
+                    forked = null;
+                }
+            }
+
+            if (forked == null) {
+                sequentialRuns.increment();
+                return new BigInteger[] { first.get(), second.get() };
+            }
+
+            parallelRuns.increment();
+            BigInteger a = first.get();
+            try {
+                return new BigInteger[] { a, forked.get() };
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause
+                        : new IllegalStateException("CRT helper failed", cause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                forked.cancel(true);
+                throw new IllegalStateException("Interrupted during CRT decryption", ex);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public long getParallelRuns() {
+        return parallelRuns.sum();
+    }
+
+    public long getSequentialRuns() {
+        return sequentialRuns.sum();
+    }
+
+    public void shutdown() {
+        helpers.shutdown();
+    }
+
+    private boolean isLoadSaturated() {
+        long now = System.nanoTime();
+        if (now - loadSampledAt >= LOAD_SAMPLE_NANOS) {
+            loadSampledAt = now;
+            // Negative when the platform does not report a load average
+            double load = os.getSystemLoadAverage();
+            loadSaturated = load >= cores;
+        }
+        return loadSaturated;
+    }
+}
@@ -0,0 +1,450 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLServerSocketFactory;
+
+/**
+ * Coordinator of a prime-search farm: worker processes (PrimeFarmWorker)
+ * connect over TCP, search for primes, and stream them back; the coordinator
+ * checks them and pairs them into KeyPairs.
+ *
+ * Work is split into jobs, each "find one prime of `bits` bits". Workers draw
+ * their candidates from their own RandomSources.getDefault(), so nothing
+ * secret crosses the wire, and a prime returned twice is rejected. Each worker
+ * holds at most one job per thread it announced and gets a new one for every
+ * prime it returns, so faster workers automatically take a bigger share.
+ *
+ * When a worker disconnects, or sends nothing (not even a heartbeat) for
+ * {@link #WORKER_TIMEOUT_MILLIS}, its open jobs go back to the front of the
+ * queue and are handed to the next worker asking for work.
+ *
+ * Workers authenticate with a shared secret in HELLO (PRIME_FARM_TOKEN), and
+ * a worker may only answer jobs it was given and has not answered yet. The
+ * secret goes over the connection, so a coordinator listening on anything but
+ * loopback must use TLS (--tls; the certificate comes from the standard
+ * javax.net.ssl.keyStore properties, and workers need a matching trust store).
+ *
+ * Returned primes are not trusted: each one is re-tested with Miller-Rabin
+ * (outside the lock, so other workers are not held up) and its size is
+ * checked, and pairs must pass RSAPrimeVerifier (the distance check for strong
+ * primes, as in KeyPair.generateStrongKeyPair) and have gcd(e, phi) = 1 before
+ * KeyPair.fromPrimes builds the key.
+ *
+ * Line protocol (numbers in hex):
+ * <pre>
+ * worker:      HELLO name threads secret | PRIME jobId p | ALIVE
+ * coordinator: JOB jobId bits certainty strong | STOP
+ * </pre>
+ *
+ * Usage:
+ * <pre>
+ * PRIME_FARM_TOKEN=... java PrimeFarmCoordinator [--port 9090] [--bind 127.0.0.1] [--tls] [--bits 8192]
+ *                                                [--keys 10] [--random] [--out dir]
+ * </pre>
+ */
+public class PrimeFarmCoordinator implements Closeable {
+
+    public static final int DEFAULT_PORT = 9090;
+    static final String TOKEN_ENV = "PRIME_FARM_TOKEN";
+    static final long WORKER_TIMEOUT_MILLIS = 30_000;
+    // Upper bound on the threads a worker may announce, and so on its open jobs
+    private static final int MAX_WORKER_THREADS = 1024;
+
+    // Miller-Rabin rounds used by workers and by the coordinator's re-check
+    private static final int WORKER_CERTAINTY = 40;
+    private static final int VERIFY_ROUNDS = 16;
+
+    private static final BigInteger E = BigInteger.valueOf(65537);
+
+    private final int keyBits;
+    private final int keyCount;
+    private final boolean strong;
+    private final byte[] secret;
+    private final ServerSocket server;
+
+    // Requeued job IDs of failed workers, taken before new ones
+    private final LinkedBlockingDeque<Long> requeued = new LinkedBlockingDeque<>();
+    private final AtomicLong nextJobId = new AtomicLong();
+
+    private final List<BigInteger> unpaired = new ArrayList<>();
+    private final Set<BigInteger> seen = new HashSet<>();
+    private final List<KeyPair> keys = new ArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final Map<Connection, Boolean> connections = new ConcurrentHashMap<>();
+    private volatile boolean done;
+
+    private final LongAdder primesReceived = new LongAdder();
+    private final LongAdder primesRejected = new LongAdder();
+    private final LongAdder workerFailures = new LongAdder();
+    private final LongAdder jobsRequeued = new LongAdder();
+
+    /**
+     * @param bind     Address to listen on (loopback for a single host).
+     * @param port     TCP port (0 for any free port).
+     * @param tls      Listen with TLS (SSLServerSocketFactory.getDefault()); required
+     *                 unless bind is a loopback address.
+     * @param secret   Shared secret workers must send in HELLO (no whitespace).
+     * @param keyBits  Modulus size of the keys to build.
+     * @param keyCount Number of keys to build.
+     * @param strong   Strong primes (Gordon) if true, plain random primes otherwise.
+     */
+    public PrimeFarmCoordinator(InetAddress bind, int port, boolean tls, String secret, int keyBits, int keyCount,
+            boolean strong) throws IOException {
+        if (keyBits < 512 || keyBits % 2 != 0) {
+            throw new IllegalArgumentException("Key size must be even and at least 512 bits.");
+        }
+        if (keyCount < 1) {
+            throw new IllegalArgumentException("At least one key is required.");
+        }
+        if (secret == null || !secret.matches("\\S+")) {
+            throw new IllegalArgumentException("The worker secret must be non-empty and contain no whitespace.");
+        }
+        if (!tls && !bind.isLoopbackAddress()) {
+            throw new IllegalArgumentException("Refusing to listen on " + bind.getHostAddress()
+                    + " without TLS; the worker secret would cross the network in clear text.");
+        }
+        this.keyBits = keyBits;
+        this.keyCount = keyCount;
+        this.strong = strong;
+        this.secret = secret.getBytes(StandardCharsets.US_ASCII);
+        this.server = tls ? SSLServerSocketFactory.getDefault().createServerSocket() : new ServerSocket();
+        server.bind(new InetSocketAddress(bind, port));
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Starts accepting workers.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "farm-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Waits until all keys are built, then tells the workers to stop.
+     */
+    public List<KeyPair> awaitKeys() throws InterruptedException {
+        finished.await();
+        synchronized (this) {
+            return new ArrayList<>(keys);
+        }
+    }
+
+    public int getWorkerCount() {
+        return connections.size();
+    }
+
+    public String statsJson() {
+        synchronized (this) {
+            return String.format("{\"keys\":%d,\"workers\":%d,\"primesReceived\":%d,\"primesRejected\":%d,"
+                    + "\"workerFailures\":%d,\"jobsRequeued\":%d}", keys.size(), connections.size(),
+                    primesReceived.sum(), primesRejected.sum(), workerFailures.sum(), jobsRequeued.sum());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        server.close();
+        for (Connection connection : connections.keySet()) {
+            connection.close();
+        }
+    }
+
+    private void acceptLoop() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setSoTimeout((int) WORKER_TIMEOUT_MILLIS);
+                Connection connection = new Connection(socket);
+                connections.put(connection, Boolean.TRUE);
+                Thread handler = new Thread(connection::serve, "farm-conn-" + socket.getPort());
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException ex) {
+                if (!server.isClosed()) {
+                    System.err.println("Accept failed: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private long nextJob() {
+        Long job = requeued.pollFirst();
+        return job != null ? job : nextJobId.getAndIncrement();
+    }
+
+    /**
+     * Checks a returned prime and pairs it with an earlier one if possible.
+     * Returns false if the prime was rejected.
+     */
+    boolean accept(BigInteger p) {
+        primesReceived.increment();
+        if (done) {
+            return true;
+        }
+        // The expensive checks run unlocked, so one 4096-bit re-test does not stall the other workers
+        if (p.bitLength() != keyBits / 2
+                || !MillerRabin.isProbablePrime(p, VERIFY_ROUNDS, RandomSources.getDefault())
+                || !Utils.gcd(E, p.subtract(BigInteger.ONE)).equals(BigInteger.ONE)) {
+            primesRejected.increment();
+            return false;
+        }
+        return pair(p);
+    }
+
+    // Pairs a verified prime with an earlier one, or keeps it for later
+    private synchronized boolean pair(BigInteger p) {
+        if (done) {
+            return true;
+        }
+        if (!seen.add(p)) {
+            primesRejected.increment();
+            return false;
+        }
+
+        for (Iterator<BigInteger> it = unpaired.iterator(); it.hasNext();) {
+            BigInteger q = it.next();
+            boolean valid = strong ? RSAPrimeVerifier.verifyPrimeDistance(p, q)
+                    : RSAPrimeVerifier.verifyPrimeForRSA(p, q);
+            if (valid) {
+                it.remove();
+                keys.add(KeyPair.fromPrimes(p, q, E));
+                if (keys.size() == keyCount) {
+                    done = true;
+                    for (Connection connection : connections.keySet()) {
+                        connection.send("STOP");
+                    }
+                    finished.countDown();
+                }
+                return true;
+            }
+        }
+        unpaired.add(p);
+        return true;
+    }
+
+    // One worker: reads its messages and hands it jobs
+    private final class Connection {
+        private final Socket socket;
+        private final BufferedWriter out;
+        private final Set<Long> open = new LinkedHashSet<>();
+        // Set once the worker has sent the right secret
+        private String name;
+
+        private Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+        }
+
+        private void serve() {
+            boolean clean = false;
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (name == null && !parts[0].equals("HELLO")) {
+                        throw new IOException(parts[0] + " before HELLO");
+                    }
+                    switch (parts[0]) {
+                        case "HELLO":
+                            if (name != null || parts.length != 4) {
+                                throw new IOException("Malformed HELLO");
+                            }
+                            if (!MessageDigest.isEqual(parts[3].getBytes(StandardCharsets.US_ASCII), secret)) {
+                                throw new IOException("Wrong worker secret");
+                            }
+                            int threads = Integer.parseInt(parts[2]);
+                            if (threads < 1 || threads > MAX_WORKER_THREADS) {
+                                throw new IOException("Invalid thread count " + threads);
+                            }
+                            name = parts[1];
+                            System.err.println("Worker " + name + " joined with " + threads + " thread(s)");
+                            for (int i = 0; i < threads; i++) {
+                                assign();
+                            }
+                            break;
+                        case "PRIME":
+                            long jobId = Long.parseLong(parts[1], 16);
+                            boolean wasOpen;
+                            synchronized (this) {
+                                wasOpen = open.remove(jobId);
+                            }
+                            // Only jobs this worker holds, each answered once, so a worker cannot ask for more work
+                            if (!wasOpen) {
+                                throw new IOException("PRIME for job " + parts[1] + ", which is not open");
+                            }
+                            accept(new BigInteger(parts[2], 16));
+                            assign();
+                            break;
+                        case "ALIVE":
+                            break;
+                        default:
+                            throw new IOException("Unknown message: " + parts[0]);
+                    }
+                    if (done) {
+                        send("STOP");
+                        clean = true;
+                        break;
+                    }
+                }
+            } catch (SocketTimeoutException ex) {
+                System.err.println("Worker " + describe() + " timed out");
+            } catch (IOException | RuntimeException ex) {
+                if (!done) {
+                    System.err.println("Worker " + describe() + " failed: " + ex.getMessage());
+                }
+            } finally {
+                connections.remove(this);
+                close();
+                requeueOpenJobs(clean);
+            }
+        }
+
+        private String describe() {
+            return name != null ? name : String.valueOf(socket.getRemoteSocketAddress());
+        }
+
+        private void assign() {
+            if (done) {
+                return;
+            }
+            long job = nextJob();
+            synchronized (this) {
+                open.add(job);
+            }
+            send(String.format("JOB %x %x %x %d", job, keyBits / 2, WORKER_CERTAINTY, strong ? 1 : 0));
+        }
+
+        // Open jobs of a failed worker go to the front of the queue
+        private void requeueOpenJobs(boolean clean) {
+            synchronized (this) {
+                // Connections that never authenticated are not workers
+                if (!clean && !done && name != null) {
+                    workerFailures.increment();
+                }
+                if (!done) {
+                    for (long job : open) {
+                        requeued.addFirst(job);
+                        jobsRequeued.increment();
+                    }
+                }
+                open.clear();
+            }
+        }
+
+        private synchronized void send(String message) {
+            try {
+                out.write(message);
+                out.write('\n');
+                out.flush();
+            } catch (IOException ex) {
+                // Reported by the reading side
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Already closed
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = DEFAULT_PORT;
+        String bind = "127.0.0.1";
+        boolean tls = false;
+        int bits = 8192;
+        int count = 1;
+        boolean strong = true;
+        Path outDir = Paths.get(".");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--bind":
+                    bind = args[++i];
+                    break;
+                case "--tls":
+                    tls = true;
+                    break;
+                case "--bits":
+                    bits = Integer.parseInt(args[++i]);
+                    break;
+                case "--keys":
+                    count = Integer.parseInt(args[++i]);
+                    break;
+                case "--random":
+                    strong = false;
+                    break;
+                case "--out":
+                    outDir = Paths.get(args[++i]);
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println("Usage: java PrimeFarmCoordinator [--port 9090] [--bind 127.0.0.1] [--tls]"
+                            + " [--bits 8192] [--keys 1] [--random] [--out dir]");
+                    System.exit(1);
+            }
+        }
+        String secret = System.getenv(TOKEN_ENV);
+        if (secret == null) {
+            System.err.println("Set " + TOKEN_ENV + " to the secret the workers will send.");
+            System.exit(1);
+        }
+
+        Files.createDirectories(outDir);
+        try (PrimeFarmCoordinator farm = new PrimeFarmCoordinator(InetAddress.getByName(bind), port, tls, secret,
+                bits, count, strong)) {
+            farm.start();
+            System.err.printf("Coordinator on %s:%d, building %d %s %d-bit key(s)%n", bind, farm.getPort(), count,
+                    strong ? "strong" : "random", bits);
+            long start = System.nanoTime();
+            List<KeyPair> keys = farm.awaitKeys();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            for (int i = 0; i < keys.size(); i++) {
+                Path file = outDir.resolve("farm-" + i + KeyFile.EXTENSION);
+                KeyFile.save(keys.get(i), file);
+                System.out.println(file);
+            }
+            System.err.printf("Built %d key(s) in %.1f s: %s%n", keys.size(), seconds, farm.statsJson());
+            // Let the STOP messages reach the workers before the sockets close
+            Thread.sleep(200);
+        }
+    }
+}
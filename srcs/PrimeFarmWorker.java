@@ -0,0 +1,157 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Worker of a prime-search farm (see PrimeFarmCoordinator): connects to the
+ * coordinator, runs one PrimeGenerator search per job on each of its threads,
+ * and sends each prime back as soon as it is found.
+ *
+ * Candidates come from RandomSources.getDefault(); the coordinator only says
+ * what to search for. The worker authenticates with the shared secret from
+ * PRIME_FARM_TOKEN, over TLS (--tls) when the coordinator is on another host.
+ * A heartbeat is sent every few seconds, so long searches (4096-bit strong
+ * primes take minutes) are not mistaken for a dead worker.
+ *
+ * Usage:
+ * <pre>
+ * PRIME_FARM_TOKEN=... java PrimeFarmWorker [--host 127.0.0.1] [--port 9090] [--tls] [--threads N] [--name id]
+ * </pre>
+ */
+public class PrimeFarmWorker {
+
+    private static final long HEARTBEAT_MILLIS = PrimeFarmCoordinator.WORKER_TIMEOUT_MILLIS / 4;
+
+    private final String name;
+    private final int threads;
+    private final String secret;
+
+    public PrimeFarmWorker(String name, int threads, String secret) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required.");
+        }
+        if (secret == null || !secret.matches("\\S+")) {
+            throw new IllegalArgumentException("The worker secret must be non-empty and contain no whitespace.");
+        }
+        this.name = name;
+        this.threads = threads;
+        this.secret = secret;
+    }
+
+    /**
+     * Serves jobs until the coordinator sends STOP or the connection is lost.
+     *
+     * @param tls Connect with SSLSocketFactory.getDefault().
+     * @return Number of primes sent.
+     */
+    public int run(String host, int port, boolean tls) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, VirtualThreads.daemonThreads("prime-search"));
+        ScheduledExecutorService heartbeat = Executors
+                .newSingleThreadScheduledExecutor(VirtualThreads.daemonThreads("heartbeat"));
+        AtomicInteger sent = new AtomicInteger();
+        try (Socket socket = tls ? SSLSocketFactory.getDefault().createSocket(InetAddress.getByName(host), port)
+                : new Socket(InetAddress.getByName(host), port);
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                BufferedWriter out = new BufferedWriter(
+                        new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII))) {
+
+            send(out, "HELLO " + name + " " + threads + " " + secret);
+            heartbeat.scheduleAtFixedRate(() -> send(out, "ALIVE"), HEARTBEAT_MILLIS, HEARTBEAT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts[0].equals("STOP")) {
+                    break;
+                }
+                if (!parts[0].equals("JOB")) {
+                    throw new IOException("Unknown message: " + parts[0]);
+                }
+                long jobId = Long.parseLong(parts[1], 16);
+                int bits = Integer.parseInt(parts[2], 16);
+                int certainty = Integer.parseInt(parts[3], 16);
+                boolean strong = parts[4].equals("1");
+
+                pool.execute(() -> {
+                    RandomSource random = RandomSources.getDefault();
+                    BigInteger p = strong ? PrimeGenerator.generateStrongPrime(bits, certainty, random)
+                            : PrimeGenerator.generatePrime(bits, certainty, random);
+                    send(out, String.format("PRIME %x %s", jobId, p.toString(16)));
+                    sent.incrementAndGet();
+                });
+            }
+        } finally {
+            heartbeat.shutdownNow();
+            // Searches still running are abandoned; the coordinator already has enough
+            pool.shutdownNow();
+        }
+        return sent.get();
+    }
+
+    private static void send(BufferedWriter out, String message) {
+        synchronized (out) {
+            try {
+                out.write(message);
+                out.write('\n');
+                out.flush();
+            } catch (IOException ex) {
+                // The reading side sees the closed connection and stops
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = "127.0.0.1";
+        int port = PrimeFarmCoordinator.DEFAULT_PORT;
+        boolean tls = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String name = "worker-" + ProcessHandle.current().pid();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host":
+                    host = args[++i];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--tls":
+                    tls = true;
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--name":
+                    name = args[++i];
+                    break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println("Usage: java PrimeFarmWorker [--host 127.0.0.1] [--port 9090] [--tls]"
+                            + " [--threads N] [--name id]");
+                    System.exit(1);
+            }
+        }
+        String secret = System.getenv(PrimeFarmCoordinator.TOKEN_ENV);
+        if (secret == null) {
+            System.err.println("Set " + PrimeFarmCoordinator.TOKEN_ENV + " to the coordinator's worker secret.");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        int primes = new PrimeFarmWorker(name, threads, secret).run(host, port, tls);
+        System.err.printf("%s sent %d prime(s) in %.1f s%n", name, primes, (System.nanoTime() - start) / 1e9);
+    }
+}
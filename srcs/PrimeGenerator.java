@@ -1,18 +1,57 @@
 import java.math.BigInteger;
-import java.security.SecureRandom;
+import java.util.Arrays;
 
 public class PrimeGenerator {
 
-    private static final int CERTAINTY = 10; // Number of Miller-Rabin rounds (higher = more accurate)
+    static final int CERTAINTY = 10; // Number of Miller-Rabin rounds (higher = more accurate)
 
     private static final int[] SMALL_PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53 };
 
+    // Odd primes used to sieve candidates before Miller-Rabin
+    private static final int SIEVE_LIMIT = 4096;
+    private static final int[] SIEVE_PRIMES = oddPrimesBelow(SIEVE_LIMIT);
+
+    // Products of consecutive SIEVE_PRIMES below 2^62; group g covers
+    // SIEVE_PRIMES[SIEVE_GROUP_START[g] .. SIEVE_GROUP_START[g + 1])
+    private static final long[] SIEVE_GROUPS;
+    private static final int[] SIEVE_GROUP_START;
+
+    static {
+        long[] groups = new long[SIEVE_PRIMES.length];
+        int[] starts = new int[SIEVE_PRIMES.length + 1];
+        int count = 0;
+        long product = 1;
+        for (int i = 0; i < SIEVE_PRIMES.length; i++) {
+            if (product > (1L << 62) / SIEVE_PRIMES[i]) {
+                groups[count++] = product;
+                starts[count] = i;
+                product = 1;
+            }
+            product *= SIEVE_PRIMES[i];
+        }
+        groups[count++] = product;
+        starts[count] = SIEVE_PRIMES.length;
+        SIEVE_GROUPS = Arrays.copyOf(groups, count);
+        SIEVE_GROUP_START = Arrays.copyOf(starts, count + 1);
+    }
+
+    // Number of candidates sieved at once
+    private static final int SIEVE_WINDOW = 4096;
+
+    // Extra bits of the prime above the auxiliary primes (Gordon's algorithm)
+    private static final int STRONG_PRIME_MARGIN = 32;
+
     // Generate a probable prime number with the specified bit length using default
     // certainty
     public static BigInteger generatePrime(int bitLength) {
         return generatePrime(bitLength, CERTAINTY);
     }
 
+    // Same as generatePrime(int), drawing randomness from the given source
+    public static BigInteger generatePrime(int bitLength, RandomSource random) {
+        return generatePrime(bitLength, CERTAINTY, random);
+    }
+
     /**
      * Generates a probable prime number with the specified bit length and
      * certainty.
@@ -23,21 +62,196 @@ public class PrimeGenerator {
      * @return A probable prime BigInteger.
      */
     public static BigInteger generatePrime(int bitLength, int certainty) {
-        SecureRandom random = new SecureRandom();
+        return generatePrime(bitLength, certainty, RandomSources.getDefault());
+    }
 
+    /**
+     * Same as {@link #generatePrime(int, int)} with an explicit randomness source
+     * (e.g. RandomSources.seeded(..) for reproducible runs).
+     */
+    public static BigInteger generatePrime(int bitLength, int certainty, RandomSource random) {
         while (true) {
             // Generate a random odd number of the given bit length
-            BigInteger candidate = new BigInteger(bitLength, random).setBit(bitLength - 1).setBit(0);
+            BigInteger candidate = randomOdd(bitLength, random);
 
             // Test primality with custom certainty
-            if (isProbablePrime(candidate, certainty)) {
+            if (isProbablePrime(candidate, certainty, random)) {
                 return candidate;
             }
         }
     }
 
+    /**
+     * Generates a strong prime with Gordon's algorithm. The result p satisfies
+     * by construction:
+     * - p - 1 has a large prime factor r,
+     * - p + 1 has a large prime factor s,
+     * - r - 1 has a large prime factor t,
+     * so no smoothness check of p - 1 is needed afterwards. The two top bits are
+     * set, so the product of two such primes has exactly 2 * bitLength bits.
+     *
+     * @param bitLength The bit length of the prime (at least 128).
+     * @param certainty The number of Miller-Rabin rounds per candidate.
+     * @return A strong probable prime of exactly bitLength bits.
+     */
+    public static BigInteger generateStrongPrime(int bitLength, int certainty) {
+        return generateStrongPrime(bitLength, certainty, RandomSources.getDefault());
+    }
+
+    /**
+     * Same as {@link #generateStrongPrime(int, int)} with an explicit randomness source.
+     */
+    public static BigInteger generateStrongPrime(int bitLength, int certainty, RandomSource random) {
+        if (bitLength < 128) {
+            throw new IllegalArgumentException("Strong primes need a bit length of at least 128.");
+        }
+        // s, t ~ bitLength/2 - margin bits, so r*s leaves room for the final search
+        int auxBits = bitLength / 2 - STRONG_PRIME_MARGIN;
+
+        while (true) {
+            // 1. Auxiliary primes s and t
+            BigInteger s = nextPrimeInProgression(randomOdd(auxBits, random), BigInteger.TWO, certainty, random);
+            BigInteger t = nextPrimeInProgression(randomOdd(auxBits, random), BigInteger.TWO, certainty, random);
+
+            // 2. r = 2*i*t + 1, the first prime of that form from a random i
+            BigInteger i0 = random.nextBigInteger(16).setBit(15);
+            BigInteger twoT = t.shiftLeft(1);
+            BigInteger r = nextPrimeInProgression(twoT.multiply(i0).add(BigInteger.ONE), twoT, certainty, random);
+
+            // 3. p0 = 2 * (s^(r-2) mod r) * s - 1, so p0 = 1 (mod r) and p0 = -1 (mod s)
+            // r is used once, so it gets no cached Montgomery context
+            BigInteger u = AutoTuner.modPow(s, r.subtract(BigInteger.TWO), r, null);
+            BigInteger p0 = u.multiply(s).shiftLeft(1).subtract(BigInteger.ONE);
+
+            // 4. p = p0 + 2*j*r*s, starting at a random point with the top two bits set
+            BigInteger step = r.multiply(s).shiftLeft(1);
+            BigInteger target = random.nextBigInteger(bitLength).setBit(bitLength - 1).setBit(bitLength - 2);
+            BigInteger j0 = target.subtract(p0).add(step).subtract(BigInteger.ONE).divide(step);
+            BigInteger p = nextPrimeInProgression(p0.add(step.multiply(j0)), step, certainty, random);
+
+            // Rarely the search runs past 2^bitLength; start over
+            if (p.bitLength() == bitLength) {
+                return p;
+            }
+        }
+    }
+
+    /**
+     * Finds the first probable prime in start, start + step, start + 2*step, ...
+     * Candidates are sieved by the small primes in windows of SIEVE_WINDOW, so
+     * Miller-Rabin only runs on candidates with no small factor.
+     */
+    private static BigInteger nextPrimeInProgression(BigInteger start, BigInteger step, int certainty,
+            RandomSource random) {
+        int[] startMod = new int[SIEVE_PRIMES.length];
+        int[] stepMod = new int[SIEVE_PRIMES.length];
+        for (int i = 0; i < SIEVE_PRIMES.length; i++) {
+            BigInteger sp = BigInteger.valueOf(SIEVE_PRIMES[i]);
+            startMod[i] = start.mod(sp).intValue();
+            stepMod[i] = step.mod(sp).intValue();
+        }
+
+        boolean[] composite = new boolean[SIEVE_WINDOW];
+        for (long window = 0;; window += SIEVE_WINDOW) {
+            Arrays.fill(composite, false);
+
+            for (int i = 0; i < SIEVE_PRIMES.length; i++) {
+                int sp = SIEVE_PRIMES[i];
+                // Residue of the first candidate of this window
+                long residue = (startMod[i] + (window % sp) * stepMod[i]) % sp;
+                if (stepMod[i] == 0) {
+                    // Every candidate has the same residue
+                    if (residue == 0) {
+                        Arrays.fill(composite, true);
+                    }
+                    continue;
+                }
+                // First k with residue + k*step = 0 (mod sp)
+                long k = ((sp - residue) % sp) * modInverseSmall(stepMod[i], sp) % sp;
+                for (; k < SIEVE_WINDOW; k += sp) {
+                    composite[(int) k] = true;
+                }
+            }
+
+            BigInteger candidate = start.add(step.multiply(BigInteger.valueOf(window)));
+            for (int k = 0; k < SIEVE_WINDOW; k++, candidate = candidate.add(step)) {
+                if (!composite[k] && isProbablePrime(candidate, certainty, random)) {
+                    return candidate;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether n has a factor among the odd primes below SIEVE_LIMIT (n itself
+     * being one of them does not count). The primes are grouped so that each
+     * group's product fits in a long, which needs one BigInteger remainder per
+     * group instead of one per prime.
+     */
+    static boolean hasSmallFactor(BigInteger n) {
+        if (n.bitLength() <= 12) {
+            int value = n.intValue();
+            for (int sp : SIEVE_PRIMES) {
+                if (sp < value && value % sp == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        for (int g = 0; g < SIEVE_GROUPS.length; g++) {
+            long residue = n.mod(BigInteger.valueOf(SIEVE_GROUPS[g])).longValue();
+            for (int i = SIEVE_GROUP_START[g]; i < SIEVE_GROUP_START[g + 1]; i++) {
+                if (residue % SIEVE_PRIMES[i] == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Random odd number of exactly bitLength bits
+    static BigInteger randomOdd(int bitLength, RandomSource random) {
+        return random.nextBigInteger(bitLength).setBit(bitLength - 1).setBit(0);
+    }
+
+    // a^-1 mod m for small coprime a, m
+    private static long modInverseSmall(long a, long m) {
+        long oldR = a, r = m, oldS = 1, s = 0;
+        while (r != 0) {
+            long quotient = oldR / r;
+            long tmp = r;
+            r = oldR - quotient * r;
+            oldR = tmp;
+            tmp = s;
+            s = oldS - quotient * s;
+            oldS = tmp;
+        }
+        return ((oldS % m) + m) % m;
+    }
+
+    private static int[] oddPrimesBelow(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (!composite[i]) {
+                count++;
+                for (long j = (long) i * i; j < limit; j += 2L * i) {
+                    composite[(int) j] = true;
+                }
+            }
+        }
+        int[] primes = new int[count];
+        int index = 0;
+        for (int i = 3; i < limit; i += 2) {
+            if (!composite[i]) {
+                primes[index++] = i;
+            }
+        }
+        return primes;
+    }
+
     // Miller-Rabin primality test
-    private static boolean isProbablePrime(BigInteger n, int millerRabinRounds) {
+    static boolean isProbablePrime(BigInteger n, int millerRabinRounds, RandomSource random) {
         // Handle simple cases
         if (n.compareTo(BigInteger.TWO) < 0)
             return false;
@@ -56,49 +270,8 @@ public class PrimeGenerator {
             if (n.mod(bigP).equals(BigInteger.ZERO))
                 return false;
         }
-        // Dùng Bitwise thay vì phép chia (Tăng tốc cực lớn)
-        BigInteger nMinus1 = n.subtract(BigInteger.ONE);
-        int k = nMinus1.getLowestSetBit();
-        BigInteger q = nMinus1.shiftRight(k);
-
-        SecureRandom random = new SecureRandom();
-
-        for (int i = 0; i < millerRabinRounds; i++) {
-            BigInteger a = uniformRandom(BigInteger.TWO, n.subtract(BigInteger.TWO), random);
-            BigInteger x = Utils.modPow(a, q, n);
-
-            if (x.equals(BigInteger.ONE) || x.equals(nMinus1))
-                continue;
-
-            boolean isComposite = true;
-            for (int j = 0; j < k - 1; j++) {
-                x = Utils.modPow(x, BigInteger.TWO, n);
-
-                if (x.equals(nMinus1)) {
-                    isComposite = false;
-                    break;
-                }
-
-                if (x.equals(BigInteger.ONE)) {
-                    return false;
-                }
-            }
-
-            if (isComposite)
-                return false;
-        }
-
-        return true;
-    }
-
-    // Generate a random BigInteger in the range [min, max]
-    private static BigInteger uniformRandom(BigInteger min, BigInteger max, SecureRandom random) {
-        BigInteger range = max.subtract(min).add(BigInteger.ONE);
-        int bitLength = range.bitLength();
-        BigInteger result;
-        do {
-            result = new BigInteger(bitLength, random);
-        } while (result.compareTo(range) >= 0);
-        return result.add(min);
+        // Witness rounds run on a shared Montgomery context (in parallel where the tuner chose it)
+        return MillerRabin.isProbablePrime(n, millerRabinRounds, random,
+                AutoTuner.current().isParallelMillerRabin(n.bitLength()));
     }
 }
@@ -0,0 +1,427 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Compact store for large numbers of recipient public keys (n, e).
+ *
+ * - Moduli are packed back to back as unsigned big-endian bytes in large
+ *   off-heap slabs (direct buffers, or memory-mapped files when a slab
+ *   directory is given), so they are invisible to the garbage collector.
+ * - Each distinct e is stored once; a key only records a 16-bit exponent index
+ *   (in practice almost every key shares 65537).
+ * - Keys are indexed by their SHA-256 fingerprint in an open-addressing table of
+ *   primitive arrays (128 bits of the fingerprint per slot).
+ *
+ * A key is identified by an int handle. Per-key overhead on the heap is 12
+ * bytes of location data plus about 40 bytes of index, on top of the raw
+ * modulus bytes off-heap. find() and the handle accessors do not allocate;
+ * a BigInteger is only materialised by modulus() when it is needed as an
+ * operand for RSAUtils.
+ *
+ * Adds are serialised; lookups may run concurrently with each other and with adds.
+ */
+public class PublicKeyDirectory implements Closeable {
+
+    public static final int FINGERPRINT_BYTES = 32;
+
+    private static final int DEFAULT_SLAB_BYTES = 64 * 1024 * 1024;
+    private static final int MAX_EXPONENTS = 1 << 16;
+    private static final int MAX_MODULUS_BYTES = 1 << 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    });
+
+    private final Path slabDir;
+    private final int slabBytes;
+    private final StampedLock lock = new StampedLock();
+
+    // Off-heap modulus storage
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    private final List<FileChannel> slabChannels = new ArrayList<>();
+    private final List<Path> slabFiles = new ArrayList<>();
+    private int slabUsed;
+
+    // Per-key records: location = slab << 32 | offset, info = exponent index << 16 | modulus length
+    private long[] locations = new long[INITIAL_CAPACITY];
+    private int[] infos = new int[INITIAL_CAPACITY];
+    private int count;
+
+    // Distinct public exponents
+    private final List<BigInteger> exponents = new ArrayList<>();
+    private final Map<BigInteger, Integer> exponentIndex = new HashMap<>();
+
+    // Fingerprint index: slot holds handle + 1 (0 = empty)
+    private long[] fpHigh = new long[2 * INITIAL_CAPACITY];
+    private long[] fpLow = new long[2 * INITIAL_CAPACITY];
+    private int[] slotHandles = new int[2 * INITIAL_CAPACITY];
+
+    /**
+     * Directory backed by direct (off-heap) buffers.
+     */
+    public PublicKeyDirectory() {
+        this(null, DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * @param slabDir   Directory for memory-mapped slab files (deleted on close), or
+     *                  null for direct buffers.
+     * @param slabBytes Size of one slab.
+     */
+    public PublicKeyDirectory(Path slabDir, int slabBytes) {
+        if (slabBytes < MAX_MODULUS_BYTES) {
+            throw new IllegalArgumentException("Slabs must hold at least " + MAX_MODULUS_BYTES + " bytes.");
+        }
+        this.slabDir = slabDir;
+        this.slabBytes = slabBytes;
+    }
+
+    /**
+     * SHA-256 over I2OSP(n) || I2OSP(e) (minimal unsigned encodings).
+     */
+    public static byte[] fingerprint(BigInteger n, BigInteger e) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        md.update(OctetString.toBytes(n, OctetString.length(n)));
+        md.update(OctetString.toBytes(e, OctetString.length(e)));
+        return md.digest();
+    }
+
+    /**
+     * Adds a public key, or returns the handle of the identical key already stored.
+     *
+     * @return The key's handle.
+     */
+    public int add(BigInteger n, BigInteger e) throws IOException {
+        if (n.signum() <= 0 || e.signum() <= 0) {
+            throw new IllegalArgumentException("Modulus and exponent must be positive.");
+        }
+        byte[] fp = fingerprint(n, e);
+        long high = readLong(fp, 0);
+        long low = readLong(fp, 8);
+        byte[] modulus = OctetString.toBytes(n, OctetString.length(n));
+        if (modulus.length >= MAX_MODULUS_BYTES) {
+            throw new IllegalArgumentException("Modulus too large.");
+        }
+
+        long stamp = lock.writeLock();
+        try {
+            int existing = findLocked(high, low);
+            if (existing >= 0) {
+                return existing;
+            }
+
+            Integer exp = exponentIndex.get(e);
+            if (exp == null) {
+                if (exponents.size() == MAX_EXPONENTS) {
+                    throw new IllegalStateException("Too many distinct public exponents.");
+                }
+                exp = exponents.size();
+                exponents.add(e);
+                exponentIndex.put(e, exp);
+            }
+
+            if (slabs.length == 0 || slabBytes - slabUsed < modulus.length) {
+                addSlab();
+            }
+            int slab = slabs.length - 1;
+            slabs[slab].put(slabUsed, modulus);
+
+            if (count == locations.length) {
+                locations = Arrays.copyOf(locations, count * 2);
+                infos = Arrays.copyOf(infos, count * 2);
+            }
+            int handle = count;
+            locations[handle] = ((long) slab << 32) | slabUsed;
+            infos[handle] = (exp << 16) | modulus.length;
+            slabUsed += modulus.length;
+            count++;
+
+            // Keep the table at most half full
+            if (2 * count > slotHandles.length) {
+                rehash(slotHandles.length * 2);
+            }
+            insertSlot(high, low, handle);
+            return handle;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Looks a key up by its 32-byte fingerprint (see {@link #fingerprint}).
+     *
+     * @return The handle, or -1 if absent.
+     */
+    public int find(byte[] fingerprint) {
+        if (fingerprint.length != FINGERPRINT_BYTES) {
+            throw new IllegalArgumentException("Fingerprint must be " + FINGERPRINT_BYTES + " bytes.");
+        }
+        return find(readLong(fingerprint, 0), readLong(fingerprint, 8));
+    }
+
+    /**
+     * Looks a key up by the first 128 bits of its fingerprint.
+     */
+    public int find(long fingerprintHigh, long fingerprintLow) {
+        long stamp = lock.readLock();
+        try {
+            return findLocked(fingerprintHigh, fingerprintLow);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Modulus length in bytes (k).
+     */
+    public int modulusLength(int handle) {
+        long stamp = lock.readLock();
+        try {
+            checkHandle(handle);
+            return infos[handle] & 0xffff;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The shared public exponent instance of a key (no copy).
+     */
+    public BigInteger exponent(int handle) {
+        long stamp = lock.readLock();
+        try {
+            checkHandle(handle);
+            return exponents.get(infos[handle] >>> 16);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Copies the modulus (k unsigned big-endian bytes) into dst.
+     *
+     * @return k, the number of bytes written.
+     */
+    public int copyModulus(int handle, byte[] dst, int off) {
+        long stamp = lock.readLock();
+        try {
+            checkHandle(handle);
+            int length = infos[handle] & 0xffff;
+            long location = locations[handle];
+            slabs[(int) (location >>> 32)].get((int) location, dst, off, length);
+            return length;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * The modulus as a BigInteger, for use as an RSAUtils operand.
+     */
+    public BigInteger modulus(int handle) {
+        byte[] bytes = new byte[modulusLength(handle)];
+        copyModulus(handle, bytes, 0);
+        return new BigInteger(1, bytes);
+    }
+
+    /**
+     * RSA-OAEP encryption to a stored key.
+     */
+    public BigInteger encryptOAEP(int handle, BigInteger message, RSACipher cipher) {
+        return cipher.encryptOAEP(message, exponent(handle), modulus(handle));
+    }
+
+    /**
+     * RSA-OAEP encryption to a stored key between byte buffers.
+     *
+     * @return Number of ciphertext bytes written (k).
+     */
+    public int encryptOAEP(int handle, ByteBuffer plaintext, ByteBuffer ciphertext, RSAByteCipher cipher) {
+        return cipher.encryptOAEP(plaintext, ciphertext, exponent(handle), modulus(handle));
+    }
+
+    /**
+     * Approximate off-heap (or mapped) bytes reserved for moduli.
+     */
+    public long storageBytes() {
+        long stamp = lock.readLock();
+        try {
+            return (long) slabs.length * slabBytes;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Bytes of moduli actually stored.
+     */
+    public long modulusBytes() {
+        long stamp = lock.readLock();
+        try {
+            return slabs.length == 0 ? 0 : (long) (slabs.length - 1) * slabBytes + slabUsed;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long stamp = lock.writeLock();
+        try {
+            slabs = new ByteBuffer[0];
+            for (FileChannel channel : slabChannels) {
+                channel.close();
+            }
+            for (Path file : slabFiles) {
+                Files.deleteIfExists(file);
+            }
+            slabChannels.clear();
+            slabFiles.clear();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void addSlab() throws IOException {
+        ByteBuffer slab;
+        if (slabDir == null) {
+            slab = ByteBuffer.allocateDirect(slabBytes);
+        } else {
+            Path file = Files.createTempFile(slabDir, "keys-", ".slab");
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            slabFiles.add(file);
+            slabChannels.add(channel);
+            slab = channel.map(FileChannel.MapMode.READ_WRITE, 0, slabBytes);
+        }
+        slabs = Arrays.copyOf(slabs, slabs.length + 1);
+        slabs[slabs.length - 1] = slab;
+        slabUsed = 0;
+    }
+
+    private int findLocked(long high, long low) {
+        int mask = slotHandles.length - 1;
+        for (int slot = mix(high) & mask;; slot = (slot + 1) & mask) {
+            int h = slotHandles[slot];
+            if (h == 0) {
+                return -1;
+            }
+            if (fpHigh[slot] == high && fpLow[slot] == low) {
+                return h - 1;
+            }
+        }
+    }
+
+    private void insertSlot(long high, long low, int handle) {
+        int mask = slotHandles.length - 1;
+        int slot = mix(high) & mask;
+        while (slotHandles[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        fpHigh[slot] = high;
+        fpLow[slot] = low;
+        slotHandles[slot] = handle + 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHigh = fpHigh;
+        long[] oldLow = fpLow;
+        int[] oldHandles = slotHandles;
+        fpHigh = new long[capacity];
+        fpLow = new long[capacity];
+        slotHandles = new int[capacity];
+        for (int i = 0; i < oldHandles.length; i++) {
+            if (oldHandles[i] != 0) {
+                insertSlot(oldHigh[i], oldLow[i], oldHandles[i] - 1);
+            }
+        }
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= count) {
+            throw new IllegalArgumentException("Unknown key handle: " + handle);
+        }
+    }
+
+    // Fingerprints are already uniform; fold the high word into an int slot hash
+    private static int mix(long x) {
+        return (int) (x ^ (x >>> 32));
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long x = 0;
+        for (int i = 0; i < 8; i++) {
+            x = (x << 8) | (b[off + i] & 0xff);
+        }
+        return x;
+    }
+
+    /**
+     * Fills a directory with random full-length moduli (e = 65537) and reports
+     * memory use and lookup speed.
+     *
+     * Usage: java PublicKeyDirectory [numberOfKeys] [bits]
+     */
+    public static void main(String[] args) throws IOException {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int bits = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        BigInteger e = BigInteger.valueOf(65537);
+        RandomSource random = RandomSources.getDefault();
+
+        try (PublicKeyDirectory directory = new PublicKeyDirectory()) {
+            long[][] fingerprints = new long[keys][];
+            for (int i = 0; i < keys; i++) {
+                // Random odd moduli of full length are enough to exercise storage and lookup
+                BigInteger n = random.nextBigInteger(bits).setBit(bits - 1).setBit(0);
+                directory.add(n, e);
+                byte[] fp = fingerprint(n, e);
+                fingerprints[i] = new long[] { readLong(fp, 0), readLong(fp, 8) };
+            }
+
+            long start = System.nanoTime();
+            int found = 0;
+            for (int round = 0; round < 10; round++) {
+                for (long[] fp : fingerprints) {
+                    if (directory.find(fp[0], fp[1]) >= 0) {
+                        found++;
+                    }
+                }
+            }
+            double nanosPerLookup = (System.nanoTime() - start) / (10.0 * keys);
+
+            System.out.printf("Keys:              %d x %d bits%n", directory.size(), bits);
+            System.out.printf("Modulus bytes:     %d (%.1f per key)%n", directory.modulusBytes(),
+                    directory.modulusBytes() / (double) keys);
+            System.out.printf("Off-heap reserved: %d MB%n", directory.storageBytes() >> 20);
+            System.out.printf("Lookups:           %d found, %.0f ns each%n", found, nanosPerLookup);
+        }
+    }
+}
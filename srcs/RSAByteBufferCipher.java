@@ -0,0 +1,121 @@
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * RSAByteCipher implementation on top of RSAUtils.
+ *
+ * The OAEP encoding is built in one k-byte array straight from the plaintext
+ * buffer, and results are written to the destination buffer at fixed length
+ * (OctetString), so there is no sign-byte stripping or re-padding. A BigInteger
+ * is only created as the operand of the modular exponentiation itself.
+ */
+public class RSAByteBufferCipher implements RSAByteCipher {
+
+    private static final int OAEP_OVERHEAD = 2 * 32 + 2; // 2 * hLen + 2 for SHA-256
+
+    private final RSAUtils rsa;
+    private final RandomSource random;
+
+    public RSAByteBufferCipher() {
+        this(null);
+    }
+
+    /**
+     * @param random Randomness source for OAEP seeds, or null for RandomSources.getDefault().
+     */
+    public RSAByteBufferCipher(RandomSource random) {
+        this.rsa = new RSAUtils(random);
+        this.random = random;
+    }
+
+    @Override
+    public int modulusLength(BigInteger n) {
+        return OctetString.length(n);
+    }
+
+    @Override
+    public int maxOAEPMessageLength(BigInteger n) {
+        return modulusLength(n) - OAEP_OVERHEAD;
+    }
+
+    @Override
+    public int encryptOAEP(ByteBuffer plaintext, ByteBuffer ciphertext, BigInteger e, BigInteger n) {
+        int k = modulusLength(n);
+        if (ciphertext.remaining() < k) {
+            throw new BufferOverflowException();
+        }
+        byte[] em = new byte[k];
+        try {
+            RSAUtils.padOAEP(plaintext, em, random != null ? random : RandomSources.getDefault());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+        OctetString.write(rsa.encrypt(new BigInteger(1, em), e, n), k, ciphertext);
+        return k;
+    }
+
+    @Override
+    public int decryptOAEP_CRT(ByteBuffer ciphertext, ByteBuffer plaintext, KeyPair keyPair) {
+        BigInteger n = keyPair.getModulus();
+        int k = modulusLength(n);
+        BigInteger c = readBlock(ciphertext, n);
+
+        byte[] em = OctetString.toBytes(rsa.decryptCRT(c, keyPair), k);
+        try {
+            int offset;
+            try {
+                offset = RSAUtils.unpadOAEP(em);
+            } catch (IllegalArgumentException ex) {
+                // One message (and no cause) for every padding failure, so callers cannot leak which check failed
+                throw new IllegalArgumentException("OAEP Decryption failed");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException("SHA-256 is not available", ex);
+            }
+
+            int mLen = k - offset;
+            if (plaintext.remaining() < mLen) {
+                throw new BufferOverflowException();
+            }
+            plaintext.put(em, offset, mLen);
+            return mLen;
+        } finally {
+            // em held the unmasked message and seed
+            Arrays.fill(em, (byte) 0);
+        }
+    }
+
+    @Override
+    public int encrypt(ByteBuffer block, ByteBuffer ciphertext, BigInteger e, BigInteger n) {
+        int k = modulusLength(n);
+        if (ciphertext.remaining() < k) {
+            throw new BufferOverflowException();
+        }
+        BigInteger m = readBlock(block, n);
+        OctetString.write(rsa.encrypt(m, e, n), k, ciphertext);
+        return k;
+    }
+
+    @Override
+    public int decryptCRT(ByteBuffer ciphertext, ByteBuffer block, KeyPair keyPair) {
+        BigInteger n = keyPair.getModulus();
+        int k = modulusLength(n);
+        if (block.remaining() < k) {
+            throw new BufferOverflowException();
+        }
+        BigInteger c = readBlock(ciphertext, n);
+        OctetString.write(rsa.decryptCRT(c, keyPair), k, block);
+        return k;
+    }
+
+    // OS2IP of one k-byte block, which must be < n
+    private BigInteger readBlock(ByteBuffer src, BigInteger n) {
+        BigInteger x = OctetString.read(src, modulusLength(n));
+        if (x.compareTo(n) >= 0) {
+            throw new IllegalArgumentException("Block must be less than modulus n.");
+        }
+        return x;
+    }
+}
@@ -0,0 +1,61 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-oriented counterpart of RSACipher.
+ *
+ * Plaintexts and ciphertexts are read from and written to caller-supplied heap
+ * or direct ByteBuffers, so the cipher can sit directly between NIO channels.
+ * Ciphertexts always have exactly k = ceil(bitLength(n) / 8) bytes (I2OSP),
+ * and decrypted plaintexts keep their exact length, including leading zeros.
+ *
+ * All methods follow the usual NIO conventions: the source is read from its
+ * position (advancing it), the destination is written at its position
+ * (advancing it), and the number of bytes written is returned.
+ */
+public interface RSAByteCipher {
+
+    /**
+     * Length in bytes of ciphertexts (and encoded messages) for modulus n.
+     */
+    int modulusLength(BigInteger n);
+
+    /**
+     * Largest plaintext, in bytes, that encryptOAEP accepts for modulus n.
+     */
+    int maxOAEPMessageLength(BigInteger n);
+
+    /**
+     * OAEP-encrypts all remaining bytes of plaintext and writes k bytes of ciphertext.
+     *
+     * @param plaintext  Message bytes (at most maxOAEPMessageLength(n)).
+     * @param ciphertext Destination with at least k bytes remaining.
+     * @param e          The public exponent.
+     * @param n          The modulus.
+     * @return k, the number of bytes written.
+     */
+    int encryptOAEP(ByteBuffer plaintext, ByteBuffer ciphertext, BigInteger e, BigInteger n);
+
+    /**
+     * Reads k bytes of ciphertext, decrypts with CRT, removes the OAEP padding and
+     * writes the original message bytes.
+     *
+     * @param ciphertext Source with at least k bytes remaining.
+     * @param plaintext  Destination with room for the message.
+     * @param keyPair    The KeyPair containing p, q and the CRT parameters.
+     * @return The message length in bytes.
+     * @throws IllegalArgumentException "OAEP Decryption failed" for any padding
+     *                                  error; the message never says which check failed.
+     */
+    int decryptOAEP_CRT(ByteBuffer ciphertext, ByteBuffer plaintext, KeyPair keyPair);
+
+    /**
+     * Raw RSA on k-byte blocks: c = m^e mod n. The input block must be less than n.
+     */
+    int encrypt(ByteBuffer block, ByteBuffer ciphertext, BigInteger e, BigInteger n);
+
+    /**
+     * Raw RSA with CRT on k-byte blocks: m = c^d mod n.
+     */
+    int decryptCRT(ByteBuffer ciphertext, ByteBuffer block, KeyPair keyPair);
+}
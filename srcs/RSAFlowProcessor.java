@@ -0,0 +1,440 @@
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Flow.Processor} that runs OAEP encryption and OAEP + CRT decryption
+ * on a fixed pool of workers with bounded memory.
+ *
+ * At most {@code capacity} items are held by the processor at any time (waiting,
+ * being processed, or waiting for downstream demand). Upstream is only asked for
+ * a new item once a result has been delivered downstream, so a slow subscriber
+ * slows the publisher down instead of filling an unbounded queue.
+ *
+ * Items that share a modulus and pile up while all workers are busy are handed
+ * to one worker as a micro-batch, so the per-key CRT parameters stay hot.
+ */
+public class RSAFlowProcessor implements Flow.Processor<RSAFlowProcessor.Request, RSAFlowProcessor.Result> {
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 16;
+
+    public enum Operation {
+        ENCRYPT_OAEP,
+        DECRYPT_OAEP_CRT
+    }
+
+    /**
+     * One unit of work. Use {@link #encrypt} or {@link #decrypt} to create it.
+     */
+    public static final class Request {
+        private final Operation operation;
+        private final BigInteger value;
+        private final BigInteger e;
+        private final BigInteger n;
+        private final KeyPair keyPair;
+
+        private Request(Operation operation, BigInteger value, BigInteger e, BigInteger n, KeyPair keyPair) {
+            this.operation = operation;
+            this.value = value;
+            this.e = e;
+            this.n = n;
+            this.keyPair = keyPair;
+        }
+
+        public static Request encrypt(BigInteger message, BigInteger e, BigInteger n) {
+            return new Request(Operation.ENCRYPT_OAEP, message, e, n, null);
+        }
+
+        public static Request decrypt(BigInteger cipher, KeyPair keyPair) {
+            return new Request(Operation.DECRYPT_OAEP_CRT, cipher, keyPair.getEncryptKey(), keyPair.getModulus(),
+                    keyPair);
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public BigInteger getValue() {
+            return value;
+        }
+
+        public BigInteger getModulus() {
+            return n;
+        }
+    }
+
+    /**
+     * Outcome of one request. A failing item (e.g. bad OAEP padding) produces a
+     * Result with an error instead of terminating the whole stream.
+     */
+    public static final class Result {
+        private final Request request;
+        private final BigInteger value;
+        private final RuntimeException error;
+
+        private Result(Request request, BigInteger value, RuntimeException error) {
+            this.request = request;
+            this.value = value;
+            this.error = error;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        public BigInteger getValue() {
+            return value;
+        }
+
+        public RuntimeException getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final Request request;
+
+        private Entry(long sequence, Request request) {
+            this.sequence = sequence;
+            this.request = request;
+        }
+    }
+
+    private final RSACipher cipher = new RSAUtils();
+    private final int parallelism;
+    private final int capacity;
+    private final int maxBatchSize;
+    private final boolean ordered;
+    private final ExecutorService workers;
+
+    // All fields below are guarded by lock
+    private final Object lock = new Object();
+    // Items not yet handed to a worker, grouped by modulus (insertion order = fairness)
+    private final LinkedHashMap<BigInteger, ArrayDeque<Entry>> waiting = new LinkedHashMap<>();
+    // Finished results not yet delivered downstream
+    private final Map<Long, Result> finishedBySequence = new HashMap<>();
+    private final ArrayDeque<Result> finishedInCompletionOrder = new ArrayDeque<>();
+    private long nextSequence;
+    private long nextToEmit;
+    private int held;
+    private int activeBatches;
+    private long demand;
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    // Rule violation by the subscriber (e.g. request(0)), delivered by drain()
+    private Throwable downstreamError;
+    private boolean cancelled;
+    private boolean terminated;
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super Result> downstream;
+
+    // Serialises calls into the downstream subscriber (only one thread drains at a time)
+    private final AtomicInteger drainWip = new AtomicInteger();
+
+    public RSAFlowProcessor(int parallelism) {
+        this(parallelism, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH_SIZE, true);
+    }
+
+    /**
+     * @param parallelism  Number of worker threads.
+     * @param capacity     Maximum number of items held by the processor.
+     * @param maxBatchSize Maximum number of same-key items run by one worker in a row.
+     * @param ordered      true to emit results in input order, false to emit them
+     *                     as soon as they complete.
+     */
+    public RSAFlowProcessor(int parallelism, int capacity, int maxBatchSize, boolean ordered) {
+        if (parallelism < 1 || capacity < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("parallelism, capacity and maxBatchSize must be positive.");
+        }
+        this.parallelism = parallelism;
+        this.capacity = capacity;
+        this.maxBatchSize = maxBatchSize;
+        this.ordered = ordered;
+
+        this.workers = Executors.newFixedThreadPool(parallelism, VirtualThreads.daemonThreads("rsa-flow-worker"));
+    }
+
+    // ============================================================
+    // UPSTREAM (Subscriber side)
+    // ============================================================
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        boolean accept;
+        synchronized (lock) {
+            accept = upstream == null && !cancelled;
+            if (accept) {
+                upstream = subscription;
+            }
+        }
+        if (!accept) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(capacity);
+    }
+
+    @Override
+    public void onNext(Request item) {
+        Flow.Subscription misbehaving = null;
+        synchronized (lock) {
+            if (terminated || cancelled) {
+                return;
+            }
+            if (held >= capacity) {
+                // Publisher ignored our demand; fail fast rather than grow without bound
+                upstreamError = new IllegalStateException("Publisher sent more items than requested.");
+                upstreamDone = true;
+                waiting.clear();
+                misbehaving = upstream;
+            } else {
+                held++;
+                waiting.computeIfAbsent(item.getModulus(), key -> new ArrayDeque<>())
+                        .add(new Entry(nextSequence++, item));
+                dispatch();
+            }
+        }
+        if (misbehaving != null) {
+            misbehaving.cancel();
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (lock) {
+            upstreamError = throwable;
+            upstreamDone = true;
+            waiting.clear();
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (lock) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    // ============================================================
+    // DOWNSTREAM (Publisher side)
+    // ============================================================
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Result> subscriber) {
+        boolean accept;
+        synchronized (lock) {
+            accept = downstream == null;
+            if (accept) {
+                downstream = subscriber;
+            }
+        }
+        if (!accept) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("RSAFlowProcessor supports a single subscriber."));
+            return;
+        }
+
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    // Signals must be serial (rule 1.3): drain() may be emitting right now,
+                    // so only record the error and let drain() deliver it
+                    Flow.Subscription up = null;
+                    synchronized (lock) {
+                        if (!terminated && !cancelled && downstreamError == null) {
+                            downstreamError = new IllegalArgumentException("Demand must be positive (rule 3.9).");
+                            upstreamDone = true;
+                            waiting.clear();
+                            up = upstream;
+                        }
+                    }
+                    if (up != null) {
+                        up.cancel();
+                    }
+                    drain();
+                    return;
+                }
+                synchronized (lock) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                Flow.Subscription up;
+                synchronized (lock) {
+                    if (cancelled) {
+                        return;
+                    }
+                    cancelled = true;
+                    waiting.clear();
+                    up = upstream;
+                }
+                if (up != null) {
+                    up.cancel();
+                }
+                workers.shutdown();
+            }
+        });
+        drain();
+    }
+
+    // ============================================================
+    // INTERNALS
+    // ============================================================
+
+    // Hand waiting items to idle workers, one key group per worker. Caller holds lock.
+    private void dispatch() {
+        while (activeBatches < parallelism && !waiting.isEmpty()) {
+            Iterator<Map.Entry<BigInteger, ArrayDeque<Entry>>> it = waiting.entrySet().iterator();
+            Map.Entry<BigInteger, ArrayDeque<Entry>> group = it.next();
+            ArrayDeque<Entry> queue = group.getValue();
+
+            List<Entry> batch = new ArrayList<>(Math.min(queue.size(), maxBatchSize));
+            while (!queue.isEmpty() && batch.size() < maxBatchSize) {
+                batch.add(queue.poll());
+            }
+            it.remove();
+            if (!queue.isEmpty()) {
+                // Move the rest of this key to the back so other keys get a turn
+                waiting.put(group.getKey(), queue);
+            }
+
+            activeBatches++;
+            workers.execute(() -> runBatch(batch));
+        }
+    }
+
+    private void runBatch(List<Entry> batch) {
+        for (Entry entry : batch) {
+            Result result = process(entry.request);
+            synchronized (lock) {
+                if (terminated || cancelled) {
+                    continue;
+                }
+                if (ordered) {
+                    finishedBySequence.put(entry.sequence, result);
+                } else {
+                    finishedInCompletionOrder.add(result);
+                }
+            }
+            drain();
+        }
+        synchronized (lock) {
+            activeBatches--;
+            if (!terminated && !cancelled) {
+                dispatch();
+            }
+        }
+        drain();
+    }
+
+    private Result process(Request request) {
+        try {
+            BigInteger value;
+            if (request.operation == Operation.ENCRYPT_OAEP) {
+                value = cipher.encryptOAEP(request.value, request.e, request.n);
+            } else {
+                value = cipher.decryptOAEP_CRT(request.value, request.keyPair);
+            }
+            return new Result(request, value, null);
+        } catch (RuntimeException ex) {
+            return new Result(request, null, ex);
+        }
+    }
+
+    // Next result that may be emitted, or null. Caller holds lock.
+    private Result pollFinished() {
+        if (ordered) {
+            Result result = finishedBySequence.remove(nextToEmit);
+            if (result != null) {
+                nextToEmit++;
+            }
+            return result;
+        }
+        return finishedInCompletionOrder.poll();
+    }
+
+    private void drain() {
+        if (drainWip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            while (true) {
+                Flow.Subscriber<? super Result> subscriber;
+                Flow.Subscription up;
+                Result result;
+                synchronized (lock) {
+                    subscriber = downstream;
+                    if (subscriber == null || cancelled || terminated || downstreamError != null || demand == 0) {
+                        break;
+                    }
+                    result = pollFinished();
+                    if (result == null) {
+                        break;
+                    }
+                    demand--;
+                    held--;
+                    up = upstreamDone ? null : upstream;
+                }
+                subscriber.onNext(result);
+                if (up != null) {
+                    up.request(1);
+                }
+            }
+
+            Flow.Subscriber<? super Result> subscriber = null;
+            Throwable error = null;
+            synchronized (lock) {
+                boolean failed = upstreamError != null || downstreamError != null;
+                boolean finished = upstreamDone && held == 0;
+                if (downstream != null && !terminated && !cancelled && (failed || finished)) {
+                    terminated = true;
+                    subscriber = downstream;
+                    error = downstreamError != null ? downstreamError : upstreamError;
+                    finishedBySequence.clear();
+                    finishedInCompletionOrder.clear();
+                }
+            }
+            if (subscriber != null) {
+                workers.shutdown();
+                if (error != null) {
+                    subscriber.onError(error);
+                } else {
+                    subscriber.onComplete();
+                }
+            }
+
+            missed = drainWip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -6,12 +6,11 @@ public class RSAPrimeVerifier {
     // private static final int PRIME_CERTAINTY = 100;
 
     // Minimum difference between p and q in bits
-    private static final int MIN_BIT_DIFF_VALUE = 50;
+    static final int MIN_BIT_DIFF_VALUE = 50;
 
     public static boolean verifyPrimeForRSA(BigInteger p, BigInteger q) {
         // Ensure p and q are not too close in value
-        BigInteger diff = p.subtract(q).abs();
-        if (diff.bitLength() < MIN_BIT_DIFF_VALUE) {
+        if (!verifyPrimeDistance(p, q)) {
             return false;
         }
 
@@ -27,6 +26,24 @@ public class RSAPrimeVerifier {
         return true;
     }
 
+    /**
+     * Checks only that p and q are far enough apart (Fermat factorization).
+     * Used for strong primes, whose p-1 is non-smooth by construction
+     * (see PrimeGenerator.generateStrongPrime), so the slow smoothness scan is skipped.
+     */
+    public static boolean verifyPrimeDistance(BigInteger p, BigInteger q) {
+        BigInteger diff = p.subtract(q).abs();
+        return diff.bitLength() >= MIN_BIT_DIFF_VALUE;
+    }
+
+    /**
+     * Checks a single prime: p-1 must keep a factor above the smoothness bound
+     * (Pollard's p-1). Lets a caller reject just this prime instead of the pair.
+     */
+    public static boolean verifyPrimeSmoothness(BigInteger p) {
+        return !isWeakSmooth(p.subtract(BigInteger.ONE));
+    }
+
     private static boolean isWeakSmooth(BigInteger n) {
         BigInteger limit = BigInteger.valueOf(1_000_000); // up to 1 million
         BigInteger temp = n;
@@ -0,0 +1,885 @@
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.KeyFactorySpi;
+import java.security.KeyPairGeneratorSpi;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.InvalidParameterSpecException;
+import java.security.spec.KeySpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPrivateKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JCA provider backed by RSAUtils / RSAByteBufferCipher and KeyPair:
+ *
+ * <pre>
+ * Cipher            RSA/ECB/OAEPWithSHA-256AndMGF1Padding   (SHA-256 for both the label hash and MGF1)
+ * Signature         SHA256withRSA                           (PKCS#1 v1.5, signing via decryptCRT)
+ * KeyPairGenerator  RSA                                     (KeyPair.generateStrongKeyPair, e = 65537)
+ * KeyFactory        RSA                                     (RSA*KeySpec, X.509 and PKCS#8 encodings)
+ * </pre>
+ *
+ * Register with {@code Security.addProvider(new RSAProvider())} and select it by
+ * name, e.g. {@code Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding", "RSAUtils")}.
+ *
+ * Private keys produced here wrap a KeyPair, so its cached dP, dQ and qInv are
+ * reused on every operation. Keys from other providers are converted once and
+ * the result is remembered (weakly) per key object.
+ *
+ * Note: SunJCE's OAEPWithSHA-256AndMGF1Padding defaults to MGF1 with SHA-1.
+ * For interoperability, pass
+ * {@code new OAEPParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT)}
+ * on the SunJCE side.
+ */
+public class RSAProvider extends Provider {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String NAME = "RSAUtils";
+
+    private static final OAEPParameterSpec OAEP_SHA256 = new OAEPParameterSpec("SHA-256", "MGF1",
+            MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+    // DER DigestInfo prefix for SHA-256 (RFC 8017, section 9.2)
+    private static final byte[] SHA256_DIGEST_INFO = { 0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48,
+            0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 };
+
+    // Foreign CRT keys converted to KeyPair, keyed by the key object
+    private static final Map<RSAPrivateCrtKey, KeyPair> CONVERTED = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    public RSAProvider() {
+        super(NAME, "1.0", "RSAUtils provider (OAEP-SHA256 cipher, SHA256withRSA, strong RSA key generation)");
+        put("Cipher.RSA/ECB/OAEPWithSHA-256AndMGF1Padding", OAEPCipher.class.getName());
+        put("Signature.SHA256withRSA", SHA256withRSA.class.getName());
+        put("Alg.Alias.Signature.1.2.840.113549.1.1.11", "SHA256withRSA");
+        put("KeyPairGenerator.RSA", StrongKeyPairGenerator.class.getName());
+        put("KeyFactory.RSA", RSAKeyFactory.class.getName());
+    }
+
+    // ============================================================
+    // KEYS
+    // ============================================================
+
+    static final class PublicKeyImpl implements RSAPublicKey {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger modulus;
+        private final BigInteger publicExponent;
+
+        PublicKeyImpl(BigInteger modulus, BigInteger publicExponent) {
+            this.modulus = modulus;
+            this.publicExponent = publicExponent;
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return modulus;
+        }
+
+        @Override
+        public BigInteger getPublicExponent() {
+            return publicExponent;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "RSA";
+        }
+
+        @Override
+        public String getFormat() {
+            return "X.509";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return encode(new RSAPublicKeySpec(modulus, publicExponent));
+        }
+    }
+
+    static final class PrivateCrtKeyImpl implements RSAPrivateCrtKey {
+        private static final long serialVersionUID = 1L;
+
+        private final transient KeyPair keyPair;
+
+        PrivateCrtKeyImpl(KeyPair keyPair) {
+            this.keyPair = keyPair;
+        }
+
+        KeyPair getKeyPair() {
+            return keyPair;
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return keyPair.getModulus();
+        }
+
+        @Override
+        public BigInteger getPublicExponent() {
+            return keyPair.getEncryptKey();
+        }
+
+        @Override
+        public BigInteger getPrivateExponent() {
+            return keyPair.getDecryptKey();
+        }
+
+        @Override
+        public BigInteger getPrimeP() {
+            return keyPair.getP();
+        }
+
+        @Override
+        public BigInteger getPrimeQ() {
+            return keyPair.getQ();
+        }
+
+        @Override
+        public BigInteger getPrimeExponentP() {
+            return keyPair.getDP();
+        }
+
+        @Override
+        public BigInteger getPrimeExponentQ() {
+            return keyPair.getDQ();
+        }
+
+        @Override
+        public BigInteger getCrtCoefficient() {
+            return keyPair.getQInv();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "RSA";
+        }
+
+        @Override
+        public String getFormat() {
+            return "PKCS#8";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return encode(new RSAPrivateCrtKeySpec(getModulus(), getPublicExponent(), getPrivateExponent(),
+                    getPrimeP(), getPrimeQ(), getPrimeExponentP(), getPrimeExponentQ(), getCrtCoefficient()));
+        }
+    }
+
+    // Private key without CRT parameters (n, d only); decrypts without CRT
+    static final class PrivateKeyImpl implements RSAPrivateKey {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger modulus;
+        private final BigInteger privateExponent;
+
+        PrivateKeyImpl(BigInteger modulus, BigInteger privateExponent) {
+            this.modulus = modulus;
+            this.privateExponent = privateExponent;
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return modulus;
+        }
+
+        @Override
+        public BigInteger getPrivateExponent() {
+            return privateExponent;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "RSA";
+        }
+
+        @Override
+        public String getFormat() {
+            return "PKCS#8";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return encode(new RSAPrivateKeySpec(modulus, privateExponent));
+        }
+    }
+
+    /**
+     * Converts any RSA public key to this provider's representation.
+     */
+    static PublicKeyImpl toPublicKey(Key key) throws InvalidKeyException {
+        if (key instanceof PublicKeyImpl) {
+            return (PublicKeyImpl) key;
+        }
+        if (key instanceof RSAPublicKey) {
+            RSAPublicKey rsa = (RSAPublicKey) key;
+            return new PublicKeyImpl(rsa.getModulus(), rsa.getPublicExponent());
+        }
+        throw new InvalidKeyException("RSA public key expected, got " + describe(key));
+    }
+
+    /**
+     * Converts any RSA private key; CRT keys become PrivateCrtKeyImpl.
+     */
+    static RSAPrivateKey toPrivateKey(Key key) throws InvalidKeyException {
+        if (key instanceof PrivateCrtKeyImpl || key instanceof PrivateKeyImpl) {
+            return (RSAPrivateKey) key;
+        }
+        if (key instanceof RSAPrivateCrtKey) {
+            RSAPrivateCrtKey crt = (RSAPrivateCrtKey) key;
+            KeyPair keyPair = CONVERTED.get(crt);
+            if (keyPair == null) {
+                try {
+                    keyPair = KeyPair.fromPrimes(crt.getPrimeP(), crt.getPrimeQ(), crt.getPublicExponent());
+                } catch (IllegalArgumentException ex) {
+                    throw new InvalidKeyException("Invalid RSA CRT key", ex);
+                }
+                CONVERTED.put(crt, keyPair);
+            }
+            return new PrivateCrtKeyImpl(keyPair);
+        }
+        if (key instanceof RSAPrivateKey) {
+            RSAPrivateKey rsa = (RSAPrivateKey) key;
+            return new PrivateKeyImpl(rsa.getModulus(), rsa.getPrivateExponent());
+        }
+        throw new InvalidKeyException("RSA private key expected, got " + describe(key));
+    }
+
+    // Raw private-key operation on a k-byte block (CRT when the key has the parameters)
+    private static byte[] privateOperation(RSAPrivateKey key, byte[] block) {
+        BigInteger n = key.getModulus();
+        int k = OctetString.length(n);
+        RSAByteCipher cipher = new RSAByteBufferCipher();
+        if (key instanceof PrivateCrtKeyImpl) {
+            byte[] out = new byte[k];
+            cipher.decryptCRT(ByteBuffer.wrap(block), ByteBuffer.wrap(out), ((PrivateCrtKeyImpl) key).getKeyPair());
+            return out;
+        }
+        BigInteger x = OctetString.read(ByteBuffer.wrap(block), k);
+        if (x.compareTo(n) >= 0) {
+            throw new IllegalArgumentException("Block must be less than modulus n.");
+        }
+        return OctetString.toBytes(new RSAUtils().decrypt(x, key.getPrivateExponent(), n), k);
+    }
+
+    private static String describe(Key key) {
+        return key == null ? "null" : key.getClass().getName();
+    }
+
+    // X.509 / PKCS#8 encodings are produced by the platform RSA key factory
+    private static byte[] encode(KeySpec spec) {
+        try {
+            java.security.KeyFactory platform = java.security.KeyFactory.getInstance("RSA", "SunRsaSign");
+            return spec instanceof RSAPublicKeySpec ? platform.generatePublic(spec).getEncoded()
+                    : platform.generatePrivate(spec).getEncoded();
+        } catch (GeneralSecurityException ex) {
+            return null;
+        }
+    }
+
+    // ============================================================
+    // CIPHER
+    // ============================================================
+
+    /**
+     * RSA-OAEP with SHA-256 and MGF1-SHA-256, empty label. Input is buffered
+     * until doFinal, as for any RSA cipher.
+     */
+    public static final class OAEPCipher extends CipherSpi {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private int opmode;
+        private PublicKeyImpl publicKey;
+        private RSAPrivateKey privateKey;
+        private RSAByteCipher cipher;
+
+        @Override
+        protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+            if (!mode.equalsIgnoreCase("ECB") && !mode.equalsIgnoreCase("NONE")) {
+                throw new NoSuchAlgorithmException("Unsupported mode: " + mode);
+            }
+        }
+
+        @Override
+        protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+            if (!padding.equalsIgnoreCase("OAEPWithSHA-256AndMGF1Padding")) {
+                throw new NoSuchPaddingException("Unsupported padding: " + padding);
+            }
+        }
+
+        @Override
+        protected int engineGetBlockSize() {
+            return 0;
+        }
+
+        @Override
+        protected int engineGetOutputSize(int inputLen) {
+            return OctetString.length(modulus());
+        }
+
+        @Override
+        protected byte[] engineGetIV() {
+            return null;
+        }
+
+        @Override
+        protected AlgorithmParameters engineGetParameters() {
+            try {
+                AlgorithmParameters params = AlgorithmParameters.getInstance("OAEP");
+                params.init(OAEP_SHA256);
+                return params;
+            } catch (GeneralSecurityException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        protected int engineGetKeySize(Key key) throws InvalidKeyException {
+            if (key instanceof RSAPublicKey) {
+                return ((RSAPublicKey) key).getModulus().bitLength();
+            }
+            if (key instanceof RSAPrivateKey) {
+                return ((RSAPrivateKey) key).getModulus().bitLength();
+            }
+            throw new InvalidKeyException("RSA key expected, got " + describe(key));
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, SecureRandom random) throws InvalidKeyException {
+            this.opmode = opmode;
+            this.buffer.reset();
+            if (opmode == Cipher.ENCRYPT_MODE || opmode == Cipher.WRAP_MODE) {
+                this.publicKey = toPublicKey(key);
+                this.privateKey = null;
+            } else if (opmode == Cipher.DECRYPT_MODE || opmode == Cipher.UNWRAP_MODE) {
+                this.privateKey = toPrivateKey(key);
+                this.publicKey = null;
+            } else {
+                throw new InvalidParameterException("Unsupported mode: " + opmode);
+            }
+            this.cipher = new RSAByteBufferCipher(random == null ? null : random::nextBytes);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            if (params != null) {
+                checkParameters(params);
+            }
+            engineInit(opmode, key, random);
+        }
+
+        @Override
+        protected void engineInit(int opmode, Key key, AlgorithmParameters params, SecureRandom random)
+                throws InvalidKeyException, InvalidAlgorithmParameterException {
+            AlgorithmParameterSpec spec = null;
+            if (params != null) {
+                try {
+                    spec = params.getParameterSpec(OAEPParameterSpec.class);
+                } catch (InvalidParameterSpecException ex) {
+                    throw new InvalidAlgorithmParameterException("OAEP parameters expected", ex);
+                }
+            }
+            engineInit(opmode, key, spec, random);
+        }
+
+        @Override
+        protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+            buffer.write(input, inputOffset, inputLen);
+            return new byte[0];
+        }
+
+        @Override
+        protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+            buffer.write(input, inputOffset, inputLen);
+            return 0;
+        }
+
+        @Override
+        protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+                throws IllegalBlockSizeException, BadPaddingException {
+            if (input != null) {
+                buffer.write(input, inputOffset, inputLen);
+            }
+            byte[] data = buffer.toByteArray();
+            buffer.reset();
+            try {
+                return process(data);
+            } finally {
+                Arrays.fill(data, (byte) 0);
+            }
+        }
+
+        @Override
+        protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset)
+                throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+            byte[] result = engineDoFinal(input, inputOffset, inputLen);
+            if (output.length - outputOffset < result.length) {
+                throw new ShortBufferException("Need " + result.length + " bytes of output.");
+            }
+            System.arraycopy(result, 0, output, outputOffset, result.length);
+            return result.length;
+        }
+
+        @Override
+        protected byte[] engineWrap(Key key) throws IllegalBlockSizeException, InvalidKeyException {
+            byte[] encoded = key.getEncoded();
+            if (encoded == null) {
+                throw new InvalidKeyException("Key has no encoding.");
+            }
+            try {
+                return process(encoded);
+            } catch (BadPaddingException ex) {
+                throw new InvalidKeyException(ex);
+            }
+        }
+
+        @Override
+        protected Key engineUnwrap(byte[] wrappedKey, String wrappedKeyAlgorithm, int wrappedKeyType)
+                throws InvalidKeyException, NoSuchAlgorithmException {
+            byte[] encoded;
+            try {
+                encoded = process(wrappedKey);
+            } catch (GeneralSecurityException ex) {
+                throw new InvalidKeyException("Cannot unwrap key", ex);
+            }
+            try {
+                switch (wrappedKeyType) {
+                    case Cipher.SECRET_KEY:
+                        return new SecretKeySpec(encoded, wrappedKeyAlgorithm);
+                    case Cipher.PUBLIC_KEY:
+                        return java.security.KeyFactory.getInstance(wrappedKeyAlgorithm)
+                                .generatePublic(new X509EncodedKeySpec(encoded));
+                    case Cipher.PRIVATE_KEY:
+                        return java.security.KeyFactory.getInstance(wrappedKeyAlgorithm)
+                                .generatePrivate(new PKCS8EncodedKeySpec(encoded));
+                    default:
+                        throw new InvalidKeyException("Unknown key type: " + wrappedKeyType);
+                }
+            } catch (InvalidKeySpecException ex) {
+                throw new InvalidKeyException(ex);
+            } finally {
+                Arrays.fill(encoded, (byte) 0);
+            }
+        }
+
+        private byte[] process(byte[] data) throws IllegalBlockSizeException, BadPaddingException {
+            if (cipher == null) {
+                throw new IllegalStateException("Cipher not initialized.");
+            }
+            BigInteger n = modulus();
+            int k = OctetString.length(n);
+
+            if (publicKey != null) {
+                if (data.length > cipher.maxOAEPMessageLength(n)) {
+                    throw new IllegalBlockSizeException("At most " + cipher.maxOAEPMessageLength(n) + " bytes.");
+                }
+                byte[] out = new byte[k];
+                cipher.encryptOAEP(ByteBuffer.wrap(data), ByteBuffer.wrap(out), publicKey.getPublicExponent(), n);
+                return out;
+            }
+
+            if (data.length != k) {
+                throw new IllegalBlockSizeException("Ciphertext must be " + k + " bytes.");
+            }
+            try {
+                if (privateKey instanceof PrivateCrtKeyImpl) {
+                    ByteBuffer out = ByteBuffer.allocate(k);
+                    cipher.decryptOAEP_CRT(ByteBuffer.wrap(data), out, ((PrivateCrtKeyImpl) privateKey).getKeyPair());
+                    return Arrays.copyOf(out.array(), out.position());
+                }
+                byte[] em = privateOperation(privateKey, data);
+                int offset = RSAUtils.unpadOAEP(em);
+                return Arrays.copyOfRange(em, offset, k);
+            } catch (IllegalArgumentException | NoSuchAlgorithmException ex) {
+                BadPaddingException bad = new BadPaddingException("Decryption error");
+                bad.initCause(ex);
+                throw bad;
+            }
+        }
+
+        private BigInteger modulus() {
+            if (publicKey != null) {
+                return publicKey.getModulus();
+            }
+            if (privateKey != null) {
+                return privateKey.getModulus();
+            }
+            throw new IllegalStateException("Cipher not initialized.");
+        }
+
+        private static void checkParameters(AlgorithmParameterSpec params) throws InvalidAlgorithmParameterException {
+            if (!(params instanceof OAEPParameterSpec)) {
+                throw new InvalidAlgorithmParameterException("OAEPParameterSpec expected.");
+            }
+            OAEPParameterSpec oaep = (OAEPParameterSpec) params;
+            boolean sha256 = oaep.getDigestAlgorithm().equalsIgnoreCase("SHA-256")
+                    || oaep.getDigestAlgorithm().equalsIgnoreCase("SHA256");
+            boolean mgf1Sha256 = oaep.getMGFAlgorithm().equalsIgnoreCase("MGF1")
+                    && oaep.getMGFParameters() instanceof MGF1ParameterSpec
+                    && ((MGF1ParameterSpec) oaep.getMGFParameters()).getDigestAlgorithm().equalsIgnoreCase("SHA-256");
+            boolean emptyLabel = oaep.getPSource() instanceof PSource.PSpecified
+                    && ((PSource.PSpecified) oaep.getPSource()).getValue().length == 0;
+            if (!sha256 || !mgf1Sha256 || !emptyLabel) {
+                throw new InvalidAlgorithmParameterException(
+                        "Only SHA-256 with MGF1(SHA-256) and an empty label is supported.");
+            }
+        }
+    }
+
+    // ============================================================
+    // SIGNATURE
+    // ============================================================
+
+    /**
+     * RSASSA-PKCS1-v1_5 with SHA-256.
+     */
+    public static final class SHA256withRSA extends SignatureSpi {
+        private final MessageDigest digest;
+        private PublicKeyImpl publicKey;
+        private RSAPrivateKey privateKey;
+
+        public SHA256withRSA() throws NoSuchAlgorithmException {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        }
+
+        @Override
+        protected void engineInitVerify(PublicKey key) throws InvalidKeyException {
+            this.publicKey = toPublicKey(key);
+            this.privateKey = null;
+            digest.reset();
+        }
+
+        @Override
+        protected void engineInitSign(PrivateKey key) throws InvalidKeyException {
+            this.privateKey = toPrivateKey(key);
+            this.publicKey = null;
+            digest.reset();
+        }
+
+        @Override
+        protected void engineUpdate(byte b) {
+            digest.update(b);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+        }
+
+        @Override
+        protected byte[] engineSign() throws SignatureException {
+            if (privateKey == null) {
+                throw new SignatureException("Not initialized for signing.");
+            }
+            BigInteger n = privateKey.getModulus();
+            int k = OctetString.length(n);
+            byte[] em = encode(digest.digest(), k);
+            byte[] signature;
+            try {
+                signature = privateOperation(privateKey, em);
+            } catch (IllegalArgumentException ex) {
+                throw new SignatureException(ex);
+            }
+            // A fault in one CRT half gives a signature that factors n (Bellcore attack): check s^e = EM first
+            if (privateKey instanceof PrivateCrtKeyImpl) {
+                BigInteger e = ((PrivateCrtKeyImpl) privateKey).getPublicExponent();
+                byte[] check = OctetString.toBytes(new RSAUtils().encrypt(new BigInteger(1, signature), e, n), k);
+                if (!Arrays.equals(check, em)) {
+                    throw new SignatureException("CRT signature failed verification; not released.");
+                }
+            }
+            return signature;
+        }
+
+        @Override
+        protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+            if (publicKey == null) {
+                throw new SignatureException("Not initialized for verification.");
+            }
+            BigInteger n = publicKey.getModulus();
+            int k = OctetString.length(n);
+            byte[] expected = encode(digest.digest(), k);
+            if (sigBytes.length != k) {
+                return false;
+            }
+            BigInteger s = new BigInteger(1, sigBytes);
+            if (s.compareTo(n) >= 0) {
+                return false;
+            }
+            byte[] em = OctetString.toBytes(new RSAUtils().encrypt(s, publicKey.getPublicExponent(), n), k);
+            return MessageDigest.isEqual(em, expected);
+        }
+
+        @Override
+        @Deprecated
+        protected void engineSetParameter(String param, Object value) {
+            throw new InvalidParameterException("No parameters supported.");
+        }
+
+        @Override
+        @Deprecated
+        protected Object engineGetParameter(String param) {
+            throw new InvalidParameterException("No parameters supported.");
+        }
+
+        // EMSA-PKCS1-v1_5: 0x00 || 0x01 || 0xFF... || 0x00 || DigestInfo || H
+        private static byte[] encode(byte[] hash, int k) throws SignatureException {
+            int tLen = SHA256_DIGEST_INFO.length + hash.length;
+            if (k < tLen + 11) {
+                throw new SignatureException("Modulus too short for SHA256withRSA.");
+            }
+            byte[] em = new byte[k];
+            em[1] = 0x01;
+            Arrays.fill(em, 2, k - tLen - 1, (byte) 0xff);
+            System.arraycopy(SHA256_DIGEST_INFO, 0, em, k - tLen, SHA256_DIGEST_INFO.length);
+            System.arraycopy(hash, 0, em, k - hash.length, hash.length);
+            return em;
+        }
+    }
+
+    // ============================================================
+    // KEY PAIR GENERATOR
+    // ============================================================
+
+    /**
+     * Strong-prime key generation (KeyPair.generateStrongKeyPair). Only e = 65537
+     * is supported.
+     */
+    public static final class StrongKeyPairGenerator extends KeyPairGeneratorSpi {
+        private int keySize = 2048;
+        private SecureRandom random;
+
+        @Override
+        public void initialize(int keysize, SecureRandom random) {
+            if (keysize < 1024) {
+                throw new InvalidParameterException("Key size must be at least 1024 bits.");
+            }
+            this.keySize = keysize;
+            this.random = random;
+        }
+
+        @Override
+        public void initialize(AlgorithmParameterSpec params, SecureRandom random)
+                throws InvalidAlgorithmParameterException {
+            if (!(params instanceof RSAKeyGenParameterSpec)) {
+                throw new InvalidAlgorithmParameterException("RSAKeyGenParameterSpec expected.");
+            }
+            RSAKeyGenParameterSpec spec = (RSAKeyGenParameterSpec) params;
+            if (!RSAKeyGenParameterSpec.F4.equals(spec.getPublicExponent())) {
+                throw new InvalidAlgorithmParameterException("Only public exponent 65537 is supported.");
+            }
+            try {
+                initialize(spec.getKeysize(), random);
+            } catch (InvalidParameterException ex) {
+                throw new InvalidAlgorithmParameterException(ex.getMessage());
+            }
+        }
+
+        @Override
+        public java.security.KeyPair generateKeyPair() {
+            RandomSource source = random == null ? RandomSources.getDefault() : random::nextBytes;
+            KeyPair keyPair = KeyPair.generateStrongKeyPair(keySize, source);
+            return new java.security.KeyPair(new PublicKeyImpl(keyPair.getModulus(), keyPair.getEncryptKey()),
+                    new PrivateCrtKeyImpl(keyPair));
+        }
+    }
+
+    // ============================================================
+    // KEY FACTORY
+    // ============================================================
+
+    public static final class RSAKeyFactory extends KeyFactorySpi {
+
+        @Override
+        protected PublicKey engineGeneratePublic(KeySpec keySpec) throws InvalidKeySpecException {
+            if (keySpec instanceof RSAPublicKeySpec) {
+                RSAPublicKeySpec spec = (RSAPublicKeySpec) keySpec;
+                return new PublicKeyImpl(spec.getModulus(), spec.getPublicExponent());
+            }
+            if (keySpec instanceof X509EncodedKeySpec) {
+                try {
+                    return toPublicKey(platformFactory().generatePublic(keySpec));
+                } catch (InvalidKeyException ex) {
+                    throw new InvalidKeySpecException(ex);
+                }
+            }
+            throw new InvalidKeySpecException("Unsupported key spec: " + describeSpec(keySpec));
+        }
+
+        @Override
+        protected PrivateKey engineGeneratePrivate(KeySpec keySpec) throws InvalidKeySpecException {
+            try {
+                if (keySpec instanceof RSAPrivateCrtKeySpec) {
+                    RSAPrivateCrtKeySpec spec = (RSAPrivateCrtKeySpec) keySpec;
+                    return new PrivateCrtKeyImpl(
+                            KeyPair.fromPrimes(spec.getPrimeP(), spec.getPrimeQ(), spec.getPublicExponent()));
+                }
+                if (keySpec instanceof RSAPrivateKeySpec) {
+                    RSAPrivateKeySpec spec = (RSAPrivateKeySpec) keySpec;
+                    return new PrivateKeyImpl(spec.getModulus(), spec.getPrivateExponent());
+                }
+                if (keySpec instanceof PKCS8EncodedKeySpec) {
+                    return toPrivateKey(platformFactory().generatePrivate(keySpec));
+                }
+            } catch (IllegalArgumentException | InvalidKeyException ex) {
+                throw new InvalidKeySpecException(ex);
+            }
+            throw new InvalidKeySpecException("Unsupported key spec: " + describeSpec(keySpec));
+        }
+
+        @Override
+        protected <T extends KeySpec> T engineGetKeySpec(Key key, Class<T> keySpec) throws InvalidKeySpecException {
+            KeySpec spec = null;
+            if (key instanceof RSAPublicKey) {
+                RSAPublicKey rsa = (RSAPublicKey) key;
+                if (keySpec.isAssignableFrom(RSAPublicKeySpec.class)) {
+                    spec = new RSAPublicKeySpec(rsa.getModulus(), rsa.getPublicExponent());
+                } else if (keySpec.isAssignableFrom(X509EncodedKeySpec.class)) {
+                    spec = new X509EncodedKeySpec(key.getEncoded());
+                }
+            } else if (key instanceof RSAPrivateCrtKey) {
+                RSAPrivateCrtKey crt = (RSAPrivateCrtKey) key;
+                if (keySpec.isAssignableFrom(RSAPrivateCrtKeySpec.class)) {
+                    spec = new RSAPrivateCrtKeySpec(crt.getModulus(), crt.getPublicExponent(),
+                            crt.getPrivateExponent(), crt.getPrimeP(), crt.getPrimeQ(), crt.getPrimeExponentP(),
+                            crt.getPrimeExponentQ(), crt.getCrtCoefficient());
+                } else if (keySpec.isAssignableFrom(RSAPrivateKeySpec.class)) {
+                    spec = new RSAPrivateKeySpec(crt.getModulus(), crt.getPrivateExponent());
+                } else if (keySpec.isAssignableFrom(PKCS8EncodedKeySpec.class)) {
+                    spec = new PKCS8EncodedKeySpec(key.getEncoded());
+                }
+            } else if (key instanceof RSAPrivateKey) {
+                RSAPrivateKey rsa = (RSAPrivateKey) key;
+                if (keySpec.isAssignableFrom(RSAPrivateKeySpec.class)) {
+                    spec = new RSAPrivateKeySpec(rsa.getModulus(), rsa.getPrivateExponent());
+                } else if (keySpec.isAssignableFrom(PKCS8EncodedKeySpec.class)) {
+                    spec = new PKCS8EncodedKeySpec(key.getEncoded());
+                }
+            }
+            if (spec == null) {
+                throw new InvalidKeySpecException("Cannot convert " + describe(key) + " to " + keySpec.getName());
+            }
+            return keySpec.cast(spec);
+        }
+
+        @Override
+        protected Key engineTranslateKey(Key key) throws InvalidKeyException {
+            if (key instanceof RSAPublicKey) {
+                return toPublicKey(key);
+            }
+            if (key instanceof RSAPrivateKey) {
+                return toPrivateKey(key);
+            }
+            throw new InvalidKeyException("RSA key expected, got " + describe(key));
+        }
+
+        private static java.security.KeyFactory platformFactory() throws InvalidKeySpecException {
+            try {
+                return java.security.KeyFactory.getInstance("RSA", "SunRsaSign");
+            } catch (GeneralSecurityException ex) {
+                throw new InvalidKeySpecException("Encoded keys need the SunRsaSign provider", ex);
+            }
+        }
+
+        private static String describeSpec(KeySpec spec) {
+            return spec == null ? "null" : spec.getClass().getName();
+        }
+    }
+
+    /**
+     * Checks interoperability with the platform providers and compares OAEP
+     * decryption speed through the same JCA API.
+     *
+     * Usage: java RSAProvider [bits] [iterations]
+     */
+    public static void main(String[] args) throws Exception {
+        int bits = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Security.addProvider(new RSAProvider());
+
+        java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA", NAME);
+        generator.initialize(bits);
+        java.security.KeyPair keys = generator.generateKeyPair();
+
+        String transformation = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+        byte[] message = "JCA interoperability check".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+
+        Cipher ours = Cipher.getInstance(transformation, NAME);
+        Cipher platform = Cipher.getInstance(transformation, "SunJCE");
+
+        ours.init(Cipher.ENCRYPT_MODE, keys.getPublic());
+        platform.init(Cipher.DECRYPT_MODE, keys.getPrivate(), OAEP_SHA256);
+        boolean oursToPlatform = Arrays.equals(message, platform.doFinal(ours.doFinal(message)));
+
+        platform.init(Cipher.ENCRYPT_MODE, keys.getPublic(), OAEP_SHA256);
+        ours.init(Cipher.DECRYPT_MODE, keys.getPrivate());
+        byte[] platformCiphertext = platform.doFinal(message);
+        boolean platformToOurs = Arrays.equals(message, ours.doFinal(platformCiphertext));
+
+        java.security.Signature signer = java.security.Signature.getInstance("SHA256withRSA", NAME);
+        signer.initSign(keys.getPrivate());
+        signer.update(message);
+        byte[] signature = signer.sign();
+        java.security.Signature verifier = java.security.Signature.getInstance("SHA256withRSA", "SunRsaSign");
+        verifier.initVerify(keys.getPublic());
+        verifier.update(message);
+        boolean signatureInterop = verifier.verify(signature);
+
+        System.out.println("OAEP " + NAME + " -> SunJCE: " + oursToPlatform);
+        System.out.println("OAEP SunJCE -> " + NAME + ": " + platformToOurs);
+        System.out.println("SHA256withRSA " + NAME + " -> SunRsaSign: " + signatureInterop);
+
+        platform.init(Cipher.DECRYPT_MODE, keys.getPrivate(), OAEP_SHA256);
+        for (Cipher c : new Cipher[] { ours, platform }) {
+            for (int i = 0; i < iterations / 10; i++) {
+                c.doFinal(platformCiphertext);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                c.doFinal(platformCiphertext);
+            }
+            double ms = (System.nanoTime() - start) / 1e6 / iterations;
+            System.out.printf("OAEP decrypt via %-9s %.3f ms/op%n", c.getProvider().getName() + ":", ms);
+        }
+    }
+}
@@ -0,0 +1,574 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Standalone RSA service: one warm process that keeps keys (and their CRT
+ * parameters) in memory and serves encryptOAEP / decryptOAEP_CRT by key ID
+ * over HTTP on localhost.
+ *
+ * Each connection is handled on its own (virtual, when available) thread.
+ * Requests are queued per key, and a fixed pool of CPU-bound workers drains each
+ * key's queue in micro-batches, so concurrent requests for the same key run
+ * back-to-back on one worker.
+ *
+ * With a DecryptCache, a decrypt request for a ciphertext that was recently
+ * decrypted under the same key is answered from the cache without being queued.
+ *
+ * Endpoints (values are hex strings; * = needs {@code Authorization: Bearer <admin token>}):
+ * <pre>
+ * POST /keys/{id}?bits=2048   * generate and register a key, returns its public key (409 if id exists)
+ * PUT  /keys/{id}             * load {@code <id>.key} from the key directory (warm it)
+ * DELETE /keys/{id}           * drop the key and its cached state
+ * GET  /keys/{id}             public key (n, e)
+ * POST /encrypt/{id}          body = message,    response = OAEP ciphertext
+ * POST /decrypt/{id}          body = ciphertext, response = message (OAEP + CRT)
+ * GET  /stats                 latency and queue-depth statistics (JSON)
+ * </pre>
+ * Without an admin token (see {@link #setAdminToken}) the key management
+ * endpoints answer 403.
+ */
+public class RSAService {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    private static final int DEFAULT_MAX_QUEUE_DEPTH = 1024;
+    private static final int MAX_BODY_LENGTH = 64 * 1024;
+    private static final long DEFAULT_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+    // Key IDs accepted over HTTP; they become key file names and URL path segments
+    private static final Pattern KEY_ID = Pattern.compile("[A-Za-z0-9._-]{1,128}");
+    // Environment variable holding the admin token of the service and of ShardRouter
+    static final String ADMIN_TOKEN_ENV = "RSA_ADMIN_TOKEN";
+
+    // Pending requests of one key, drained by at most one worker at a time
+    private static final class KeyQueue {
+        private final String keyId;
+        private final KeyPair keyPair;
+        private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private KeyQueue(String keyId, KeyPair keyPair) {
+            this.keyId = keyId;
+            this.keyPair = keyPair;
+        }
+    }
+
+    private static final class Pending {
+        private final RSAFlowProcessor.Operation operation;
+        private final BigInteger value;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<BigInteger> result = new CompletableFuture<>();
+
+        private Pending(RSAFlowProcessor.Operation operation, BigInteger value) {
+            this.operation = operation;
+            this.value = value;
+        }
+    }
+
+    private final RSACipher cipher = new RSAUtils();
+    private final Map<String, KeyQueue> keys = new ConcurrentHashMap<>();
+    private final int maxBatchSize;
+    private final int maxQueueDepth;
+    private final ExecutorService cryptoWorkers;
+    private final ExecutorService connectionThreads;
+    private final HttpServer server;
+    // Null when caching is disabled
+    private final DecryptCache decryptCache;
+    // Where PUT /keys/{id} loads keys from; null when not set
+    private volatile Path keyDirectory;
+    // Bearer token for POST/PUT/DELETE /keys; null disables them
+    private volatile byte[] adminToken;
+
+    // Statistics
+    private final LatencyHistogram encryptLatency = new LatencyHistogram();
+    private final LatencyHistogram decryptLatency = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final AtomicInteger totalQueueDepth = new AtomicInteger();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedRequests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public RSAService(int port) throws IOException {
+        this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_QUEUE_DEPTH);
+    }
+
+    /**
+     * @param address       Address to bind (port 0 picks a free port).
+     * @param workers       Number of CPU-bound crypto workers.
+     * @param maxBatchSize  Maximum requests of one key run in a single batch.
+     * @param maxQueueDepth Maximum pending requests per key before rejecting with 503.
+     */
+    public RSAService(InetSocketAddress address, int workers, int maxBatchSize, int maxQueueDepth)
+            throws IOException {
+        this(address, workers, maxBatchSize, maxQueueDepth, null);
+    }
+
+    /**
+     * Same as above, answering repeated decrypt requests from decryptCache
+     * (null disables caching).
+     */
+    public RSAService(InetSocketAddress address, int workers, int maxBatchSize, int maxQueueDepth,
+            DecryptCache decryptCache) throws IOException {
+        if (workers < 1 || maxBatchSize < 1 || maxQueueDepth < 1) {
+            throw new IllegalArgumentException("workers, maxBatchSize and maxQueueDepth must be positive.");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxQueueDepth = maxQueueDepth;
+        this.decryptCache = decryptCache;
+        this.cryptoWorkers = Executors.newFixedThreadPool(workers, VirtualThreads.daemonThreads("rsa-service-worker"));
+        this.connectionThreads = VirtualThreads.newPerTaskExecutor("rsa-service-conn");
+
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(connectionThreads);
+        server.createContext("/keys/", this::handleKeys);
+        server.createContext("/encrypt/", exchange -> handleCrypto(exchange, RSAFlowProcessor.Operation.ENCRYPT_OAEP));
+        server.createContext("/decrypt/",
+                exchange -> handleCrypto(exchange, RSAFlowProcessor.Operation.DECRYPT_OAEP_CRT));
+        server.createContext("/stats", this::handleStats);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        connectionThreads.shutdown();
+        cryptoWorkers.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void addKey(String keyId, KeyPair keyPair) {
+        keys.put(keyId, new KeyQueue(keyId, keyPair));
+        if (decryptCache != null) {
+            decryptCache.invalidate(keyId);
+        }
+    }
+
+    /**
+     * Directory of {@code <keyId>.key} files that PUT /keys/{id} loads from, so a
+     * front end (see ShardRouter) can decide which keys this instance keeps warm.
+     */
+    public void setKeyDirectory(Path keyDirectory) {
+        this.keyDirectory = keyDirectory;
+    }
+
+    /**
+     * Bearer token that POST, PUT and DELETE /keys/{id} require; null (the
+     * default) disables them. Keys added with addKey() are not affected.
+     */
+    public void setAdminToken(String adminToken) {
+        if (adminToken != null && adminToken.isEmpty()) {
+            throw new IllegalArgumentException("Admin token must not be empty.");
+        }
+        this.adminToken = adminToken == null ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public KeyPair getKey(String keyId) {
+        KeyQueue queue = keys.get(keyId);
+        return queue == null ? null : queue.keyPair;
+    }
+
+    public boolean removeKey(String keyId) {
+        KeyQueue queue = keys.remove(keyId);
+        if (queue == null) {
+            return false;
+        }
+        if (decryptCache != null) {
+            decryptCache.invalidate(keyId);
+        }
+        // Fail anything still waiting so callers do not hang
+        Pending p;
+        while ((p = queue.pending.poll()) != null) {
+            queue.depth.decrementAndGet();
+            totalQueueDepth.decrementAndGet();
+            p.result.completeExceptionally(new IllegalStateException("Key " + keyId + " was removed."));
+        }
+        return true;
+    }
+
+    /**
+     * Queues one operation for a key. This is what the HTTP handlers call, and
+     * can also be used directly when the service is embedded.
+     *
+     * @return Future completed by a crypto worker, or failed with
+     *         RejectedExecutionException if the key's queue is full.
+     */
+    public CompletableFuture<BigInteger> submit(String keyId, RSAFlowProcessor.Operation operation,
+            BigInteger value) {
+        KeyQueue queue = keys.get(keyId);
+        if (queue == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Unknown key ID: " + keyId));
+        }
+        if (decryptCache != null && operation == RSAFlowProcessor.Operation.DECRYPT_OAEP_CRT) {
+            try {
+                BigInteger cached = decryptCache.get(keyId, value, queue.keyPair);
+                if (cached != null) {
+                    return CompletableFuture.completedFuture(cached);
+                }
+            } catch (RuntimeException ex) {
+                return CompletableFuture.failedFuture(ex);
+            }
+        }
+        if (queue.depth.incrementAndGet() > maxQueueDepth) {
+            queue.depth.decrementAndGet();
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Queue full for key " + keyId));
+        }
+        totalQueueDepth.incrementAndGet();
+
+        Pending pending = new Pending(operation, value);
+        queue.pending.add(pending);
+        schedule(queue);
+        return pending.result;
+    }
+
+    // ============================================================
+    // MICRO-BATCHING
+    // ============================================================
+
+    private void schedule(KeyQueue queue) {
+        if (!queue.pending.isEmpty() && queue.scheduled.compareAndSet(false, true)) {
+            try {
+                cryptoWorkers.execute(() -> runBatch(queue));
+            } catch (RejectedExecutionException ex) {
+                // Service is stopping
+                queue.scheduled.set(false);
+            }
+        }
+    }
+
+    private void runBatch(KeyQueue queue) {
+        int count = 0;
+        Pending p;
+        while (count < maxBatchSize && (p = queue.pending.poll()) != null) {
+            queue.depth.decrementAndGet();
+            totalQueueDepth.decrementAndGet();
+            count++;
+
+            long start = System.nanoTime();
+            queueWait.record(start - p.enqueuedAt);
+            try {
+                BigInteger out;
+                if (p.operation == RSAFlowProcessor.Operation.ENCRYPT_OAEP) {
+                    out = cipher.encryptOAEP(p.value, queue.keyPair.getEncryptKey(), queue.keyPair.getModulus());
+                    encryptLatency.record(System.nanoTime() - start);
+                } else {
+                    out = cipher.decryptOAEP_CRT(p.value, queue.keyPair);
+                    if (decryptCache != null) {
+                        decryptCache.put(queue.keyId, p.value, queue.keyPair, out);
+                    }
+                    decryptLatency.record(System.nanoTime() - start);
+                }
+                p.result.complete(out);
+            } catch (RuntimeException ex) {
+                p.result.completeExceptionally(ex);
+            }
+        }
+        if (count > 0) {
+            batches.increment();
+            batchedRequests.add(count);
+        }
+
+        // Let other keys run, then come back if more requests arrived meanwhile
+        queue.scheduled.set(false);
+        schedule(queue);
+    }
+
+    // ============================================================
+    // HTTP HANDLERS
+    // ============================================================
+
+    private void handleKeys(HttpExchange exchange) throws IOException {
+        String keyId = pathSuffix(exchange, "/keys/");
+        String method = exchange.getRequestMethod();
+        if (!isValidKeyId(keyId)) {
+            send(exchange, 400, "Invalid key ID.");
+            return;
+        }
+        if (!method.equals("GET") && !authorize(exchange, adminToken)) {
+            return;
+        }
+
+        if (method.equals("POST")) {
+            if (getKey(keyId) != null) {
+                send(exchange, 409, "Key ID already exists: " + keyId);
+                return;
+            }
+            int bits = 2048;
+            String query = exchange.getRequestURI().getQuery();
+            if (query != null && query.startsWith("bits=")) {
+                try {
+                    bits = Integer.parseInt(query.substring(5));
+                } catch (NumberFormatException ex) {
+                    send(exchange, 400, "Invalid bits parameter.");
+                    return;
+                }
+            }
+            if (bits < 512 || bits > 8192) {
+                send(exchange, 400, "bits must be between 512 and 8192.");
+                return;
+            }
+            // Generated on a crypto worker; connection threads only wait for it
+            int keyBits = bits;
+            try {
+                KeyPair generated = CompletableFuture.supplyAsync(() -> KeyPair.generateRandomKeyPair(keyBits),
+                        cryptoWorkers).get();
+                // Another POST for the same ID may have finished first
+                if (keys.putIfAbsent(keyId, new KeyQueue(keyId, generated)) != null) {
+                    send(exchange, 409, "Key ID already exists: " + keyId);
+                    return;
+                }
+            } catch (RejectedExecutionException ex) {
+                send(exchange, 503, "Service is stopping.");
+                return;
+            } catch (ExecutionException ex) {
+                send(exchange, 500, "Key generation failed.");
+                return;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "Interrupted.");
+                return;
+            }
+        } else if (method.equals("PUT")) {
+            Path dir = keyDirectory;
+            Path file = dir == null ? null : dir.resolve(keyId + KeyFile.EXTENSION);
+            if (file == null || !file.normalize().getParent().equals(dir.normalize())
+                    || !Files.exists(file)) {
+                send(exchange, 404, "No key file for " + keyId);
+                return;
+            }
+            if (getKey(keyId) == null) {
+                addKey(keyId, KeyFile.load(file));
+            }
+        } else if (method.equals("DELETE")) {
+            send(exchange, removeKey(keyId) ? 200 : 404, keyId);
+            return;
+        } else if (!method.equals("GET")) {
+            send(exchange, 405, "Method not allowed.");
+            return;
+        }
+
+        KeyPair keyPair = getKey(keyId);
+        if (keyPair == null) {
+            send(exchange, 404, "Unknown key ID: " + keyId);
+            return;
+        }
+        send(exchange, 200, "{\"keyId\":" + jsonString(keyId) + ",\"n\":\"" + keyPair.getModulus().toString(16)
+                + "\",\"e\":\"" + keyPair.getEncryptKey().toString(16) + "\"}");
+    }
+
+    private void handleCrypto(HttpExchange exchange, RSAFlowProcessor.Operation operation) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, "Method not allowed.");
+            return;
+        }
+        String keyId = pathSuffix(exchange, operation == RSAFlowProcessor.Operation.ENCRYPT_OAEP
+                ? "/encrypt/"
+                : "/decrypt/");
+        if (!isValidKeyId(keyId)) {
+            send(exchange, 400, "Invalid key ID.");
+            return;
+        }
+        if (!keys.containsKey(keyId)) {
+            send(exchange, 404, "Unknown key ID: " + keyId);
+            return;
+        }
+
+        BigInteger value;
+        try {
+            value = new BigInteger(readBody(exchange).trim(), 16);
+        } catch (NumberFormatException ex) {
+            send(exchange, 400, "Body must be a hex number.");
+            return;
+        }
+
+        try {
+            BigInteger out = submit(keyId, operation, value).get();
+            send(exchange, 200, out.toString(16));
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RejectedExecutionException) {
+                send(exchange, 503, "Overloaded, retry later.");
+            } else {
+                send(exchange, 400, String.valueOf(cause.getMessage()));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "Interrupted.");
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        send(exchange, 200, statsJson());
+    }
+
+    /**
+     * @return Current statistics as a JSON object (latencies in microseconds).
+     */
+    public String statsJson() {
+        long batchCount = batches.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append('{');
+        sb.append("\"virtualThreads\":").append(VirtualThreads.isAvailable()).append(',');
+        sb.append("\"queueDepth\":").append(totalQueueDepth.get()).append(',');
+        sb.append("\"rejected\":").append(rejected.sum()).append(',');
+        sb.append("\"batches\":").append(batchCount).append(',');
+        sb.append("\"avgBatchSize\":")
+                .append(String.format("%.2f", batchCount == 0 ? 0.0 : (double) batchedRequests.sum() / batchCount))
+                .append(',');
+        sb.append("\"encrypt\":").append(histogramJson(encryptLatency)).append(',');
+        sb.append("\"decrypt\":").append(histogramJson(decryptLatency)).append(',');
+        sb.append("\"queueWait\":").append(histogramJson(queueWait)).append(',');
+        if (decryptCache != null) {
+            sb.append("\"decryptCache\":").append(decryptCache.statsJson()).append(',');
+        }
+        sb.append("\"keys\":{");
+        boolean first = true;
+        for (Map.Entry<String, KeyQueue> entry : keys.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            // Keys added through addKey() are not restricted to KEY_ID
+            sb.append(jsonString(entry.getKey())).append(":{\"queueDepth\":")
+                    .append(entry.getValue().depth.get()).append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static String histogramJson(LatencyHistogram h) {
+        return String.format("{\"count\":%d,\"meanUs\":%.1f,\"p50Us\":%.1f,\"p99Us\":%.1f,\"maxUs\":%.1f}",
+                h.getCount(), h.getMean() / 1e3, h.getValueAtPercentile(50) / 1e3,
+                h.getValueAtPercentile(99) / 1e3, h.getMax() / 1e3);
+    }
+
+    /**
+     * Sends 403 (no token configured) or 401 (missing or wrong token) and returns
+     * false unless the request carries {@code Authorization: Bearer <adminToken>}.
+     */
+    static boolean authorize(HttpExchange exchange, byte[] adminToken) throws IOException {
+        if (adminToken == null) {
+            send(exchange, 403, "Management is disabled; set " + ADMIN_TOKEN_ENV + ".");
+            return false;
+        }
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] presented = header != null && header.startsWith("Bearer ")
+                ? header.substring(7).getBytes(StandardCharsets.UTF_8) : new byte[0];
+        // Constant time, so the token cannot be guessed byte by byte from response times
+        if (!MessageDigest.isEqual(presented, adminToken)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            send(exchange, 401, "Admin token required.");
+            return false;
+        }
+        return true;
+    }
+
+    static boolean isValidKeyId(String keyId) {
+        return KEY_ID.matcher(keyId).matches();
+    }
+
+    static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String pathSuffix(HttpExchange exchange, String prefix) {
+        String path = exchange.getRequestURI().getPath();
+        return path.length() > prefix.length() ? path.substring(prefix.length()) : "";
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_LENGTH + 1);
+            if (body.length > MAX_BODY_LENGTH) {
+                throw new NumberFormatException("Body too large.");
+            }
+            return new String(body, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Usage: java RSAService [port] [keyDirectory] [decryptCacheEntries] [shard]
+     * Keys in keyDirectory ({@code <keyId>.key}, see KeyFile) are loaded at startup.
+     * A positive decryptCacheEntries enables a DecryptCache of that size (5 minute TTL).
+     * With "shard", no key is loaded at startup; a ShardRouter loads (PUT) and
+     * drops (DELETE) the keys this node owns. The admin token for the key
+     * management endpoints is read from RSA_ADMIN_TOKEN (in a cluster, the
+     * router's token).
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int cacheEntries = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        RSAService service = new RSAService(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_QUEUE_DEPTH,
+                cacheEntries > 0 ? new DecryptCache(cacheEntries, DEFAULT_CACHE_TTL_MILLIS) : null);
+
+        boolean shard = args.length > 3 && args[3].equals("shard");
+        Path keyDir = args.length > 1 ? Paths.get(args[1]) : null;
+        service.setKeyDirectory(keyDir);
+        service.setAdminToken(System.getenv(ADMIN_TOKEN_ENV));
+        if (keyDir != null && !shard) {
+            for (Map.Entry<String, KeyPair> entry : KeyFile.loadDirectory(keyDir).entrySet()) {
+                service.addKey(entry.getKey(), entry.getValue());
+                System.out.println("Loaded key " + entry.getKey() + " (" + entry.getValue().getModulus().bitLength()
+                        + " bits)");
+            }
+        }
+
+        service.start();
+        System.out.println("RSA service listening on http://localhost:" + service.getPort()
+                + " (virtual threads: " + VirtualThreads.isAvailable() + ")");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+        // Keep the main thread alive until the process is killed
+        Thread.currentThread().join();
+    }
+}
@@ -1,10 +1,73 @@
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class RSAUtils implements RSACipher {
 
+    // Source of OAEP seeds; null means RandomSources.getDefault() at call time
+    private final RandomSource random;
+    // Runs the two CRT halves on two cores; null means always sequential
+    private final ParallelCRT parallelCRT;
+    // Private-key exponentiations in constant time (Montgomery.modPowConstantTime).
+    // Opt-in: about 4x slower than the BigInteger engine on JDK 17, whose modPow
+    // uses HotSpot's Montgomery intrinsics while Montgomery is plain Java.
+    private final boolean constantTime;
+
+    public RSAUtils() {
+        this(null);
+    }
+
+    /**
+     * @param random Randomness source for OAEP seeds (e.g. RandomSources.seeded(..)
+     *               for reproducible benchmarks), or null for the default source.
+     *               CRT runs in parallel if the AutoTuner profile chose it.
+     */
+    public RSAUtils(RandomSource random) {
+        this(random, AutoTuner.parallelCRT());
+    }
+
+    /**
+     * @param random      As above.
+     * @param parallelCRT Latency mode for decryptCRT (see ParallelCRT), or null.
+     */
+    public RSAUtils(RandomSource random, ParallelCRT parallelCRT) {
+        this(random, parallelCRT, Boolean.getBoolean("rsa.constantTime"));
+    }
+
+    /**
+     * @param random       As above.
+     * @param parallelCRT  As above.
+     * @param constantTime Run the private-key exponentiations of decrypt,
+     *                     decryptOAEP, decryptCRT and decryptBatch in constant
+     *                     time. The other constructors take it from
+     *                     -Drsa.constantTime (default false). Costs about 4x the
+     *                     private-key time of the BigInteger engine.
+     */
+    public RSAUtils(RandomSource random, ParallelCRT parallelCRT, boolean constantTime) {
+        this.random = random;
+        this.parallelCRT = parallelCRT;
+        this.constantTime = constantTime;
+    }
+
+    private RandomSource random() {
+        return random != null ? random : RandomSources.getDefault();
+    }
+
+    // base^exp mod m for a secret exponent, in constant time if enabled (odd moduli only).
+    // context is the key's Montgomery context of a secret prime, or null for the public n.
+    private BigInteger privatePow(BigInteger base, BigInteger exp, BigInteger mod, Montgomery context) {
+        if (constantTime && mod.testBit(0)) {
+            return AutoTuner.modPowConstantTime(base, exp, context != null ? context : AutoTuner.publicContext(mod));
+        }
+        return context != null ? AutoTuner.modPow(base, exp, mod, context) : AutoTuner.modPow(base, exp, mod);
+    }
+
     // Encrypt message (message < n)
     @Override
     public BigInteger encrypt(BigInteger message, BigInteger e, BigInteger n) {
@@ -14,7 +77,7 @@ public class RSAUtils implements RSACipher {
         if (message.compareTo(n) >= 0) {
             throw new IllegalArgumentException("Message must be less than modulus n.");
         }
-        return Utils.modPow(message, e, n);
+        return AutoTuner.modPow(message, e, n);
     }
 
     // Decrypt cipher (cipher < n)
@@ -26,7 +89,7 @@ public class RSAUtils implements RSACipher {
         if (cipher.compareTo(n) >= 0) {
             throw new IllegalArgumentException("Ciphertext must be less than modulus n.");
         }
-        return Utils.modPow(cipher, d, n);
+        return privatePow(cipher, d, n, null);
     }
 
     // ===============================================================================================
@@ -68,46 +131,13 @@ public class RSAUtils implements RSACipher {
                         maxMsgLen, mBytes.length, n.bitLength(), k, 2 * HASH_LEN + 2));
             }
 
-            // OAEP Padding
-            // DB = lHash || PS || 0x01 || M
-            // lHash = Hash(L), where L is empty string for basic OAEP
-            byte[] lHash = hash(new byte[0]);
-            int psLen = k - mBytes.length - 2 * HASH_LEN - 2;
-            byte[] ps = new byte[psLen]; // Zero padding
-
-            byte[] db = new byte[k - HASH_LEN - 1];
-            System.arraycopy(lHash, 0, db, 0, HASH_LEN);
-            System.arraycopy(ps, 0, db, HASH_LEN, psLen);
-            db[HASH_LEN + psLen] = 0x01;
-            System.arraycopy(mBytes, 0, db, HASH_LEN + psLen + 1, mBytes.length);
-
-            // Generate random seed
-            // Độ dài của maskedSeed LUÔN LUÔN bằng độ dài đầu ra của hàm Hash.
-            byte[] seed = new byte[HASH_LEN];
-            new SecureRandom().nextBytes(seed);
-
-            // dbMask = MGF(seed, k - hLen - 1)
-            byte[] dbMask = mgf1(seed, k - HASH_LEN - 1);
-
-            // maskedDB = DB XOR dbMask
-            byte[] maskedDB = Utils.xor(db, dbMask);
-
-            // seedMask = MGF(maskedDB, hLen)
-            byte[] seedMask = mgf1(maskedDB, HASH_LEN);
-
-            // maskedSeed = seed XOR seedMask
-            byte[] maskedSeed = Utils.xor(seed, seedMask);
-
-            // EM = 0x00 || maskedSeed || maskedDB
-            // maskedSeed_length = hash_length
+            // EM = 0x00 || maskedSeed || maskedDB, built in a single k-byte array
             byte[] em = new byte[k];
-            em[0] = 0x00;
-            System.arraycopy(maskedSeed, 0, em, 1, HASH_LEN);
-            System.arraycopy(maskedDB, 0, em, 1 + HASH_LEN, maskedDB.length);
+            padOAEP(ByteBuffer.wrap(mBytes), em, random());
 
             BigInteger mEncoded = new BigInteger(1, em);
 
-            return Utils.modPow(mEncoded, e, n);
+            return AutoTuner.modPow(mEncoded, e, n);
 
         } catch (Exception ex) {
             throw new RuntimeException("OAEP Encryption failed", ex);
@@ -125,7 +155,7 @@ public class RSAUtils implements RSACipher {
     @Override
     public BigInteger decryptOAEP(BigInteger cipher, BigInteger d, BigInteger n) {
         // 1. Standard RSA Decryption
-        BigInteger encoded = Utils.modPow(cipher, d, n);
+        BigInteger encoded = privatePow(cipher, d, n, null);
 
         // 2. OAEP Unpadding
         return decodeOAEP(encoded, n);
@@ -146,21 +176,30 @@ public class RSAUtils implements RSACipher {
     public BigInteger decryptCRT(BigInteger cipher, KeyPair keyPair) {
         BigInteger p = keyPair.getP();
         BigInteger q = keyPair.getQ();
-        BigInteger d = keyPair.getDecryptKey();
 
         if (p == null || q == null) {
             throw new IllegalArgumentException("CRT decryption requires p and q in KeyPair.");
         }
 
-        // Precompute CRT parameters (in a real app, these should be cached in KeyPair)
-        BigInteger dP = d.mod(p.subtract(BigInteger.ONE));
-        BigInteger dQ = d.mod(q.subtract(BigInteger.ONE));
-        BigInteger qInv = Utils.modMulInverse(q, p);
-
-        // m1 = c^dP mod p
-        BigInteger m1 = Utils.modPow(cipher, dP, p);
-        // m2 = c^dQ mod q
-        BigInteger m2 = Utils.modPow(cipher, dQ, q);
+        // CRT parameters are precomputed once per key in KeyPair
+        BigInteger dP = keyPair.getDP();
+        BigInteger dQ = keyPair.getDQ();
+        BigInteger qInv = keyPair.getQInv();
+
+        BigInteger m1;
+        BigInteger m2;
+        if (parallelCRT != null) {
+            // Both halves at once, when a helper core is free
+            BigInteger[] halves = parallelCRT.both(() -> privatePow(cipher, dP, p, keyPair.getMontgomeryP()),
+                    () -> privatePow(cipher, dQ, q, keyPair.getMontgomeryQ()));
+            m1 = halves[0];
+            m2 = halves[1];
+        } else {
+            // m1 = c^dP mod p
+            m1 = privatePow(cipher, dP, p, keyPair.getMontgomeryP());
+            // m2 = c^dQ mod q
+            m2 = privatePow(cipher, dQ, q, keyPair.getMontgomeryQ());
+        }
 
         // h = qInv * (m1 - m2) mod p
         BigInteger h = m1.subtract(m2).multiply(qInv).mod(p);
@@ -184,88 +223,312 @@ public class RSAUtils implements RSACipher {
         return decodeOAEP(encoded, keyPair.getModulus());
     }
 
-    private static BigInteger decodeOAEP(BigInteger encoded, BigInteger n) {
-        try {
-            int k = (n.bitLength() + 7) / 8;
-            byte[] em = encoded.toByteArray();
-
-            // Pad with leading zeros if necessary to match length k
-            // remove unuseful leading zeros of BigInteger
-            if (em.length < k) {
-                byte[] temp = new byte[k];
-                System.arraycopy(em, 0, temp, k - em.length, em.length);
-                em = temp;
-            } else if (em.length > k) {
-                // Should not happen if encoded < n, but handle sign byte
-                if (em[0] == 0 && em.length == k + 1) {
-                    byte[] temp = new byte[k];
-                    System.arraycopy(em, 1, temp, 0, k);
-                    em = temp;
-                }
+    /**
+     * Fiat batch RSA decryption of ciphertexts under one modulus with different
+     * small public exponents (see KeyPair.Mode.BATCH).
+     *
+     * Ciphertexts are split into rounds with at most one ciphertext per exponent.
+     * Each round is decrypted separately mod p and mod q (then recombined like
+     * decryptCRT) over a product tree of its ciphertexts:
+     * <pre>
+     * percolate up:   v = v_L^(E_R) * v_R^(E_L), E = E_L * E_R   (v = (prod m_i)^E)
+     * root:           r = v^(E^-1 mod p-1)                       (r = prod m_i)
+     * percolate down: X = 0 mod E_L, X = 1 mod E_R
+     *                 m_R = r^X / (v_L^(X / E_L) * v_R^((X - 1) / E_R)),  m_L = r / m_R
+     * </pre>
+     * so a round costs one full-size CRT exponentiation plus exponentiations by
+     * products of the small exponents and one inversion per tree node.
+     * In constant-time mode all three (the root exponentiation, the ones by
+     * public products and the inversions, done by Fermat) use
+     * Montgomery.modPowConstantTime.
+     *
+     * @param ciphers   Ciphertexts, each in [0, n).
+     * @param exponents exponents[i] is the public exponent ciphers[i] was made
+     *                  with. Distinct values must be pairwise coprime and
+     *                  coprime with p-1 and q-1.
+     * @param keyPair   Key with p and q.
+     * @return The plaintexts, in the order of ciphers.
+     */
+    public BigInteger[] decryptBatch(BigInteger[] ciphers, BigInteger[] exponents, KeyPair keyPair) {
+        BigInteger p = keyPair.getP();
+        BigInteger q = keyPair.getQ();
+        BigInteger n = keyPair.getModulus();
+        if (p == null || q == null) {
+            throw new IllegalArgumentException("Batch decryption requires p and q in KeyPair.");
+        }
+        if (ciphers.length != exponents.length) {
+            throw new IllegalArgumentException("One exponent per ciphertext is required.");
+        }
+        checkBatchExponents(exponents, p.subtract(BigInteger.ONE), q.subtract(BigInteger.ONE));
+
+        // Rounds of distinct exponents. A ciphertext sharing a factor with n can't
+        // take part in the inversions, so it gets a round of its own.
+        List<List<Integer>> rounds = new ArrayList<>();
+        List<Set<BigInteger>> roundExponents = new ArrayList<>();
+        List<List<Integer>> isolated = new ArrayList<>();
+        for (int i = 0; i < ciphers.length; i++) {
+            BigInteger c = ciphers[i];
+            if (c.signum() < 0 || c.compareTo(n) >= 0) {
+                throw new IllegalArgumentException("Ciphertext " + i + " is out of range [0, n).");
+            }
+            if (c.mod(p).signum() == 0 || c.mod(q).signum() == 0) {
+                isolated.add(List.of(i));
+                continue;
+            }
+            int r = 0;
+            while (r < rounds.size() && roundExponents.get(r).contains(exponents[i])) {
+                r++;
+            }
+            if (r == rounds.size()) {
+                rounds.add(new ArrayList<>());
+                roundExponents.add(new HashSet<>());
+            }
+            rounds.get(r).add(i);
+            roundExponents.get(r).add(exponents[i]);
+        }
+        rounds.addAll(isolated);
+
+        BigInteger qInv = keyPair.getQInv();
+        BigInteger[] plain = new BigInteger[ciphers.length];
+        for (List<Integer> round : rounds) {
+            BigInteger[] cs = new BigInteger[round.size()];
+            BigInteger[] es = new BigInteger[round.size()];
+            for (int k = 0; k < cs.length; k++) {
+                cs[k] = ciphers[round.get(k)];
+                es[k] = exponents[round.get(k)];
             }
+            BigInteger[] m1 = batchRoots(cs, es, p, keyPair.getMontgomeryP());
+            BigInteger[] m2 = batchRoots(cs, es, q, keyPair.getMontgomeryQ());
+            for (int k = 0; k < cs.length; k++) {
+                // m = m2 + q * (qInv * (m1 - m2) mod p)
+                BigInteger h = m1[k].subtract(m2[k]).multiply(qInv).mod(p);
+                plain[round.get(k)] = m2[k].add(h.multiply(q));
+            }
+        }
+        return plain;
+    }
 
-            // Check first byte is 0x00
-            if (em[0] != 0x00) {
-                throw new IllegalArgumentException("Invalid OAEP padding.");
+    // Distinct exponents pairwise coprime, each coprime with p-1 and q-1
+    private static void checkBatchExponents(BigInteger[] exponents, BigInteger pMinus1, BigInteger qMinus1) {
+        BigInteger product = BigInteger.ONE;
+        Set<BigInteger> seen = new HashSet<>();
+        for (BigInteger e : exponents) {
+            if (!seen.add(e)) {
+                continue;
             }
+            if (e.compareTo(BigInteger.ONE) <= 0 || !Utils.gcd(product, e).equals(BigInteger.ONE)) {
+                throw new IllegalArgumentException("Batch exponents must be greater than 1 and pairwise coprime.");
+            }
+            if (!Utils.gcd(e, pMinus1).equals(BigInteger.ONE) || !Utils.gcd(e, qMinus1).equals(BigInteger.ONE)) {
+                throw new IllegalArgumentException("Exponent " + e + " is not a valid public exponent for this key.");
+            }
+            product = product.multiply(e);
+        }
+    }
 
-            byte[] maskedSeed = new byte[HASH_LEN];
-            System.arraycopy(em, 1, maskedSeed, 0, HASH_LEN);
+    // One node of a batch product tree: v = (product of its messages)^e mod P
+    private static final class BatchNode {
+        final BigInteger v;
+        final BigInteger e;
+        final BatchNode left;
+        final BatchNode right;
+        final int index;
+
+        BatchNode(BigInteger v, BigInteger e, BatchNode left, BatchNode right, int index) {
+            this.v = v;
+            this.e = e;
+            this.left = left;
+            this.right = right;
+            this.index = index;
+        }
+    }
 
-            byte[] maskedDB = new byte[k - HASH_LEN - 1];
-            System.arraycopy(em, 1 + HASH_LEN, maskedDB, 0, maskedDB.length);
+    // m_i = c_i^(e_i^-1) mod prime for every i, with one full-size exponentiation
+    private BigInteger[] batchRoots(BigInteger[] ciphers, BigInteger[] exponents, BigInteger prime,
+            Montgomery context) {
+        BatchNode root = percolateUp(ciphers, exponents, prime, context, 0, ciphers.length);
+        // Depends only on the key and the public exponents, not on the ciphertexts
+        BigInteger rootExponent = Utils.modMulInverse(root.e.mod(prime.subtract(BigInteger.ONE)),
+                prime.subtract(BigInteger.ONE));
+        BigInteger[] roots = new BigInteger[ciphers.length];
+        percolateDown(root, privatePow(root.v, rootExponent, prime, context), prime, context, roots);
+        return roots;
+    }
 
-            byte[] seedMask = mgf1(maskedDB, HASH_LEN);
-            byte[] seed = Utils.xor(maskedSeed, seedMask);
+    // base^exp mod prime for a public (small) exponent; in constant-time mode the
+    // running time depends on the exponent only, not on the secret base
+    private BigInteger batchPow(BigInteger base, BigInteger exp, BigInteger prime, Montgomery context) {
+        if (constantTime) {
+            return AutoTuner.modPowConstantTime(base, exp, exp.bitLength(), context);
+        }
+        return AutoTuner.modPow(base, exp, prime, context);
+    }
 
-            byte[] dbMask = mgf1(seed, k - HASH_LEN - 1);
-            byte[] db = Utils.xor(maskedDB, dbMask);
+    // x^-1 mod prime; in constant-time mode by Fermat (x^(prime - 2)) instead of the
+    // extended Euclid, whose number of steps depends on x
+    private BigInteger batchInverse(BigInteger x, BigInteger prime, Montgomery context) {
+        if (constantTime) {
+            return privatePow(x, prime.subtract(BigInteger.TWO), prime, context);
+        }
+        return Utils.modMulInverse(x, prime);
+    }
 
-            // Verify lHash
-            byte[] lHash = hash(new byte[0]);
-            for (int i = 0; i < HASH_LEN; i++) {
-                if (db[i] != lHash[i]) {
-                    throw new IllegalArgumentException("OAEP decoding failed: Hash mismatch");
-                }
-            }
+    private BatchNode percolateUp(BigInteger[] ciphers, BigInteger[] exponents, BigInteger prime,
+            Montgomery context, int from, int to) {
+        if (to - from == 1) {
+            return new BatchNode(ciphers[from].mod(prime), exponents[from], null, null, from);
+        }
+        int mid = (from + to) >>> 1;
+        BatchNode left = percolateUp(ciphers, exponents, prime, context, from, mid);
+        BatchNode right = percolateUp(ciphers, exponents, prime, context, mid, to);
+        BigInteger v = batchPow(left.v, right.e, prime, context)
+                .multiply(batchPow(right.v, left.e, prime, context)).mod(prime);
+        return new BatchNode(v, left.e.multiply(right.e), left, right, -1);
+    }
 
-            // DB = lHash || PS || 0x01 || M
-            // Find 0x01 byte
-            int index = HASH_LEN;
-            while (index < db.length && db[index] == 0) {
-                index++;
-            }
-            if (index >= db.length || db[index] != 0x01) {
-                throw new IllegalArgumentException("OAEP decoding failed: Padding pattern not found");
-            }
+    // r is the product of the node's messages mod prime; splits it down to the leaves
+    private void percolateDown(BatchNode node, BigInteger r, BigInteger prime, Montgomery context,
+            BigInteger[] roots) {
+        if (node.left == null) {
+            roots[node.index] = r;
+            return;
+        }
+        BatchNode left = node.left;
+        BatchNode right = node.right;
+        // X = 0 mod E_L, X = 1 mod E_R
+        BigInteger x = left.e.multiply(Utils.modMulInverse(left.e.mod(right.e), right.e));
+        BigInteger rx = batchPow(r, x, prime, context);
+        BigInteger denominator = batchPow(left.v, x.divide(left.e), prime, context)
+                .multiply(batchPow(right.v, x.subtract(BigInteger.ONE).divide(right.e), prime, context))
+                .mod(prime);
+        // One inversion for both quotients: inv = (rx * denominator)^-1
+        BigInteger inv = batchInverse(rx.multiply(denominator).mod(prime), prime, context);
+        // m_R = rx / denominator, m_L = r / m_R = r * denominator / rx
+        BigInteger mRight = rx.multiply(rx).mod(prime).multiply(inv).mod(prime);
+        BigInteger mLeft = r.multiply(denominator).mod(prime).multiply(denominator).mod(prime).multiply(inv)
+                .mod(prime);
+        percolateDown(left, mLeft, prime, context, roots);
+        percolateDown(right, mRight, prime, context, roots);
+    }
+
+    private static BigInteger decodeOAEP(BigInteger encoded, BigInteger n) {
+        try {
+            int k = (n.bitLength() + 7) / 8;
 
-            // Extract message
-            int mLen = db.length - index - 1;
-            byte[] mBytes = new byte[mLen];
-            System.arraycopy(db, index + 1, mBytes, 0, mLen);
+            // I2OSP: exactly k bytes, leading zeros kept
+            byte[] em = OctetString.toBytes(encoded, k);
+            int mOffset = unpadOAEP(em);
 
-            return new BigInteger(1, mBytes);
+            return new BigInteger(1, em, mOffset, k - mOffset);
 
         } catch (Exception ex) {
             throw new RuntimeException("OAEP Decryption failed", ex);
         }
     }
 
+    // lHash = Hash(L), where L is the empty label; computed once
+    static final byte[] EMPTY_LABEL_HASH = emptyLabelHash();
+
+    /**
+     * OAEP encoding into em (em.length = k):
+     * EM = 0x00 || maskedSeed || maskedDB, with DB = lHash || PS || 0x01 || M.
+     * DB and the seed are written directly into em and masked in place, so the
+     * only copy of the message is the one into em.
+     *
+     * @param message Message bytes (all remaining bytes are consumed).
+     * @param em      Output array of length k.
+     * @param random  Source of the random seed.
+     */
+    static void padOAEP(ByteBuffer message, byte[] em, RandomSource random) throws NoSuchAlgorithmException {
+        int k = em.length;
+        int mLen = message.remaining();
+        int dbLen = k - HASH_LEN - 1;
+        if (mLen > k - 2 * HASH_LEN - 2) {
+            throw new IllegalArgumentException(String.format(
+                    "Message too long for OAEP. Max allowed: %d bytes, Actual: %d bytes.",
+                    k - 2 * HASH_LEN - 2, mLen));
+        }
+
+        // DB = lHash || PS (zeros) || 0x01 || M, at em[1 + hLen .. k)
+        int dbStart = 1 + HASH_LEN;
+        System.arraycopy(EMPTY_LABEL_HASH, 0, em, dbStart, HASH_LEN);
+        Arrays.fill(em, dbStart + HASH_LEN, k - mLen - 1, (byte) 0);
+        em[k - mLen - 1] = 0x01;
+        message.get(em, k - mLen, mLen);
+
+        // Random seed at em[1 .. 1 + hLen)
+        byte[] seed = new byte[HASH_LEN];
+        random.nextBytes(seed);
+        System.arraycopy(seed, 0, em, 1, HASH_LEN);
+        Arrays.fill(seed, (byte) 0);
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        // maskedDB = DB XOR MGF(seed, k - hLen - 1)
+        mgf1Xor(md, em, 1, HASH_LEN, em, dbStart, dbLen);
+        // maskedSeed = seed XOR MGF(maskedDB, hLen)
+        mgf1Xor(md, em, dbStart, dbLen, em, 1, HASH_LEN);
+        em[0] = 0x00;
+    }
+
+    /**
+     * OAEP decoding in place: unmasks em and checks the padding.
+     *
+     * @param em Encoded message of length k (overwritten with seed || DB).
+     * @return Offset of the message in em; the message is em[offset .. k).
+     */
+    static int unpadOAEP(byte[] em) throws NoSuchAlgorithmException {
+        int k = em.length;
+        int dbStart = 1 + HASH_LEN;
+        int dbLen = k - HASH_LEN - 1;
+
+        // Check first byte is 0x00
+        if (em[0] != 0x00) {
+            throw new IllegalArgumentException("Invalid OAEP padding.");
+        }
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        // seed = maskedSeed XOR MGF(maskedDB, hLen)
+        mgf1Xor(md, em, dbStart, dbLen, em, 1, HASH_LEN);
+        // DB = maskedDB XOR MGF(seed, k - hLen - 1)
+        mgf1Xor(md, em, 1, HASH_LEN, em, dbStart, dbLen);
+
+        // Verify lHash
+        for (int i = 0; i < HASH_LEN; i++) {
+            if (em[dbStart + i] != EMPTY_LABEL_HASH[i]) {
+                throw new IllegalArgumentException("OAEP decoding failed: Hash mismatch");
+            }
+        }
+
+        // DB = lHash || PS || 0x01 || M
+        // Find 0x01 byte
+        int index = dbStart + HASH_LEN;
+        while (index < k && em[index] == 0) {
+            index++;
+        }
+        if (index >= k || em[index] != 0x01) {
+            throw new IllegalArgumentException("OAEP decoding failed: Padding pattern not found");
+        }
+        return index + 1;
+    }
+
     /**
      * MGF1 (Mask Generation Function 1) is a key derivation function that generates
      * a mask from a seed using a hash function.
      * Hash many times to generate submask from a seed and concatenate them to get a
-     * mask with enough bit length
-     * 
-     * @param seed   The seed to generate the mask from.
-     * @param length The length of the mask to generate.
-     * @return The generated mask.
+     * mask with enough bit length. The mask is XORed straight into out instead of
+     * being returned, so masking needs no temporary arrays.
+     *
+     * @param md      SHA-256 digest to use.
+     * @param seed    Array holding the seed.
+     * @param seedOff Start of the seed.
+     * @param seedLen Length of the seed.
+     * @param out     Array to XOR the mask into (must not overlap the seed).
+     * @param outOff  Start of the masked region.
+     * @param length  The length of the mask to generate.
      */
-    private static byte[] mgf1(byte[] seed, int length) throws NoSuchAlgorithmException {
-        byte[] mask = new byte[length];
+    static void mgf1Xor(MessageDigest md, byte[] seed, int seedOff, int seedLen, byte[] out, int outOff,
+            int length) {
         byte[] counter = new byte[4];
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-
         int hLen = HASH_LEN;
         int count = 0;
 
@@ -278,16 +541,25 @@ public class RSAUtils implements RSACipher {
             counter[3] = (byte) i; // get byte 4
 
             // digest = SHA-256( seed || counter )
-            md.update(seed);
+            md.update(seed, seedOff, seedLen);
             md.update(counter);
             byte[] digest = md.digest();
 
-            // copy byte to mask
+            // xor digest into the output
             int len = Math.min(hLen, length - count);
-            System.arraycopy(digest, 0, mask, count, len);
+            for (int j = 0; j < len; j++) {
+                out[outOff + count + j] ^= digest[j];
+            }
             count += len;
         }
-        return mask;
+    }
+
+    private static byte[] emptyLabelHash() {
+        try {
+            return hash(new byte[0]);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
     }
 
     // private static byte[] xor(byte[] a, byte[] b) {
@@ -0,0 +1,29 @@
+import java.math.BigInteger;
+
+/**
+ * Source of random bytes used by PrimeGenerator, KeyPair and RSAUtils.
+ * Implementations must be safe to call from the threads that share them;
+ * see RandomSources for the available implementations.
+ */
+public interface RandomSource {
+
+    /**
+     * Fills the array with random bytes.
+     */
+    void nextBytes(byte[] bytes);
+
+    /**
+     * Returns a uniformly random non-negative number below 2^bitLength.
+     */
+    default BigInteger nextBigInteger(int bitLength) {
+        if (bitLength <= 0) {
+            return BigInteger.ZERO;
+        }
+        byte[] bytes = new byte[(bitLength + 7) / 8];
+        nextBytes(bytes);
+        // Clear the excess high bits of the first (most significant) byte
+        int excessBits = 8 * bytes.length - bitLength;
+        bytes[0] &= (byte) (0xFF >>> excessBits);
+        return new BigInteger(1, bytes);
+    }
+}
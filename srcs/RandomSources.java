@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Factory for RandomSource implementations, and the process-wide default used
+ * by PrimeGenerator, KeyPair and RSAUtils when no source is passed explicitly.
+ *
+ * - system():      the platform SecureRandom, shared by all threads.
+ * - threadLocal(): one HMAC_DRBG per thread, seeded from SecureRandom and reseeded
+ *                  periodically, serving small requests (e.g. 32-byte OAEP seeds)
+ *                  from a per-thread pre-generated buffer. This is the default.
+ * - seeded(..):    deterministic HMAC_DRBG for reproducible benchmarks and tests.
+ *                  NOT for real keys.
+ */
+public class RandomSources {
+
+    // Generate calls between reseeds of a per-thread DRBG
+    private static final long RESEED_INTERVAL = 1 << 16;
+    // Pre-generated bytes kept per thread; larger requests bypass the buffer
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_BUFFERED_REQUEST = 256;
+
+    private static final SecureRandom SYSTEM_RANDOM = new SecureRandom();
+
+    private static final RandomSource SYSTEM = SYSTEM_RANDOM::nextBytes;
+
+    private static final ThreadLocal<BufferedSource> PER_THREAD = ThreadLocal.withInitial(
+            () -> new BufferedSource(newSystemSeededDrbg()));
+
+    private static final RandomSource THREAD_LOCAL = bytes -> PER_THREAD.get().nextBytes(bytes);
+
+    private static volatile RandomSource defaultSource = THREAD_LOCAL;
+
+    public static RandomSource system() {
+        return SYSTEM;
+    }
+
+    public static RandomSource threadLocal() {
+        return THREAD_LOCAL;
+    }
+
+    /**
+     * Deterministic source: the same seed always yields the same byte sequence
+     * (for a given order of calls). Calls are serialised, so it can be shared,
+     * but the sequence seen by each thread then depends on scheduling.
+     */
+    public static RandomSource seeded(long seed) {
+        return seeded(ByteBuffer.allocate(Long.BYTES).putLong(seed).array());
+    }
+
+    public static RandomSource seeded(byte[] seed) {
+        HmacDrbg drbg = new HmacDrbg(seed, new byte[0],
+                "RSA deterministic benchmark mode".getBytes(StandardCharsets.US_ASCII), null, Long.MAX_VALUE);
+        return bytes -> {
+            synchronized (drbg) {
+                drbg.nextBytes(bytes);
+            }
+        };
+    }
+
+    public static RandomSource getDefault() {
+        return defaultSource;
+    }
+
+    /**
+     * Replaces the default source for every caller that does not pass one
+     * explicitly (e.g. {@code setDefault(seeded(42))} for a reproducible run).
+     */
+    public static void setDefault(RandomSource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("Random source must not be null.");
+        }
+        defaultSource = source;
+    }
+
+    private static HmacDrbg newSystemSeededDrbg() {
+        byte[] entropy = new byte[32];
+        byte[] nonce = new byte[16];
+        SYSTEM_RANDOM.nextBytes(entropy);
+        SYSTEM_RANDOM.nextBytes(nonce);
+        // Personalise with the thread so two instances never share a state
+        byte[] personalization = personalization(Thread.currentThread());
+        return new HmacDrbg(entropy, nonce, personalization, () -> {
+            byte[] fresh = new byte[32];
+            SYSTEM_RANDOM.nextBytes(fresh);
+            return fresh;
+        }, RESEED_INTERVAL);
+    }
+
+    private static byte[] personalization(Thread thread) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(ByteBuffer.allocate(16).putLong(thread.getId()).putLong(System.nanoTime()).array());
+            md.update(thread.getName().getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    // Serves small requests out of a buffer that is refilled with one bulk generate call
+    private static final class BufferedSource implements RandomSource {
+        private final HmacDrbg drbg;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = BUFFER_SIZE;
+
+        private BufferedSource(HmacDrbg drbg) {
+            this.drbg = drbg;
+        }
+
+        @Override
+        public void nextBytes(byte[] bytes) {
+            if (bytes.length > MAX_BUFFERED_REQUEST) {
+                drbg.nextBytes(bytes);
+                return;
+            }
+            if (BUFFER_SIZE - position < bytes.length) {
+                drbg.nextBytes(buffer);
+                position = 0;
+            }
+            System.arraycopy(buffer, position, bytes, 0, bytes.length);
+            // Never hand out the same bytes twice
+            Arrays.fill(buffer, position, position + bytes.length, (byte) 0);
+            position += bytes.length;
+        }
+    }
+}
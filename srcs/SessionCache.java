@@ -0,0 +1,563 @@
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hybrid sessions between peers: one RSA-OAEP key transport per session, then
+ * AES-256-GCM under the cached session key for every further message.
+ *
+ * Sessions are one-way. seal() keeps one outbound session per peer and starts
+ * a new one (fresh random key, wrapped with RSAByteBufferCipher to the peer's
+ * public key) when there is none, when it is older than lifetimeMillis, when
+ * it has sealed maxMessages records, or when the peer's modulus changed. open()
+ * unwraps the key of a new inbound session once with our own key pair and then
+ * only runs AES-GCM.
+ *
+ * Record layout (integers big-endian):
+ * <pre>
+ * KEY record:  type 1 | sessionId (16) | seq (8) | createdAt (8) | k (4) | wrappedKey (k) | GCM(message)
+ * DATA record: type 2 | sessionId (16) | seq (8) | GCM(message)
+ * </pre>
+ * The first record of a session (seq 0) is a KEY record and must reach the
+ * peer before the others, as with any handshake. The nonce is (0, seq), and
+ * everything in front of the GCM part is additional data. The receiver
+ * rejects replayed sequence numbers (64-record window) and closes inbound
+ * sessions after maxMessages records or twice the lifetime, which leaves
+ * room for records still in flight when the sender rekeys.
+ *
+ * Replaying a KEY record would bring a closed session back (with a fresh
+ * replay window), so the receiver also:
+ * - rejects KEY records whose authenticated createdAt (sender's wall clock,
+ *   epoch milliseconds) is more than lifetimeMillis old, or more than
+ *   MAX_CLOCK_SKEW_MILLIS in the future;
+ * - keeps a tombstone of every inbound session it drops (expired or evicted)
+ *   until createdAt + lifetimeMillis, after which its KEY record is too old
+ *   anyway, and rejects KEY records of tombstoned sessions.
+ * An inbound session is only cached once its KEY record has authenticated.
+ *
+ * Both caches are split into independently locked stripes of access-ordered
+ * LinkedHashMaps (least recently used evicted first), as in DecryptCache.
+ * Unlike DecryptCache entries, session keys are not zeroed when dropped: a
+ * replaced session may still be in use by a concurrent seal() or open(), so
+ * keys live in SecretKeySpecs and the raw key bytes are zeroed right away.
+ */
+public class SessionCache {
+
+    private static final int DEFAULT_STRIPES = 16;
+
+    private static final byte KEY_RECORD = 1;
+    private static final byte DATA_RECORD = 2;
+    private static final int KEY_BYTES = 32;
+    private static final int SESSION_ID_BYTES = 16;
+    private static final int HEADER_BYTES = 1 + SESSION_ID_BYTES + 8;
+    private static final int TAG_BYTES = 16;
+    private static final int NONCE_BYTES = 12;
+    private static final int REPLAY_WINDOW = 64;
+    private static final long MAX_CLOCK_SKEW_MILLIS = 60_000;
+
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES/GCM is not available", ex);
+        }
+    });
+
+    // State shared by both directions; expiresAt is a System.nanoTime() deadline,
+    // createdAt the sender's System.currentTimeMillis() carried in the KEY record
+    private abstract static class Session {
+        final byte[] id;
+        final SecretKeySpec key;
+        final long expiresAt;
+        final long createdAt;
+
+        // The first KEY_BYTES of key are copied, so the caller can zero its array
+        Session(byte[] id, byte[] key, long expiresAt, long createdAt) {
+            this.id = id;
+            this.key = new SecretKeySpec(key, 0, KEY_BYTES, "AES");
+            this.expiresAt = expiresAt;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final class Outbound extends Session {
+        final BigInteger modulus;
+        // The KEY record's wrapped key, only needed for seq 0
+        final byte[] wrappedKey;
+        final AtomicLong nextSeq = new AtomicLong();
+
+        Outbound(byte[] id, byte[] key, long expiresAt, long createdAt, BigInteger modulus, byte[] wrappedKey) {
+            super(id, key, expiresAt, createdAt);
+            this.modulus = modulus;
+            this.wrappedKey = wrappedKey;
+        }
+    }
+
+    private static final class Inbound extends Session {
+        // Highest sequence number seen, and which of the REPLAY_WINDOW below it were seen
+        long highest = -1;
+        long seen;
+
+        Inbound(byte[] id, byte[] key, long expiresAt, long createdAt) {
+            super(id, key, expiresAt, createdAt);
+        }
+
+        // Records seq as seen; false if it was seen before or is too old to tell
+        synchronized boolean accept(long seq) {
+            if (seq > highest) {
+                long shift = seq - highest;
+                seen = shift >= REPLAY_WINDOW ? 0 : seen << shift;
+                seen |= 1;
+                highest = seq;
+                return true;
+            }
+            long age = highest - seq;
+            if (age >= REPLAY_WINDOW || (seen & (1L << age)) != 0) {
+                return false;
+            }
+            seen |= 1L << age;
+            return true;
+        }
+    }
+
+    // One lock-protected LRU map; inbound stripes also keep tombstones of the sessions they drop
+    private final class Stripe<V extends Session> extends LinkedHashMap<String, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean keepTombstones;
+        // Session name -> last createdAt + lifetimeMillis at which its KEY record is accepted
+        private final Map<String, Long> tombstones = new HashMap<>();
+        // Expired tombstones are swept when there are this many (amortized O(1) per drop)
+        private int sweepAt = 16;
+
+        private Stripe(boolean keepTombstones) {
+            super(16, 0.75f, true);
+            this.keepTombstones = keepTombstones;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            if (size() > entriesPerStripe) {
+                evictions.increment();
+                bury(eldest.getKey(), eldest.getValue(), System.currentTimeMillis());
+                return true;
+            }
+            return false;
+        }
+
+        // Called with the stripe lock held, for a session that was just dropped
+        private void bury(String name, V session, long now) {
+            long until = session.createdAt + lifetimeMillis;
+            if (!keepTombstones || until < now) {
+                return;
+            }
+            tombstones.put(name, until);
+            if (tombstones.size() >= sweepAt) {
+                tombstones.values().removeIf(t -> t < now);
+                sweepAt = Math.max(16, 2 * tombstones.size());
+            }
+        }
+
+        // Called with the stripe lock held; now must be the time the KEY record's age was checked against
+        private boolean buried(String name, long now) {
+            Long until = tombstones.get(name);
+            if (until != null && until < now) {
+                tombstones.remove(name);
+                return false;
+            }
+            return until != null;
+        }
+    }
+
+    private final KeyPair ownKey;
+    private final RSAByteCipher rsa;
+    private final RandomSource random;
+    private final long lifetimeMillis;
+    private final long lifetimeNanos;
+    private final long maxMessages;
+    private final int entriesPerStripe;
+    private final Stripe<Outbound>[] outbound;
+    private final Stripe<Inbound>[] inbound;
+
+    private final LongAdder keyTransports = new LongAdder();
+    private final LongAdder keyUnwraps = new LongAdder();
+    private final LongAdder sealed = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public SessionCache(KeyPair ownKey, int maxSessions, long lifetimeMillis, long maxMessages) {
+        this(ownKey, maxSessions, lifetimeMillis, maxMessages, DEFAULT_STRIPES, null);
+    }
+
+    /**
+     * @param ownKey         Key pair that inbound session keys are wrapped to.
+     * @param maxSessions    Upper bound on cached sessions per direction.
+     * @param lifetimeMillis Age after which an outbound session is replaced, and
+     *                       after which the receiver rejects its KEY record.
+     * @param maxMessages    Records per session before it is replaced.
+     * @param stripes        Number of independently locked segments per direction.
+     * @param random         Source of session keys, IDs and OAEP seeds, or null for
+     *                       RandomSources.getDefault().
+     */
+    @SuppressWarnings("unchecked")
+    public SessionCache(KeyPair ownKey, int maxSessions, long lifetimeMillis, long maxMessages, int stripes,
+            RandomSource random) {
+        if (maxSessions < 1 || lifetimeMillis <= 0 || maxMessages < 1 || stripes < 1) {
+            throw new IllegalArgumentException(
+                    "maxSessions, lifetimeMillis, maxMessages and stripes must be positive.");
+        }
+        this.ownKey = ownKey;
+        this.rsa = new RSAByteBufferCipher(random);
+        this.random = random;
+        this.lifetimeMillis = lifetimeMillis;
+        this.lifetimeNanos = lifetimeMillis * 1_000_000L;
+        this.maxMessages = maxMessages;
+        int count = Math.min(stripes, maxSessions);
+        this.entriesPerStripe = (maxSessions + count - 1) / count;
+        this.outbound = (Stripe<Outbound>[]) new Stripe<?>[count];
+        this.inbound = (Stripe<Inbound>[]) new Stripe<?>[count];
+        for (int i = 0; i < count; i++) {
+            this.outbound[i] = new Stripe<>(false);
+            this.inbound[i] = new Stripe<>(true);
+        }
+    }
+
+    /**
+     * Encrypts message for peerId, whose public key is (e, n). Only the first
+     * record of each session costs an RSA operation.
+     */
+    public byte[] seal(String peerId, byte[] message, BigInteger e, BigInteger n) {
+        Outbound session;
+        long seq;
+        do {
+            session = outboundSession(peerId, e, n);
+            seq = session.nextSeq.getAndIncrement();
+            // Another thread may have used up the session between the two calls;
+            // outboundSession() then replaces it
+        } while (seq >= maxMessages);
+
+        boolean first = seq == 0;
+        int wrapped = first ? 8 + 4 + session.wrappedKey.length : 0;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + wrapped + message.length + TAG_BYTES);
+        record.put(first ? KEY_RECORD : DATA_RECORD).put(session.id).putLong(seq);
+        if (first) {
+            record.putLong(session.createdAt).putInt(session.wrappedKey.length).put(session.wrappedKey);
+        }
+        int aadLength = record.position();
+        try {
+            Cipher cipher = GCM.get();
+            cipher.init(Cipher.ENCRYPT_MODE, session.key,
+                    new GCMParameterSpec(TAG_BYTES * 8, nonce(seq)));
+            cipher.updateAAD(record.array(), 0, aadLength);
+            cipher.doFinal(message, 0, message.length, record.array(), aadLength);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("AES-GCM encryption failed", ex);
+        }
+        sealed.increment();
+        return record.array();
+    }
+
+    /**
+     * Decrypts a record that peerId sealed for us.
+     *
+     * @throws IllegalArgumentException If the record is malformed, fails
+     *                                  authentication or is a replay (including
+     *                                  a KEY record that is too old or belongs
+     *                                  to a session that was already dropped).
+     * @throws IllegalStateException    If it belongs to a session whose KEY record
+     *                                  has not been seen, or that has expired or
+     *                                  been evicted (the sender must start a new one).
+     */
+    public byte[] open(String peerId, byte[] record) {
+        if (record.length < HEADER_BYTES + TAG_BYTES) {
+            throw new IllegalArgumentException("Record is too short.");
+        }
+        ByteBuffer in = ByteBuffer.wrap(record);
+        byte type = in.get();
+        byte[] id = new byte[SESSION_ID_BYTES];
+        in.get(id);
+        long seq = in.getLong();
+        if (seq < 0 || seq >= maxMessages) {
+            throw new IllegalArgumentException("Sequence number out of range.");
+        }
+
+        Inbound session;
+        // New session from this KEY record; only cached once the record has authenticated
+        Inbound fresh = null;
+        // One clock reading for the age check and both tombstone checks
+        long now = System.currentTimeMillis();
+        if (type == KEY_RECORD) {
+            session = cachedInbound(peerId, id, in, now);
+            if (session == null) {
+                session = fresh = unwrapInbound(id, in);
+            }
+        } else if (type == DATA_RECORD) {
+            session = lookupInbound(peerId, id);
+        } else {
+            throw new IllegalArgumentException("Unknown record type " + type + ".");
+        }
+        int aadLength = in.position();
+
+        byte[] message;
+        try {
+            Cipher cipher = GCM.get();
+            cipher.init(Cipher.DECRYPT_MODE, session.key,
+                    new GCMParameterSpec(TAG_BYTES * 8, nonce(seq)));
+            cipher.updateAAD(record, 0, aadLength);
+            message = cipher.doFinal(record, aadLength, record.length - aadLength);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalArgumentException("Record failed authentication.", ex);
+        }
+        if (fresh != null) {
+            session = register(peerId, fresh, now);
+        }
+        // Only authenticated records move the replay window
+        if (!session.accept(seq)) {
+            throw new IllegalArgumentException("Replayed record, or older than the replay window.");
+        }
+        opened.increment();
+        return message;
+    }
+
+    /**
+     * Drops the outbound session to peerId, so the next seal() starts a new one
+     * (e.g. after the peer reported an unknown session).
+     */
+    public void rekey(String peerId) {
+        Stripe<Outbound> stripe = stripeFor(outbound, peerId);
+        synchronized (stripe) {
+            stripe.remove(peerId);
+        }
+    }
+
+    /**
+     * Number of cached sessions, outbound plus inbound.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < outbound.length; i++) {
+            synchronized (outbound[i]) {
+                size += outbound[i].size();
+            }
+            synchronized (inbound[i]) {
+                size += inbound[i].size();
+            }
+        }
+        return size;
+    }
+
+    // RSA encryptions of new session keys
+    public long getKeyTransports() {
+        return keyTransports.sum();
+    }
+
+    // RSA decryptions of received session keys
+    public long getKeyUnwraps() {
+        return keyUnwraps.sum();
+    }
+
+    public long getSealed() {
+        return sealed.sum();
+    }
+
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Counters as a JSON object.
+     */
+    public String statsJson() {
+        return String.format("{\"size\":%d,\"keyTransports\":%d,\"keyUnwraps\":%d,\"sealed\":%d,\"opened\":%d,"
+                + "\"evictions\":%d}", size(), getKeyTransports(), getKeyUnwraps(), getSealed(), getOpened(),
+                getEvictions());
+    }
+
+    // Current outbound session to peerId, replaced if missing, expired, used up or for another key
+    private Outbound outboundSession(String peerId, BigInteger e, BigInteger n) {
+        Stripe<Outbound> stripe = stripeFor(outbound, peerId);
+        synchronized (stripe) {
+            Outbound session = stripe.get(peerId);
+            if (session != null && System.nanoTime() - session.expiresAt < 0
+                    && session.nextSeq.get() < maxMessages && session.modulus.equals(n)) {
+                return session;
+            }
+            byte[] id = new byte[SESSION_ID_BYTES];
+            byte[] key = new byte[KEY_BYTES];
+            RandomSource source = random != null ? random : RandomSources.getDefault();
+            source.nextBytes(id);
+            source.nextBytes(key);
+            ByteBuffer wrapped = ByteBuffer.allocate(rsa.modulusLength(n));
+            rsa.encryptOAEP(ByteBuffer.wrap(key), wrapped, e, n);
+            keyTransports.increment();
+
+            Outbound fresh = new Outbound(id, key, System.nanoTime() + lifetimeNanos, System.currentTimeMillis(), n,
+                    wrapped.array());
+            Arrays.fill(key, (byte) 0);
+            stripe.put(peerId, fresh);
+            return fresh;
+        }
+    }
+
+    /**
+     * Reads createdAt of a KEY record and returns the cached session it belongs to
+     * (a retransmitted KEY record: the wrapped key is skipped, no RSA needed), or
+     * null if the session is new.
+     */
+    private Inbound cachedInbound(String peerId, byte[] id, ByteBuffer in, long now) {
+        if (in.remaining() < 8 + 4 + TAG_BYTES) {
+            throw new IllegalArgumentException("Record is too short.");
+        }
+        long createdAt = in.getLong();
+        // Checked before any RSA work; the value is authenticated with the rest of the header
+        if (now - createdAt > lifetimeMillis || createdAt - now > MAX_CLOCK_SKEW_MILLIS) {
+            throw new IllegalArgumentException("Key record is older than the session lifetime, or from the future.");
+        }
+        String name = inboundName(peerId, id);
+        Stripe<Inbound> stripe = stripeFor(inbound, name);
+        synchronized (stripe) {
+            if (stripe.buried(name, now)) {
+                throw new IllegalArgumentException("Key record of a closed session.");
+            }
+            Inbound session = stripe.get(name);
+            if (session == null) {
+                return null;
+            }
+            if (System.nanoTime() - session.expiresAt >= 0) {
+                stripe.remove(name);
+                stripe.bury(name, session, now);
+                throw new IllegalStateException("Expired session from " + peerId + ".");
+            }
+            in.position(in.position() + 4 + in.getInt(in.position()));
+            return session;
+        }
+    }
+
+    // Unwraps the key of a new session's KEY record; the session is not cached yet
+    private Inbound unwrapInbound(byte[] id, ByteBuffer in) {
+        int createdAtOffset = in.position() - 8;
+        int k = in.getInt();
+        if (k != rsa.modulusLength(ownKey.getModulus()) || in.remaining() < k + TAG_BYTES) {
+            throw new IllegalArgumentException("Bad wrapped key length.");
+        }
+        ByteBuffer wrapped = in.slice();
+        wrapped.limit(k);
+        ByteBuffer key = ByteBuffer.allocate(rsa.maxOAEPMessageLength(ownKey.getModulus()));
+        boolean unwrapped;
+        try {
+            rsa.decryptOAEP_CRT(wrapped, key, ownKey);
+            unwrapped = key.position() == KEY_BYTES;
+        } catch (IllegalArgumentException ex) {
+            unwrapped = false;
+        }
+        if (!unwrapped) {
+            // Implicit rejection: a bad wrapped key gets a random one, so the record fails GCM like any
+            // other forgery instead of telling the sender (a padding oracle) that OAEP failed
+            (random != null ? random : RandomSources.getDefault()).nextBytes(key.array());
+        }
+        in.position(in.position() + k);
+        keyUnwraps.increment();
+        Inbound fresh = new Inbound(id, key.array(), System.nanoTime() + 2 * lifetimeNanos,
+                in.getLong(createdAtOffset));
+        Arrays.fill(key.array(), (byte) 0);
+        return fresh;
+    }
+
+    // Caches an authenticated new session; a concurrent open() of the same KEY record may have won
+    private Inbound register(String peerId, Inbound fresh, long now) {
+        String name = inboundName(peerId, fresh.id);
+        Stripe<Inbound> stripe = stripeFor(inbound, name);
+        synchronized (stripe) {
+            if (stripe.buried(name, now)) {
+                throw new IllegalArgumentException("Key record of a closed session.");
+            }
+            Inbound existing = stripe.putIfAbsent(name, fresh);
+            return existing != null ? existing : fresh;
+        }
+    }
+
+    private Inbound lookupInbound(String peerId, byte[] id) {
+        String name = inboundName(peerId, id);
+        Stripe<Inbound> stripe = stripeFor(inbound, name);
+        synchronized (stripe) {
+            Inbound session = stripe.get(name);
+            if (session == null) {
+                throw new IllegalStateException("Unknown session from " + peerId + ".");
+            }
+            if (System.nanoTime() - session.expiresAt >= 0) {
+                stripe.remove(name);
+                stripe.bury(name, session, System.currentTimeMillis());
+                throw new IllegalStateException("Expired session from " + peerId + ".");
+            }
+            return session;
+        }
+    }
+
+    private static <V extends Session> Stripe<V> stripeFor(Stripe<V>[] stripes, String name) {
+        // Spread the hash so stripes are used evenly for any stripe count
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        return stripes[Math.floorMod(h, stripes.length)];
+    }
+
+    private static byte[] nonce(long seq) {
+        return ByteBuffer.allocate(NONCE_BYTES).putInt(0).putLong(seq).array();
+    }
+
+    // Inbound map key; scoped by peer so one peer cannot displace another's session
+    private static String inboundName(String peerId, byte[] id) {
+        return peerId + '/' + Base64.getEncoder().encodeToString(id);
+    }
+
+    /**
+     * Usage: java SessionCache [messages] [bits]
+     * Sends messages from A to B once with RSA-OAEP per message and once through
+     * sessions, and prints the time and RSA operations of each.
+     */
+    public static void main(String[] args) {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int bits = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        KeyPair alice = KeyPair.generateRandomKeyPair(bits);
+        KeyPair bob = KeyPair.generateRandomKeyPair(bits);
+        byte[] message = "ping from alice, sequence ..........".getBytes();
+
+        RSAUtils rsa = new RSAUtils();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            BigInteger c = rsa.encryptOAEP(message, bob.getEncryptKey(), bob.getModulus());
+            rsa.decryptOAEP_CRTToBytes(c, bob);
+        }
+        double perMessage = (System.nanoTime() - start) / 1e3 / messages;
+        System.out.printf("RSA-OAEP per message: %8.1f us/message, %d RSA operations%n", perMessage, 2 * messages);
+
+        SessionCache aliceSide = new SessionCache(alice, 1024, 60_000, 1 << 20);
+        SessionCache bobSide = new SessionCache(bob, 1024, 60_000, 1 << 20);
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            byte[] record = aliceSide.seal("bob", message, bob.getEncryptKey(), bob.getModulus());
+            if (!Arrays.equals(bobSide.open("alice", record), message)) {
+                throw new IllegalStateException("Session round trip failed");
+            }
+        }
+        double perSession = (System.nanoTime() - start) / 1e3 / messages;
+        System.out.printf("Session (AES-GCM):    %8.1f us/message, %d RSA operations (%.0fx faster)%n", perSession,
+                aliceSide.getKeyTransports() + bobSide.getKeyUnwraps(), perMessage / perSession);
+        System.out.println("Sender:   " + aliceSide.statsJson());
+        System.out.println("Receiver: " + bobSide.statsJson());
+    }
+}
@@ -0,0 +1,503 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Front end of a sharded decryption cluster: key IDs are spread over
+ * RSAService nodes with a ConsistentHashRing, and each request is forwarded
+ * to the node that owns its key, so every node keeps only its share of keys
+ * (with their CRT parameters and decrypt cache entries) warm.
+ *
+ * Nodes run {@code java RSAService <port> <keyDir> [cacheEntries] shard} on a
+ * shared key directory. The router never reads key material; it tells the
+ * owner to load a key (PUT /keys/{id}) and the previous owner to drop it
+ * (DELETE /keys/{id}):
+ * - when a node joins, the keys it now owns are moved to it;
+ * - when a node leaves, or a request to it fails to connect, it is taken off
+ *   the ring and its keys are loaded on their new owners.
+ * The new placement is computed under the router lock and the PUT/DELETE
+ * calls are made after releasing it, so requests keep flowing while keys move.
+ *
+ * Endpoints (* = needs {@code Authorization: Bearer <admin token>}):
+ * <pre>
+ * POST   /encrypt/{id}   forwarded to the owner of id
+ * POST   /decrypt/{id}   forwarded to the owner of id
+ * PUT    /nodes/{node}   * body = base URL (http://127.0.0.1:8081); joins the ring
+ * DELETE /nodes/{node}   * leaves the ring
+ * PUT    /keys/{id}      * starts routing a key whose {@code <id>.key} was added to the key directory
+ * DELETE /keys/{id}      * stops routing the key and drops it from its owner
+ * GET    /stats          ring shares, owned keys and request counts per node (JSON)
+ * </pre>
+ * Without an admin token the management endpoints answer 403. The router sends
+ * the same token to the nodes, whose /keys endpoints require it too.
+ */
+public class ShardRouter {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAX_BODY_LENGTH = 64 * 1024;
+    private static final Duration NODE_TIMEOUT = Duration.ofSeconds(30);
+
+    // Response of a node; status -1 means the node could not be reached
+    private static final class NodeResponse {
+        private final int status;
+        private final String body;
+
+        private NodeResponse(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private final ConsistentHashRing ring;
+    private final Map<String, URI> nodes = new ConcurrentHashMap<>();
+    // Node each key is currently loaded on
+    private final Map<String, String> owners = new ConcurrentHashMap<>();
+    // Keys routed by this router; PUT/DELETE /keys/{id} keep it up to date
+    private final Set<String> keyIds = ConcurrentHashMap.newKeySet();
+    private final Path keyDirectory;
+    // Null disables the management endpoints; also sent to the nodes' /keys endpoints
+    private final byte[] adminToken;
+    private final String adminTokenText;
+    private final HttpClient client;
+    private final ExecutorService connectionThreads;
+    private final HttpServer server;
+
+    private final Map<String, LongAdder> forwarded = new ConcurrentHashMap<>();
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    /**
+     * @param address      Address to bind (port 0 picks a free port).
+     * @param keyDirectory Directory of {@code <keyId>.key} files shared with the nodes.
+     * @param virtualNodes Ring points per node.
+     * @param adminToken   Bearer token for the management endpoints, and the one the
+     *                     nodes' /keys endpoints expect; null disables them.
+     */
+    public ShardRouter(InetSocketAddress address, Path keyDirectory, int virtualNodes, String adminToken)
+            throws IOException {
+        if (adminToken != null && adminToken.isEmpty()) {
+            throw new IllegalArgumentException("Admin token must not be empty.");
+        }
+        this.ring = new ConsistentHashRing(virtualNodes);
+        this.keyDirectory = keyDirectory;
+        this.keyIds.addAll(listKeyIds(keyDirectory));
+        this.adminToken = adminToken == null ? null : adminToken.getBytes(StandardCharsets.UTF_8);
+        this.adminTokenText = adminToken;
+        this.connectionThreads = VirtualThreads.newPerTaskExecutor("shard-router-conn");
+        this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+        this.server = HttpServer.create(address, 0);
+        server.setExecutor(connectionThreads);
+        server.createContext("/encrypt/", exchange -> handleCrypto(exchange, "/encrypt/"));
+        server.createContext("/decrypt/", exchange -> handleCrypto(exchange, "/decrypt/"));
+        server.createContext("/nodes/", this::handleNodes);
+        server.createContext("/keys/", this::handleKeys);
+        server.createContext("/stats", exchange -> send(exchange, 200, statsJson()));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        connectionThreads.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Adds a node and moves the keys it now owns onto it.
+     */
+    public void addNode(String nodeId, URI baseUri) {
+        List<String> plan;
+        synchronized (this) {
+            nodes.put(nodeId, baseUri);
+            forwarded.putIfAbsent(nodeId, new LongAdder());
+            if (!ring.addNode(nodeId)) {
+                return;
+            }
+            plan = misplacedKeys();
+        }
+        rebalance(plan);
+    }
+
+    /**
+     * Takes a node off the ring and loads its keys on their new owners.
+     *
+     * @param graceful Also tell the node to drop its keys (it is still reachable).
+     */
+    public void removeNode(String nodeId, boolean graceful) {
+        URI base;
+        List<String> dropped = new ArrayList<>();
+        List<String> plan;
+        synchronized (this) {
+            if (!ring.removeNode(nodeId)) {
+                return;
+            }
+            base = nodes.remove(nodeId);
+            for (Map.Entry<String, String> entry : owners.entrySet()) {
+                if (entry.getValue().equals(nodeId) && owners.remove(entry.getKey(), nodeId)) {
+                    dropped.add(entry.getKey());
+                }
+            }
+            plan = misplacedKeys();
+        }
+        rebalance(plan);
+        if (graceful && base != null) {
+            for (String keyId : dropped) {
+                call(base, "DELETE", "/keys/" + keyId, null);
+            }
+        }
+    }
+
+    // Keys not loaded on their owner under the current ring; called under the router lock
+    private List<String> misplacedKeys() {
+        List<String> plan = new ArrayList<>();
+        for (String keyId : keyIds) {
+            String owner = ring.nodeFor(keyId);
+            if (owner != null && !owner.equals(owners.get(keyId))) {
+                plan.add(keyId);
+            }
+        }
+        return plan;
+    }
+
+    // Loads every planned key on its owner, dropping it from the previous one; called without the lock
+    private void rebalance(List<String> plan) {
+        for (String keyId : plan) {
+            place(keyId);
+        }
+    }
+
+    /**
+     * Makes sure keyId is loaded on its owner. Returns true if it had to be loaded.
+     * Runs without the router lock: the ring is read again here, and the owner is
+     * only recorded if no other placement of the same key got there first.
+     */
+    private boolean place(String keyId) {
+        String owner = ring.nodeFor(keyId);
+        if (owner == null || !keyIds.contains(keyId)) {
+            return false;
+        }
+        String previous = owners.get(keyId);
+        if (owner.equals(previous)) {
+            return false;
+        }
+        URI target = nodes.get(owner);
+        NodeResponse loaded = call(target, "PUT", "/keys/" + keyId, null);
+        if (loaded.status != 200) {
+            return false;
+        }
+        boolean recorded = previous == null ? owners.putIfAbsent(keyId, owner) == null
+                : owners.replace(keyId, previous, owner);
+        if (!recorded) {
+            // Raced with another placement: keep the copy only if that one chose the same node
+            if (!owner.equals(owners.get(keyId))) {
+                call(target, "DELETE", "/keys/" + keyId, null);
+            }
+            return false;
+        }
+        URI old = previous == null ? null : nodes.get(previous);
+        if (old != null) {
+            call(old, "DELETE", "/keys/" + keyId, null);
+        }
+        if (previous != null) {
+            moves.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Starts routing keyId, whose key file must be in the key directory, and loads it
+     * on its owner. Returns false if there is no such file.
+     */
+    public boolean addKey(String keyId) {
+        if (!Files.isRegularFile(keyDirectory.resolve(keyId + KeyFile.EXTENSION))) {
+            return false;
+        }
+        keyIds.add(keyId);
+        place(keyId);
+        return true;
+    }
+
+    /**
+     * Stops routing keyId and drops it from the node it is loaded on.
+     * Returns false if the key was not routed.
+     */
+    public boolean removeKey(String keyId) {
+        boolean removed = keyIds.remove(keyId);
+        String owner = owners.remove(keyId);
+        URI base = owner == null ? null : nodes.get(owner);
+        if (base != null) {
+            call(base, "DELETE", "/keys/" + keyId, null);
+        }
+        return removed;
+    }
+
+    /**
+     * Forwards one request to the owner of keyId and returns the node's response
+     * (status, body). An unreachable owner is removed and the request retried once.
+     */
+    private NodeResponse forward(String prefix, String keyId, String body) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            String owner = ring.nodeFor(keyId);
+            if (owner == null) {
+                return new NodeResponse(503, "No nodes available.");
+            }
+            if (!owner.equals(owners.get(keyId))) {
+                place(keyId);
+            }
+            NodeResponse response = call(nodes.get(owner), "POST", prefix + keyId, body);
+            if (response.status == 404 && attempt == 0) {
+                // Node restarted and lost the key: load it again
+                owners.remove(keyId, owner);
+                continue;
+            }
+            if (response.status >= 0) {
+                forwarded.get(owner).increment();
+                return response;
+            }
+            failovers.increment();
+            removeNode(owner, false);
+        }
+        return new NodeResponse(503, "Owner unavailable, retry later.");
+    }
+
+    private NodeResponse call(URI base, String method, String path, String body) {
+        if (base == null) {
+            return new NodeResponse(-1, "Unknown node.");
+        }
+        HttpRequest.Builder builder = HttpRequest.newBuilder(base.resolve(path)).timeout(NODE_TIMEOUT)
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body, StandardCharsets.US_ASCII));
+        if (adminTokenText != null) {
+            builder.header("Authorization", "Bearer " + adminTokenText);
+        }
+        HttpRequest request = builder.build();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            return new NodeResponse(response.statusCode(), response.body());
+        } catch (ConnectException ex) {
+            return new NodeResponse(-1, "Node unreachable.");
+        } catch (IOException ex) {
+            return new NodeResponse(-1, String.valueOf(ex.getMessage()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return new NodeResponse(503, "Interrupted.");
+        }
+    }
+
+    // ============================================================
+    // HTTP HANDLERS
+    // ============================================================
+
+    private void handleCrypto(HttpExchange exchange, String prefix) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 405, "Method not allowed.");
+            return;
+        }
+        String keyId = pathSuffix(exchange, prefix);
+        if (!keyIds.contains(keyId)) {
+            send(exchange, 404, "Unknown key ID: " + keyId);
+            return;
+        }
+        String body = readBody(exchange);
+        if (body == null) {
+            send(exchange, 400, "Body too large.");
+            return;
+        }
+        NodeResponse response = forward(prefix, keyId, body);
+        send(exchange, response.status, response.body);
+    }
+
+    private void handleNodes(HttpExchange exchange) throws IOException {
+        if (!authorize(exchange)) {
+            return;
+        }
+        String nodeId = pathSuffix(exchange, "/nodes/");
+        if (!RSAService.isValidKeyId(nodeId)) {
+            send(exchange, 400, "Invalid node ID.");
+            return;
+        }
+        switch (exchange.getRequestMethod()) {
+            case "PUT":
+                URI baseUri = nodeUri(readBody(exchange));
+                if (baseUri == null) {
+                    send(exchange, 400, "Body must be the node's base URL.");
+                    return;
+                }
+                addNode(nodeId, baseUri);
+                send(exchange, 200, statsJson());
+                break;
+            case "DELETE":
+                removeNode(nodeId, true);
+                send(exchange, 200, statsJson());
+                break;
+            default:
+                send(exchange, 405, "Method not allowed.");
+        }
+    }
+
+    private void handleKeys(HttpExchange exchange) throws IOException {
+        if (!authorize(exchange)) {
+            return;
+        }
+        String keyId = pathSuffix(exchange, "/keys/");
+        if (!RSAService.isValidKeyId(keyId)) {
+            send(exchange, 400, "Invalid key ID.");
+            return;
+        }
+        switch (exchange.getRequestMethod()) {
+            case "PUT":
+                if (!addKey(keyId)) {
+                    send(exchange, 404, "No key file for " + keyId);
+                    return;
+                }
+                send(exchange, 200, "{\"key\":" + RSAService.jsonString(keyId) + ",\"owner\":"
+                        + RSAService.jsonString(String.valueOf(owners.get(keyId))) + "}");
+                break;
+            case "DELETE":
+                if (!removeKey(keyId)) {
+                    send(exchange, 404, "Unknown key ID: " + keyId);
+                    return;
+                }
+                send(exchange, 200, "{\"key\":" + RSAService.jsonString(keyId) + ",\"removed\":true}");
+                break;
+            default:
+                send(exchange, 405, "Method not allowed.");
+        }
+    }
+
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        return RSAService.authorize(exchange, adminToken);
+    }
+
+    // Absolute http(s) URL with a host, or null
+    private static URI nodeUri(String body) {
+        if (body == null) {
+            return null;
+        }
+        try {
+            URI uri = new URI(body.trim());
+            String scheme = uri.getScheme();
+            boolean http = "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme);
+            return http && uri.getHost() != null ? uri : null;
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Ring shares, owned keys and forwarded requests per node (JSON).
+     */
+    public String statsJson() {
+        Map<String, Double> shares = ring.shares();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"keys\":").append(keyIds.size()).append(",\"moves\":").append(moves.sum())
+                .append(",\"failovers\":").append(failovers.sum()).append(",\"nodes\":{");
+        boolean first = true;
+        for (String nodeId : ring.nodes()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            long owned = owners.values().stream().filter(nodeId::equals).count();
+            sb.append(RSAService.jsonString(nodeId)).append(":{\"url\":")
+                    .append(RSAService.jsonString(String.valueOf(nodes.get(nodeId))))
+                    .append(String.format(",\"share\":%.3f", shares.getOrDefault(nodeId, 0.0)))
+                    .append(",\"ownedKeys\":").append(owned)
+                    .append(",\"forwarded\":").append(forwarded.getOrDefault(nodeId, new LongAdder()).sum())
+                    .append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static List<String> listKeyIds(Path dir) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + KeyFile.EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(name.substring(0, name.length() - KeyFile.EXTENSION.length()));
+            }
+        }
+        return ids;
+    }
+
+    private static String pathSuffix(HttpExchange exchange, String prefix) {
+        String path = exchange.getRequestURI().getPath();
+        return path.length() > prefix.length() ? path.substring(prefix.length()) : "";
+    }
+
+    // Null when the body is too large
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_LENGTH + 1);
+            return body.length > MAX_BODY_LENGTH ? null : new String(body, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Usage: java ShardRouter port keyDirectory [nodePort ...]
+     * Each nodePort is an RSAService on 127.0.0.1 started in shard mode; more
+     * nodes can join later with PUT /nodes/{node}. The admin token is read from
+     * the RSA_ADMIN_TOKEN environment variable (not an argument, so it does not
+     * show up in the process list); the nodes must be started with the same one.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        if (args.length < 2) {
+            System.err.println("Usage: java ShardRouter port keyDirectory [nodePort ...]");
+            System.exit(1);
+        }
+        ShardRouter router = new ShardRouter(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                Paths.get(args[1]), ConsistentHashRing.DEFAULT_VIRTUAL_NODES, System.getenv(RSAService.ADMIN_TOKEN_ENV));
+        for (int i = 2; i < args.length; i++) {
+            router.addNode("node-" + args[i], URI.create("http://127.0.0.1:" + args[i] + "/"));
+        }
+        router.start();
+        System.out.println("Shard router listening on http://localhost:" + router.getPort() + " " + router.statsJson());
+        if (System.getenv(RSAService.ADMIN_TOKEN_ENV) == null) {
+            System.out.println(RSAService.ADMIN_TOKEN_ENV + " is not set: /nodes and /keys are disabled.");
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(router::stop));
+        // Keep the main thread alive until the process is killed
+        Thread.currentThread().join();
+    }
+}
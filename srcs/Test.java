@@ -1,6 +1,27 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Test {
     public static void testModPow(int numberOfTest, int bitLength) {
@@ -74,4 +95,772 @@ public class Test {
 
         System.out.println("Number of test passed: " + i);
     }
+
+    public static void testMontgomery(int numberOfTest, int bitLength) {
+        Random random = new Random();
+        int i;
+        for (i = 0; i < numberOfTest; i++) {
+            BigInteger mod = new BigInteger(bitLength, random).setBit(bitLength - 1).setBit(0);
+            BigInteger base = new BigInteger(bitLength + 8, random);
+            BigInteger exp = new BigInteger(bitLength, random);
+
+            if (!new Montgomery(mod).modPow(base, exp).equals(base.modPow(exp, mod))) {
+                System.out.println("Fail! Montgomery modPow at: base = " + base + ", exp = " + exp + ", mod = " + mod);
+                break;
+            }
+        }
+        System.out.println("Number of test passed: " + i);
+    }
+
+    // modPowConstantTime for every window size and several exponent lengths, and constant-time CRT decryption,
+    // against BigInteger.modPow
+    public static void testMontgomeryConstantTime(int numberOfTest, int bitLength) {
+        Random random = new Random();
+        int i;
+        for (i = 0; i < numberOfTest; i++) {
+            BigInteger mod = new BigInteger(bitLength, random).setBit(bitLength - 1).setBit(0);
+            Montgomery montgomery = new Montgomery(mod);
+            BigInteger base = new BigInteger(bitLength + 8, random);
+            // Zero, one bit, short, half size, full size, and shorter than the expBits it is padded to
+            int[] expLengths = { 0, 1, 17, bitLength / 2, bitLength, bitLength - 40 };
+            int[] expBitsPadding = { 1, 0, 0, 3, 0, 40 };
+            for (int l = 0; l < expLengths.length; l++) {
+                BigInteger exp = new BigInteger(expLengths[l], random);
+                int expBits = Math.max(1, expLengths[l] + expBitsPadding[l]);
+                for (int window = 1; window <= 8; window++) {
+                    if (!montgomery.modPowConstantTime(base, exp, expBits, window).equals(base.modPow(exp, mod))) {
+                        System.out.println("Fail! Montgomery modPowConstantTime at: window = " + window + ", expBits = "
+                                + expBits + ", base = " + base + ", exp = " + exp + ", mod = " + mod);
+                        return;
+                    }
+                }
+            }
+        }
+
+        RSAUtils constantTime = new RSAUtils(null, null, true);
+        KeyPair[] keyPairs = { KeyPair.generateRandomKeyPair(bitLength),
+                KeyPair.generateRebalancedKeyPair(Math.max(bitLength, 1024)) };
+        for (KeyPair keyPair : keyPairs) {
+            BigInteger n = keyPair.getModulus();
+            for (int j = 0; j < numberOfTest; j++) {
+                BigInteger c = new BigInteger(n.bitLength() - 1, random);
+                if (!constantTime.decryptCRT(c, keyPair).equals(c.modPow(keyPair.getDecryptKey(), n))) {
+                    System.out.println("Fail! Constant-time decryptCRT at: c = " + c + ", n = " + n);
+                    return;
+                }
+            }
+        }
+        System.out.println("Number of test passed: " + i);
+    }
+
+    public static void testBatchGCD(int numberOfModuli, int bitLength) {
+        Random random = new Random();
+        BigInteger[] moduli = new BigInteger[numberOfModuli];
+        for (int i = 0; i < numberOfModuli; i++) {
+            moduli[i] = BigInteger.probablePrime(bitLength / 2, random)
+                    .multiply(BigInteger.probablePrime(bitLength / 2, random));
+        }
+        // Make the first and last modulus share a prime
+        BigInteger shared = BigInteger.probablePrime(bitLength / 2, random);
+        moduli[0] = shared.multiply(BigInteger.probablePrime(bitLength / 2, random));
+        moduli[numberOfModuli - 1] = shared.multiply(BigInteger.probablePrime(bitLength / 2, random));
+
+        // Compare with the quadratic pairwise check
+        int expected = 0;
+        for (int i = 0; i < numberOfModuli; i++) {
+            for (int j = 0; j < numberOfModuli; j++) {
+                if (i != j && !moduli[i].gcd(moduli[j]).equals(BigInteger.ONE)) {
+                    expected++;
+                    break;
+                }
+            }
+        }
+
+        // In memory with one product tree, then spilled with groups of about a third
+        Path spill = null;
+        try (BatchGCD inMemory = new BatchGCD()) {
+            List<BatchGCD.Finding> findings = inMemory.audit(Arrays.asList(moduli));
+            if (findings.size() != expected) {
+                System.out.println("Fail! Batch GCD found " + findings.size() + " weak moduli, expected " + expected);
+            }
+            spill = Files.createTempDirectory("batchgcd-test");
+            try (BatchGCD grouped = new BatchGCD(spill, 2, numberOfModuli / 3 + 1)) {
+                List<BatchGCD.Finding> groupedFindings = grouped.audit(Arrays.asList(moduli));
+                if (groupedFindings.size() != expected) {
+                    System.out.println("Fail! Grouped batch GCD found " + groupedFindings.size()
+                            + " weak moduli, expected " + expected);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Caught error: " + e.toString());
+        } finally {
+            try {
+                if (spill != null) {
+                    Files.delete(spill);
+                }
+            } catch (IOException e) {
+                System.out.println("Spill directory not cleaned up: " + e.toString());
+            }
+        }
+
+        System.out.println("Number of moduli audited: " + numberOfModuli);
+    }
+
+    // Batch RSA decryption with repeated and mixed exponents, plaintexts sharing a factor with n, and bad input
+    public static void testDecryptBatch() {
+        KeyPair keyPair = KeyPair.generateBatchKeyPair(1024);
+        BigInteger n = keyPair.getModulus();
+        BigInteger p = keyPair.getP();
+        RSAUtils rsa = new RSAUtils();
+        Random random = new Random();
+
+        int[] exponents = { 3, 5, 3, 7, 23, 5, 3, 11, 17, 3, 19, 13 };
+        BigInteger[] messages = { new BigInteger(1000, random), BigInteger.ZERO, p, BigInteger.ONE,
+                new BigInteger(1023, random).mod(n), p.shiftLeft(1), keyPair.getQ(), n.subtract(BigInteger.ONE),
+                new BigInteger(20, random), p.multiply(BigInteger.valueOf(3)), new BigInteger(1023, random).mod(n),
+                BigInteger.TWO };
+        BigInteger[] es = new BigInteger[exponents.length];
+        BigInteger[] ciphers = new BigInteger[exponents.length];
+        for (int i = 0; i < es.length; i++) {
+            es[i] = BigInteger.valueOf(exponents[i]);
+            ciphers[i] = messages[i].modPow(es[i], n);
+        }
+        // Both the variable-time and the constant-time paths
+        for (boolean constantTime : new boolean[] { false, true }) {
+            BigInteger[] plain = new RSAUtils(null, null, constantTime).decryptBatch(ciphers, es, keyPair);
+            for (int i = 0; i < plain.length; i++) {
+                if (!plain[i].equals(messages[i])) {
+                    System.out.println("Fail! decryptBatch (constantTime = " + constantTime + ") at " + i + ": e = "
+                            + es[i] + ", m = " + messages[i]);
+                    return;
+                }
+            }
+        }
+        if (rsa.decryptBatch(new BigInteger[0], new BigInteger[0], keyPair).length != 0) {
+            System.out.println("Fail! decryptBatch of an empty batch");
+            return;
+        }
+
+        BigInteger three = BigInteger.valueOf(3);
+        String[] cases = { "fewer exponents than ciphertexts", "exponents not coprime (3 and 9)",
+                "ciphertext equal to n", "negative ciphertext" };
+        BigInteger[][][] inputs = {
+                { { BigInteger.TWO, three }, { three } },
+                { { BigInteger.TWO, three }, { three, BigInteger.valueOf(9) } },
+                { { n }, { three } },
+                { { BigInteger.ONE.negate() }, { three } } };
+        for (int i = 0; i < cases.length; i++) {
+            try {
+                rsa.decryptBatch(inputs[i][0], inputs[i][1], keyPair);
+                System.out.println("Fail! decryptBatch accepted " + cases[i]);
+                return;
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+        System.out.println("decryptBatch test passed");
+    }
+
+    // KeyFile.save leaves p and q readable by the owner only, for new and for existing files
+    public static void testKeyFilePermissions() throws IOException {
+        Path dir = Files.createTempDirectory("keys");
+        Path file = dir.resolve("k" + KeyFile.EXTENSION);
+        try {
+            if (Files.getFileAttributeView(dir, PosixFileAttributeView.class) == null) {
+                System.out.println("Key file permission test skipped (no POSIX permissions)");
+                return;
+            }
+            KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+            KeyFile.save(keyPair, file);
+            String created = PosixFilePermissions.toString(Files.getPosixFilePermissions(file));
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+            KeyFile.save(keyPair, file);
+            String overwritten = PosixFilePermissions.toString(Files.getPosixFilePermissions(file));
+            if (!created.equals("rw-------") || !overwritten.equals("rw-------")) {
+                System.out.println("Fail! Key file permissions: new " + created + ", overwritten " + overwritten);
+            } else if (!KeyFile.load(file).getModulus().equals(keyPair.getModulus())) {
+                System.out.println("Fail! Key file round trip");
+            } else {
+                System.out.println("Key file permission test passed");
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    // A BATCH key saved with KeyFile loads back as the same BATCH key
+    public static void testBatchKeyFile() throws IOException {
+        KeyPair batch = KeyPair.generateBatchKeyPair(1024, new int[] { 5, 3, 7 }, RandomSources.threadLocal());
+        Path file = Files.createTempFile("batch", KeyFile.EXTENSION);
+        try {
+            KeyFile.save(batch, file);
+            KeyPair loaded = KeyFile.load(file);
+            if (loaded.getMode() != KeyPair.Mode.BATCH
+                    || !Arrays.equals(loaded.getBatchExponents(), batch.getBatchExponents())
+                    || !loaded.getEncryptKey().equals(batch.getEncryptKey())
+                    || !loaded.getDecryptKey().equals(batch.getDecryptKey())
+                    || !loaded.getModulus().equals(batch.getModulus())) {
+                System.out.println("Fail! Batch key after KeyFile round trip: " + loaded.getMode() + " "
+                        + Arrays.toString(loaded.getBatchExponents()));
+                return;
+            }
+            BigInteger m = BigInteger.valueOf(42);
+            BigInteger[] es = loaded.getBatchExponents();
+            BigInteger[] cs = new BigInteger[es.length];
+            for (int i = 0; i < es.length; i++) {
+                cs[i] = m.modPow(es[i], loaded.getModulus());
+            }
+            for (BigInteger plain : new RSAUtils().decryptBatch(cs, es, loaded)) {
+                if (!plain.equals(m)) {
+                    System.out.println("Fail! Loaded batch key decrypts to " + plain);
+                    return;
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+        System.out.println("Batch key file test passed");
+    }
+
+    // The output fails after a few records (disk full); run() must report it instead of hanging
+    public static void testBatchToolFailingOutput() {
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            input.append(String.format("%032x%n", i));
+        }
+        WritableByteChannel failing = new WritableByteChannel() {
+            private long written;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (written > 4096) {
+                    throw new IOException("No space left on device");
+                }
+                int n = src.remaining();
+                src.position(src.limit());
+                written += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        BatchTool.Options options = new BatchTool.Options();
+        options.operation = BatchTool.Operation.ENCRYPT;
+        options.threads = 2;
+        options.window = 16;
+        AtomicReference<Throwable> outcome = new AtomicReference<>();
+        Thread run = new Thread(() -> {
+            try {
+                new BatchTool(options, keyPair).run(
+                        Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes())), failing);
+            } catch (Throwable e) {
+                outcome.set(e);
+            }
+        });
+        run.setDaemon(true);
+        run.start();
+        try {
+            run.join(20_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (run.isAlive()) {
+            System.out.println("Fail! BatchTool still running 20 s after its output failed");
+        } else if (!(outcome.get() instanceof IOException)
+                || !"No space left on device".equals(outcome.get().getCause().getMessage())) {
+            System.out.println("Fail! BatchTool ended with " + outcome.get());
+        } else {
+            System.out.println("BatchTool failing-output test passed");
+        }
+    }
+
+    // Ciphertexts that fail OAEP at different checks must be indistinguishable to every caller
+    public static void testOAEPFailureUniform() throws Exception {
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+        BigInteger n = keyPair.getModulus();
+        RSAByteBufferCipher rsa = new RSAByteBufferCipher();
+        int k = rsa.modulusLength(n);
+        int hLen = RSAUtils.EMPTY_LABEL_HASH.length;
+
+        // Leading byte not zero; lHash mismatch; lHash fine but no 0x01 separator
+        byte[] badLeading = new byte[k];
+        badLeading[0] = 1;
+        byte[] badHash = new byte[k];
+        new Random().nextBytes(badHash);
+        badHash[0] = 0;
+        byte[] noSeparator = new byte[k];
+        new Random().nextBytes(noSeparator);
+        noSeparator[0] = 0;
+        System.arraycopy(RSAUtils.EMPTY_LABEL_HASH, 0, noSeparator, 1 + hLen, hLen);
+        Arrays.fill(noSeparator, 1 + 2 * hLen, k, (byte) 0);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        RSAUtils.mgf1Xor(md, noSeparator, 1, hLen, noSeparator, 1 + hLen, k - hLen - 1);
+        RSAUtils.mgf1Xor(md, noSeparator, 1 + hLen, k - hLen - 1, noSeparator, 1, hLen);
+
+        java.util.HexFormat hex = java.util.HexFormat.of();
+        StringBuilder input = new StringBuilder();
+        List<String> errors = new ArrayList<>();
+        for (byte[] em : new byte[][] { badLeading, badHash, noSeparator }) {
+            ByteBuffer c = ByteBuffer.allocate(k);
+            rsa.encrypt(ByteBuffer.wrap(em), c, keyPair.getEncryptKey(), n);
+            input.append(hex.formatHex(c.array())).append('\n');
+            try {
+                rsa.decryptOAEP_CRT(ByteBuffer.wrap(c.array()), ByteBuffer.allocate(k), keyPair);
+                errors.add("decrypted");
+            } catch (IllegalArgumentException ex) {
+                errors.add(ex.getMessage() + " / " + ex.getCause());
+            }
+        }
+        if (!errors.get(0).equals(errors.get(1)) || !errors.get(0).equals(errors.get(2))
+                || !errors.get(0).endsWith(" / null")) {
+            System.out.println("Fail! OAEP failures are distinguishable: " + errors);
+            return;
+        }
+
+        BatchTool.Options options = new BatchTool.Options();
+        options.operation = BatchTool.Operation.DECRYPT;
+        options.threads = 1;
+        options.window = 16;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new BatchTool(options, keyPair).run(
+                Channels.newChannel(new ByteArrayInputStream(input.toString().getBytes())),
+                Channels.newChannel(output));
+        String[] lines = output.toString().split("\n");
+        if (lines.length != 3 || !lines[0].equals(lines[1]) || !lines[0].equals(lines[2])) {
+            System.out.println("Fail! BatchTool error records differ: " + Arrays.toString(lines));
+            return;
+        }
+
+        // A KEY record whose wrapped key was tampered with fails like any other forged record
+        KeyPair aliceKey = KeyPair.generateRandomKeyPair(1024);
+        SessionCache alice = new SessionCache(aliceKey, 16, 60_000, 1000);
+        SessionCache bob = new SessionCache(keyPair, 16, 60_000, 1000);
+        byte[] record = alice.seal("bob", "hello".getBytes(), keyPair.getEncryptKey(), n);
+        // type, session ID, seq, createdAt and the wrapped key length come first
+        record[1 + 16 + 8 + 8 + 4 + 10] ^= 1;
+        try {
+            bob.open("alice", record);
+            System.out.println("Fail! Tampered KEY record opened");
+            return;
+        } catch (IllegalArgumentException ex) {
+            if (!"Record failed authentication.".equals(ex.getMessage())) {
+                System.out.println("Fail! Tampered KEY record reported: " + ex.getMessage());
+                return;
+            }
+        }
+        System.out.println("OAEP failure uniformity test passed");
+    }
+
+    // Known-answer test from NIST CAVP (HMAC_DRBG, SHA-256, no reseed, no additional input)
+    public static void testHmacDrbg() {
+        java.util.HexFormat hex = java.util.HexFormat.of();
+        HmacDrbg drbg = new HmacDrbg(
+                hex.parseHex("ca851911349384bffe89de1cbdc46e6831e44d34a4fb935ee285dd14b71a7488"),
+                hex.parseHex("659ba96c601dc69fc902940805ec0ca8"), new byte[0], null, Long.MAX_VALUE);
+        byte[] out = new byte[128];
+        drbg.nextBytes(out);
+        drbg.nextBytes(out);
+
+        String expected = "e528e9abf2dece54d47c7e75e5fe302149f817ea9fb4bee6f4199697d04d5b89"
+                + "d54fbb978a15b5c443c9ec21036d2460b6f73ebad0dc2aba6e624abf07745bc1"
+                + "07694bb7547bb0995f70de25d6b29e2d3011bb19d27676c07162c8b5ccde0668"
+                + "961df86803482cb37ed6d5c0bb8d50cf1f50d476aa0458bdaba806f48be9dcb8";
+        if (!hex.formatHex(out).equals(expected)) {
+            System.out.println("Fail! HMAC_DRBG output: " + hex.formatHex(out));
+        } else {
+            System.out.println("HMAC_DRBG known-answer test passed");
+        }
+    }
+
+    // A CRT signature computed with a faulty half must not be released (it would factor n)
+    public static void testSignatureFaultCheck() throws Exception {
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+        byte[] message = "sign me".getBytes();
+        RSAProvider provider = new RSAProvider();
+        java.security.Signature signer = java.security.Signature.getInstance("SHA256withRSA", provider);
+        signer.initSign(new RSAProvider.PrivateCrtKeyImpl(keyPair));
+        signer.update(message);
+        byte[] signature = signer.sign();
+        java.security.Signature verifier = java.security.Signature.getInstance("SHA256withRSA", provider);
+        verifier.initVerify(new RSAProvider.PublicKeyImpl(keyPair.getModulus(), keyPair.getEncryptKey()));
+        verifier.update(message);
+        if (!verifier.verify(signature)) {
+            System.out.println("Fail! Signature does not verify");
+            return;
+        }
+
+        // Simulate the fault by corrupting dP
+        java.lang.reflect.Field dP = KeyPair.class.getDeclaredField("dP");
+        dP.setAccessible(true);
+        dP.set(keyPair, keyPair.getDP().add(BigInteger.ONE));
+        signer.initSign(new RSAProvider.PrivateCrtKeyImpl(keyPair));
+        signer.update(message);
+        try {
+            signer.sign();
+            System.out.println("Fail! Faulty CRT signature was released");
+        } catch (java.security.SignatureException expected) {
+            System.out.println("Signature fault check test passed");
+        }
+    }
+
+    // Parallel reads match the plaintext; truncation, a changed header and swapped blocks are all rejected
+    public static void testEncryptedContainer() throws IOException {
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+        int blockSize = 1000;
+        byte[] plain = new byte[10 * blockSize + 500];
+        new Random().nextBytes(plain);
+        Path file = Files.createTempFile("container", ".rsac");
+        Path broken = Files.createTempFile("container", ".rsac");
+        try {
+            try (EncryptedContainer.Writer out = EncryptedContainer.create(file, keyPair.getEncryptKey(),
+                    keyPair.getModulus(), blockSize)) {
+                out.write(plain);
+            }
+
+            try (EncryptedContainer.Reader reader = EncryptedContainer.open(file, keyPair, 4)) {
+                if (reader.size() != plain.length || reader.getBlockCount() != 11) {
+                    System.out.println("Fail! Container size " + reader.size() + ", " + reader.getBlockCount()
+                            + " blocks");
+                    return;
+                }
+                // Ranges that start or end on, just before or just after block edges
+                Random random = new Random();
+                for (int i = 0; i < 200; i++) {
+                    int from = random.nextInt(11) * blockSize + random.nextInt(3) - 1;
+                    from = Math.max(0, Math.min(from, plain.length - 1));
+                    int len = random.nextInt(4) * blockSize + random.nextInt(3) - 1;
+                    len = Math.max(1, len);
+                    byte[] dst = new byte[len];
+                    int n = reader.read(from, dst, 0, len);
+                    if (n != Math.min(len, plain.length - from)
+                            || !Arrays.equals(dst, 0, n, plain, from, from + n)) {
+                        System.out.println("Fail! Container read at " + from + " length " + len);
+                        return;
+                    }
+                }
+                if (!Arrays.equals(reader.openStream(0).readAllBytes(), plain)) {
+                    System.out.println("Fail! Container stream differs from the plaintext");
+                    return;
+                }
+            }
+
+            byte[] sealed = Files.readAllBytes(file);
+            int headerLength = 13 + (keyPair.getModulus().bitLength() + 7) / 8;
+            int sealedBlock = blockSize + 16;
+
+            // Cut at each block boundary: the footer and index go first
+            for (int blocks = 0; blocks <= 11; blocks++) {
+                Files.write(broken, Arrays.copyOf(sealed, headerLength + blocks * sealedBlock));
+                if (opens(broken, keyPair)) {
+                    System.out.println("Fail! Container truncated after " + blocks + " blocks opened");
+                    return;
+                }
+            }
+
+            // blockSize is the int after magic and version
+            byte[] header = sealed.clone();
+            header[8] ^= 1;
+            Files.write(broken, header);
+            if (opens(broken, keyPair)) {
+                System.out.println("Fail! Container with a changed block size opened");
+                return;
+            }
+
+            byte[] swapped = sealed.clone();
+            System.arraycopy(sealed, headerLength, swapped, headerLength + sealedBlock, sealedBlock);
+            System.arraycopy(sealed, headerLength + sealedBlock, swapped, headerLength, sealedBlock);
+            Files.write(broken, swapped);
+            try (EncryptedContainer.Reader reader = EncryptedContainer.open(broken, keyPair, 4)) {
+                reader.read(0, new byte[2 * blockSize], 0, 2 * blockSize);
+                System.out.println("Fail! Container with swapped blocks read");
+                return;
+            } catch (IOException expected) {
+                // Block i only authenticates under nonce i
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(broken);
+        }
+        System.out.println("Encrypted container test passed");
+    }
+
+    private static boolean opens(Path container, KeyPair keyPair) {
+        try (EncryptedContainer.Reader reader = EncryptedContainer.open(container, keyPair, 1)) {
+            return reader.readBlock(0) != null;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    // Replayed KEY + DATA records must not revive a session the receiver dropped (expired or evicted)
+    public static void testSessionReplay() throws InterruptedException {
+        KeyPair aliceKey = KeyPair.generateRandomKeyPair(1024);
+        KeyPair bobKey = KeyPair.generateRandomKeyPair(1024);
+        BigInteger e = bobKey.getEncryptKey();
+        BigInteger n = bobKey.getModulus();
+        byte[] message = "replay me".getBytes();
+
+        // Expiry: lifetime 500 ms, inbound sessions live 1 s
+        SessionCache alice = new SessionCache(aliceKey, 16, 500, 1000);
+        SessionCache bob = new SessionCache(bobKey, 16, 500, 1000);
+        byte[] key = alice.seal("bob", message, e, n);
+        byte[] data = alice.seal("bob", message, e, n);
+        bob.open("alice", key);
+        bob.open("alice", data);
+        Thread.sleep(700);
+        // Session still cached, but its KEY record is older than the lifetime
+        if (opens(bob, key) || opens(bob, data)) {
+            System.out.println("Fail! Replay accepted within twice the lifetime");
+            return;
+        }
+        Thread.sleep(500);
+        // Session expired and dropped
+        if (opens(bob, key) || opens(bob, data) || opens(bob, key)) {
+            System.out.println("Fail! Replay accepted after the session expired");
+            return;
+        }
+
+        // Eviction: room for one inbound session, so the second session evicts the first
+        alice = new SessionCache(aliceKey, 16, 60_000, 1000);
+        bob = new SessionCache(bobKey, 1, 60_000, 1000, 1, null);
+        byte[] key1 = alice.seal("bob", message, e, n);
+        byte[] data1 = alice.seal("bob", message, e, n);
+        bob.open("alice", key1);
+        bob.open("alice", data1);
+        alice.rekey("bob");
+        byte[] key2 = alice.seal("bob", message, e, n);
+        bob.open("alice", key2);
+        if (bob.getEvictions() != 1) {
+            System.out.println("Fail! Expected one eviction, got " + bob.getEvictions());
+            return;
+        }
+        if (opens(bob, key1) || opens(bob, data1) || opens(bob, key1)) {
+            System.out.println("Fail! Replay accepted after the session was evicted");
+            return;
+        }
+        if (!Arrays.equals(bob.open("alice", alice.seal("bob", message, e, n)), message)) {
+            System.out.println("Fail! Current session stopped working");
+            return;
+        }
+        System.out.println("Session replay test passed");
+    }
+
+    // Whether the receiver accepts a record from alice
+    private static boolean opens(SessionCache receiver, byte[] record) {
+        try {
+            receiver.open("alice", record);
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException ex) {
+            return false;
+        }
+    }
+
+    // Subscriber for testFlowProcessor: requests `batch` items at a time, cancels or sends
+    // request(0) after `stopAfter` items, and records any broken rule
+    private static final class FlowProbe implements Flow.Subscriber<RSAFlowProcessor.Result> {
+        private final int batch;
+        private final int stopAfter;
+        private final boolean badDemand;
+        private final List<BigInteger> received = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger inSignal = new AtomicInteger();
+        private final AtomicInteger terminals = new AtomicInteger();
+        private final AtomicReference<String> violation = new AtomicReference<>();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Flow.Subscription subscription;
+        private long outstanding;
+
+        private FlowProbe(int batch, int stopAfter, boolean badDemand) {
+            this.batch = batch;
+            this.stopAfter = stopAfter;
+            this.badDemand = badDemand;
+        }
+
+        private void enter(String signal) {
+            if (inSignal.incrementAndGet() != 1) {
+                violation.compareAndSet(null, signal + " overlapped another signal");
+            }
+            if (terminals.get() > 0) {
+                violation.compareAndSet(null, signal + " after a terminal signal");
+            }
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            outstanding = batch;
+            s.request(batch);
+        }
+
+        @Override
+        public void onNext(RSAFlowProcessor.Result item) {
+            enter("onNext");
+            if (--outstanding < 0) {
+                violation.compareAndSet(null, "onNext beyond demand");
+            }
+            received.add(item.getRequest().getValue());
+            if (received.size() == stopAfter) {
+                if (badDemand) {
+                    subscription.request(0);
+                } else {
+                    subscription.cancel();
+                    done.countDown();
+                }
+            } else if (outstanding == 0) {
+                outstanding = batch;
+                subscription.request(batch);
+            }
+            inSignal.decrementAndGet();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            enter("onError");
+            terminals.incrementAndGet();
+            error.set(throwable);
+            inSignal.decrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            enter("onComplete");
+            terminals.incrementAndGet();
+            inSignal.decrementAndGet();
+            done.countDown();
+        }
+    }
+
+    // RSAFlowProcessor: demand is respected, results keep input order, cancel stops the
+    // stream and upstream, and request(0) ends it with one serial onError
+    public static void testFlowProcessor() throws InterruptedException {
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(1024);
+        int count = 40;
+        String[] cases = { "ordered run", "cancel", "request(0)" };
+        for (int c = 0; c < cases.length; c++) {
+            boolean cancel = c == 1;
+            boolean badDemand = c == 2;
+            FlowProbe probe = new FlowProbe(3, cancel || badDemand ? 7 : Integer.MAX_VALUE, badDemand);
+            RSAFlowProcessor processor = new RSAFlowProcessor(3, 8, 4, true);
+            SubmissionPublisher<RSAFlowProcessor.Request> publisher = new SubmissionPublisher<>();
+            try {
+                publisher.subscribe(processor);
+                processor.subscribe(probe);
+                for (int i = 0; i < count; i++) {
+                    publisher.submit(RSAFlowProcessor.Request.encrypt(BigInteger.valueOf(i), keyPair.getEncryptKey(),
+                            keyPair.getModulus()));
+                }
+                publisher.close();
+                if (!probe.done.await(60, TimeUnit.SECONDS)) {
+                    System.out.println("Fail! RSAFlowProcessor " + cases[c] + " did not finish");
+                    return;
+                }
+                // Give a stray late signal the chance to show up
+                Thread.sleep(200);
+                int expected = cancel || badDemand ? 7 : count;
+                boolean inOrder = probe.received.size() == expected;
+                for (int i = 0; inOrder && i < expected; i++) {
+                    inOrder = probe.received.get(i).equals(BigInteger.valueOf(i));
+                }
+                String problem = probe.violation.get();
+                if (problem == null && !inOrder) {
+                    problem = "received " + probe.received;
+                }
+                if (problem == null && cancel && (probe.terminals.get() != 0 || publisher.hasSubscribers())) {
+                    problem = "terminal signal or live upstream after cancel";
+                }
+                if (problem == null && badDemand && (probe.terminals.get() != 1
+                        || !(probe.error.get() instanceof IllegalArgumentException))) {
+                    problem = "expected one onError(IllegalArgumentException), got " + probe.error.get();
+                }
+                if (problem == null && !cancel && !badDemand && (probe.terminals.get() != 1
+                        || probe.error.get() != null)) {
+                    problem = "expected one onComplete, got " + probe.error.get();
+                }
+                if (problem != null) {
+                    System.out.println("Fail! RSAFlowProcessor " + cases[c] + ": " + problem);
+                    return;
+                }
+            } finally {
+                publisher.close();
+            }
+        }
+        System.out.println("RSAFlowProcessor test passed");
+    }
+
+    // pack/unpack round trips at the prefix boundaries and a full block, bad blocks, and submit after close
+    public static void testOAEPCoalescer() {
+        KeyPair keyPair = KeyPair.generateRandomKeyPair(2048);
+        BigInteger e = keyPair.getEncryptKey();
+        BigInteger n = keyPair.getModulus();
+        RSAByteBufferCipher rsa = new RSAByteBufferCipher();
+        int capacity = rsa.maxOAEPMessageLength(n);
+        Random random = new Random();
+
+        // 0 and 0x7f take a one-byte prefix, 0x80 a two-byte one; the last payload fills the block exactly
+        List<byte[]> payloads = new ArrayList<>();
+        for (int length : new int[] { 0, 0x7f, 0x80 }) {
+            byte[] p = new byte[length];
+            random.nextBytes(p);
+            payloads.add(p);
+        }
+        List<byte[]> full = List.of(new byte[capacity - 1 - 2]);
+        random.nextBytes(full.get(0));
+        for (List<byte[]> list : List.of(payloads, full)) {
+            byte[] block = OAEPCoalescer.pack(list);
+            if (!Arrays.deepEquals(OAEPCoalescer.unpack(ByteBuffer.wrap(block)), list.toArray(new byte[0][]))) {
+                System.out.println("Fail! OAEPCoalescer pack/unpack of " + list.size() + " payload(s)");
+                return;
+            }
+        }
+        if (OAEPCoalescer.pack(full).length != capacity) {
+            System.out.println("Fail! Full OAEPCoalescer block is " + OAEPCoalescer.pack(full).length + " bytes");
+            return;
+        }
+
+        byte version = OAEPCoalescer.pack(List.of())[0];
+        byte[][] bad = { { version, (byte) 0x81 }, { version, 5, 1, 2 }, { version, (byte) 0x80, 5, 7 } };
+        for (byte[] block : bad) {
+            try {
+                OAEPCoalescer.unpack(ByteBuffer.wrap(block));
+                System.out.println("Fail! OAEPCoalescer unpacked " + Arrays.toString(block));
+                return;
+            } catch (IllegalArgumentException expected) {
+                // Truncated prefix or length past the end
+            }
+        }
+
+        OAEPCoalescer coalescer = new OAEPCoalescer(rsa, 60_000, null);
+        OAEPCoalescer.Envelope envelope = coalescer.submit(full.get(0), e, n).join();
+        if (envelope.getPayloadCount() != 1
+                || !Arrays.equals(OAEPCoalescer.open(envelope.getCiphertext(), keyPair)[0], full.get(0))) {
+            System.out.println("Fail! Full OAEPCoalescer block did not round trip through RSA");
+            return;
+        }
+        coalescer.close();
+        try {
+            coalescer.submit(new byte[16], e, n);
+            System.out.println("Fail! OAEPCoalescer accepted a payload after close()");
+            return;
+        } catch (IllegalStateException expected) {
+            // Nothing was queued
+        }
+        coalescer.flush();
+        if (coalescer.getEnvelopeCount() != 1) {
+            System.out.println("Fail! OAEPCoalescer sealed " + coalescer.getEnvelopeCount() + " envelopes");
+            return;
+        }
+        System.out.println("OAEPCoalescer test passed");
+    }
 }
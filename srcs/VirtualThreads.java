@@ -0,0 +1,54 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates thread-per-task executors backed by virtual threads when the running
+ * JDK has them (21+), and by a cached pool of daemon platform threads otherwise.
+ * Lookup is reflective so the sources still compile on older JDKs.
+ */
+public class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * @param fallbackName Name prefix for platform threads if virtual threads are unavailable.
+     * @return An executor that starts a new (virtual if possible) thread per task.
+     */
+    public static ExecutorService newPerTaskExecutor(String fallbackName) {
+        if (NEW_VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                // fall through to platform threads
+            }
+        }
+        return Executors.newCachedThreadPool(daemonThreads(fallbackName));
+    }
+
+    /**
+     * Thread factory for daemon platform threads named {@code <name>-1, <name>-2, ...}.
+     */
+    public static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadId = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+}
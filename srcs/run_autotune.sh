@@ -0,0 +1,2 @@
+javac *.java -d bin 
+java -cp bin AutoTuner "$@"
\ No newline at end of file
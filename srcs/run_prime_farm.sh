@@ -0,0 +1,13 @@
+# Usage: ./run_prime_farm.sh <workers> [coordinator options...]
+javac *.java -d bin 
+WORKERS=${1:-2}
+shift
+# Shared secret the workers send in HELLO; a fresh one per run unless exported
+export PRIME_FARM_TOKEN=${PRIME_FARM_TOKEN:-$(od -An -tx1 -N16 /dev/urandom | tr -d ' \n')}
+java -cp bin PrimeFarmCoordinator "$@" &
+COORDINATOR=$!
+sleep 1
+for i in $(seq 1 "$WORKERS"); do
+    java -cp bin PrimeFarmWorker --threads 1 --name "worker-$i" &
+done
+wait $COORDINATOR
@@ -0,0 +1,2 @@
+javac *.java -d bin 
+java -cp bin RSAService "$@"
\ No newline at end of file
@@ -0,0 +1,14 @@
+# Usage: ./run_shard_cluster.sh <keyDirectory> [nodes] [cacheEntries]
+# Export RSA_ADMIN_TOKEN (shared by the router and the nodes) to enable key and node management.
+javac *.java -d bin 
+KEYS=$1
+NODES=${2:-2}
+CACHE=${3:-0}
+PORTS=""
+for i in $(seq 1 "$NODES"); do
+    PORT=$((8080 + i))
+    java -cp bin RSAService "$PORT" "$KEYS" "$CACHE" shard &
+    PORTS="$PORTS $PORT"
+done
+sleep 1
+java -cp bin ShardRouter 8080 "$KEYS" $PORTS